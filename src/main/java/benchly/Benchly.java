@@ -23,6 +23,8 @@ import org.slf4j.LoggerFactory;
 
 import benchly.controller.ErrorHandlers;
 import benchly.controller.JobController;
+import benchly.controller.MetricsController;
+import benchly.controller.RemoteController;
 import benchly.controller.ServerContactController;
 import benchly.controller.SessionController;
 import benchly.controller.StorageController;
@@ -32,6 +34,7 @@ import benchly.error.InternalServerError;
 import benchly.error.InvalidModelException;
 import benchly.error.InvalidRequestException;
 import benchly.error.ResourceNotFoundError;
+import benchly.remote.StorageAccess;
 import spark.Route;
 
 public class Benchly {
@@ -52,10 +55,13 @@ public class Benchly {
 	// the url used for database connection
 	private static String jdbcUrl;
 
+	// the configuration read from the command line
+	private static Config config;
+
 	public static void main(String[] args) {
 
 		// read options from the command line, fail if any option is invalid
-		Config config = Config.from(args);
+		config = Config.from(args);
 		List<String> configErrors = config.checkForErrors();
 		if (!configErrors.isEmpty()) {
 			for (String error : configErrors) {
@@ -71,15 +77,27 @@ public class Benchly {
 		taskScheduler = BenchlyScheduler.get();
 
 		// schedule a watcher to regularly check up on the servers connected to us
-		taskScheduler.scheduleAtFixedRate(new ServerContactWatcher(taskScheduler, 120), 5, 10, TimeUnit.SECONDS);
+		taskScheduler.scheduleAtFixedRate(new ServerContactWatcher(taskScheduler, 120), 5, 5, TimeUnit.SECONDS);
 
 		// schedule a watcher to periodically check up on storage and refresh it
 		taskScheduler.scheduleAtFixedRate(new StorageWatcher(taskScheduler, (30 * 60)), 3, 5, TimeUnit.SECONDS);
 
+		// start waiting transfers between storage configs and continue interrupted ones
+		taskScheduler.scheduleAtFixedRate(new StorageTransferWatcher(taskScheduler), 4, 10, TimeUnit.SECONDS);
+
+		// abort resumable uploads that were abandoned, the providers keep their parts
+		taskScheduler.scheduleAtFixedRate(new StorageUploadWatcher(config.getUploadExpirySeconds()), 6, 600,
+				TimeUnit.SECONDS);
+
+		// close connections to storage providers that were not used for a while
+		long contextIdleTimeout = config.getStorageContextIdleTimeoutSeconds();
+		taskScheduler.scheduleAtFixedRate(() -> StorageAccess.getInstance().closeIdleContexts(contextIdleTimeout), 60,
+				60, TimeUnit.SECONDS);
+
 		// schedule watchers to periodically check up on running jobs or jobs that
 		// should be started
 		taskScheduler.scheduleAtFixedRate(new JobScheduler(taskScheduler, 500), 10, 10, TimeUnit.SECONDS);
-		taskScheduler.scheduleAtFixedRate(new JobWatcher(taskScheduler, 30), 15, 10, TimeUnit.SECONDS);
+		taskScheduler.scheduleAtFixedRate(new JobWatcher(taskScheduler, 30, 600, 4), 15, 10, TimeUnit.SECONDS);
 
 		// Initialise the Shiro security manager
 		final SecurityManager securityManager = (new IniSecurityManagerFactory("classpath:shiro.ini")).createInstance();
@@ -132,12 +150,36 @@ public class Benchly {
 				put("/:id", StorageController.update);
 				delete("/:id", StorageController.destroy);
 
+				get("/:id/permissions", StorageController.indexPermissions);
+
 				path("/:id/files", () -> {
+					get("", StorageController.indexFiles);
+					get("/archive", StorageController.downloadArchive);
 					post("", StorageController.uploadFile);
+					post("/stream", StorageController.uploadFileStreaming);
+					post("/presigned", StorageController.signUpload);
+					post("/presigned/complete", StorageController.completeSignedUpload);
 					get("/:fileId", StorageController.showFileMeta);
 					get("/:fileId/download", StorageController.downloadFile);
+					get("/:fileId/presigned", StorageController.signDownload);
 					delete("/:fileId", StorageController.destroyFile);
 				});
+
+				path("/:id/uploads", () -> {
+					post("", StorageController.createUpload);
+					get("/:uploadId", StorageController.showUpload);
+					put("/:uploadId/chunks/:number", StorageController.uploadChunk);
+					post("/:uploadId/complete", StorageController.completeUpload);
+					delete("/:uploadId", StorageController.abortUpload);
+				});
+			});
+
+			path("/storage_transfers", () -> {
+				post("", StorageController.createTransfer);
+				get("", StorageController.indexTransfers);
+				get("/:id", StorageController.showTransfer);
+				post("/:id/resume", StorageController.resumeTransfer);
+				delete("/:id", StorageController.cancelTransfer);
 			});
 
 			path("/server_contacts", () -> {
@@ -147,6 +189,15 @@ public class Benchly {
 				put("/:id", ServerContactController.update);
 				get("/:id/reports", ServerContactController.indexReports);
 			});
+
+			// routes used by the workbench servers, not by users
+			path("/remote", () -> {
+				post("/jobs/:id/events", RemoteController.jobEvents);
+			});
+
+			path("/metrics", () -> {
+				get("", MetricsController.index);
+			});
 		});
 
 		get("*", notFoundRoute);
@@ -187,4 +238,8 @@ public class Benchly {
 		return jdbcUrl;
 	}
 
+	public static Config getConfig() {
+		return config;
+	}
+
 }
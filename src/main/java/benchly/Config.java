@@ -14,7 +14,9 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class Config {
+import benchly.remote.PlacementEngine;
+
+public class Config {
 
 	private static final Logger LOG = LoggerFactory.getLogger(Config.class);
 
@@ -23,6 +25,51 @@ class Config {
 		OPTIONS.addOption("d", "jdbc-url", true, "The jdbc connection that should be used (as a jdbc url).");
 		OPTIONS.addOption("f", "frontend-path", true, "The location to serve the frontend from (if wished for).");
 		OPTIONS.addOption("h", "help", false, "Display this help.");
+		OPTIONS.addOption(null, "db-pool-min", true, "Minimum number of idle database connections (default: 2).");
+		OPTIONS.addOption(null, "db-pool-max", true, "Maximum number of database connections (default: 20).");
+		OPTIONS.addOption(null, "db-pool-idle-timeout", true,
+				"Seconds after which idle database connections above the minimum are closed (default: 600).");
+		OPTIONS.addOption(null, "db-pool-timeout", true,
+				"Seconds to wait for a free database connection before failing (default: 30).");
+		OPTIONS.addOption(null, "db-validation-query", true,
+				"A query used to check database connections before use (default: 'SELECT 1').");
+		OPTIONS.addOption(null, "http-pool-max", true,
+				"Maximum number of connections to the workbench servers (default: 100).");
+		OPTIONS.addOption(null, "http-pool-max-per-server", true,
+				"Maximum number of connections to a single workbench server (default: 10).");
+		OPTIONS.addOption(null, "http-connect-timeout", true,
+				"Seconds to wait for a connection to a workbench server (default: 5).");
+		OPTIONS.addOption(null, "http-socket-timeout", true,
+				"Seconds to wait for data from a workbench server (default: 60).");
+		OPTIONS.addOption(null, "http-request-timeout", true,
+				"Seconds to wait for a free connection from the pool (default: 10).");
+		OPTIONS.addOption(null, "http-idle-timeout", true,
+				"Seconds after which idle connections to the workbench servers are closed (default: 30).");
+		OPTIONS.addOption(null, "placement-strategy", true,
+				"How jobs are placed on servers, 'worst-fit' (spread) or 'best-fit' (pack) (default: worst-fit).");
+		OPTIONS.addOption(null, "upload-parallel-parts", true,
+				"Maximum number of parts of a single file uploaded to storage at once (default: 4).");
+		OPTIONS.addOption(null, "upload-memory-budget", true,
+				"Megabytes that all uploads to storage may buffer in total (default: 256).");
+		OPTIONS.addOption(null, "upload-expiry", true,
+				"Seconds after which resumable uploads without new chunks are aborted (default: 604800).");
+		OPTIONS.addOption(null, "transfer-parallel-files", true,
+				"Number of files copied at once by transfers between storage configs (default: 4).");
+		OPTIONS.addOption(null, "json-pretty", false, "Indent the json responses, e.g. for debugging.");
+		OPTIONS.addOption(null, "workflow-cache-size", true,
+				"The number of workflow versions kept in memory, 0 to disable the cache (default: 1000).");
+		OPTIONS.addOption(null, "archive-read-ahead", true,
+				"The number of files fetched ahead while streaming an archive download (default: 4).");
+		OPTIONS.addOption(null, "presign-expiry", true,
+				"Seconds for which signed direct upload and download urls are valid (default: 900).");
+		OPTIONS.addOption(null, "storage-context-idle-timeout", true,
+				"Seconds after which unused connections to a storage provider are closed (default: 1800).");
+		OPTIONS.addOption(null, "storage-refresh-freshness", true,
+				"Seconds for which a refreshed storage listing is reused by explicit refreshes (default: 30).");
+		OPTIONS.addOption(null, "blob-cache-dir", true,
+				"A directory to cache downloaded storage files in (default: none, no caching).");
+		OPTIONS.addOption(null, "blob-cache-size", true,
+				"Megabytes that the cached storage files may take up (default: 10240).");
 	}
 
 	// the database url to use
@@ -33,6 +80,57 @@ class Config {
 	private boolean shouldServeTheFrontend = false;
 	private String frontendPath = null;
 
+	// settings for the database connection pool
+	private int dbPoolMin = 2;
+	private int dbPoolMax = 20;
+	private int dbPoolIdleTimeoutSeconds = 600;
+	private int dbPoolTimeoutSeconds = 30;
+	private String dbValidationQuery = "SELECT 1";
+
+	// settings for the connections to the workbench servers
+	private int httpPoolMax = 100;
+	private int httpPoolMaxPerServer = 10;
+	private int httpConnectTimeoutSeconds = 5;
+	private int httpSocketTimeoutSeconds = 60;
+	private int httpRequestTimeoutSeconds = 10;
+	private int httpIdleTimeoutSeconds = 30;
+
+	// how jobs are placed on the workbench servers
+	private PlacementEngine.Strategy placementStrategy = PlacementEngine.Strategy.WORST_FIT;
+
+	// settings for uploads to the storage providers
+	private int uploadParallelParts = 4;
+	private int uploadMemoryBudgetMegabytes = 256;
+	private int uploadExpirySeconds = 7 * 24 * 60 * 60;
+
+	// how many files server side transfers copy at once
+	private int transferParallelFiles = 4;
+
+	// json responses are compact unless asked for
+	private boolean jsonPretty = false;
+
+	// how many workflow versions to keep in memory
+	private int workflowCacheSize = 1000;
+
+	// how many files an archive download fetches ahead of the one being sent
+	private int archiveReadAhead = 4;
+
+	// how long signed requests to the storage providers are valid
+	private int presignExpirySeconds = 900;
+
+	// when to close the connections to a storage provider
+	private int storageContextIdleTimeoutSeconds = 1800;
+
+	// how long a finished refresh of a storage listing counts as recent
+	private int storageRefreshFreshnessSeconds = 30;
+
+	// where and how much of the downloaded storage files to cache
+	private String blobCacheDir = null;
+	private int blobCacheSizeMegabytes = 10240;
+
+	// numeric options that could not be parsed
+	private List<String> parseErrors = new ArrayList<>();
+
 	private Config() {
 	}
 
@@ -58,6 +156,51 @@ class Config {
 				config.shouldServeTheFrontend = true;
 				config.frontendPath = cl.getOptionValue("frontend-path");
 			}
+			config.dbPoolMin = config.parseInt(cl, "db-pool-min", config.dbPoolMin);
+			config.dbPoolMax = config.parseInt(cl, "db-pool-max", config.dbPoolMax);
+			config.dbPoolIdleTimeoutSeconds = config.parseInt(cl, "db-pool-idle-timeout",
+					config.dbPoolIdleTimeoutSeconds);
+			config.dbPoolTimeoutSeconds = config.parseInt(cl, "db-pool-timeout", config.dbPoolTimeoutSeconds);
+			if (cl.hasOption("db-validation-query")) {
+				config.dbValidationQuery = cl.getOptionValue("db-validation-query");
+			}
+			config.httpPoolMax = config.parseInt(cl, "http-pool-max", config.httpPoolMax);
+			config.httpPoolMaxPerServer = config.parseInt(cl, "http-pool-max-per-server",
+					config.httpPoolMaxPerServer);
+			config.httpConnectTimeoutSeconds = config.parseInt(cl, "http-connect-timeout",
+					config.httpConnectTimeoutSeconds);
+			config.httpSocketTimeoutSeconds = config.parseInt(cl, "http-socket-timeout",
+					config.httpSocketTimeoutSeconds);
+			config.httpRequestTimeoutSeconds = config.parseInt(cl, "http-request-timeout",
+					config.httpRequestTimeoutSeconds);
+			config.httpIdleTimeoutSeconds = config.parseInt(cl, "http-idle-timeout", config.httpIdleTimeoutSeconds);
+			config.uploadParallelParts = config.parseInt(cl, "upload-parallel-parts", config.uploadParallelParts);
+			config.uploadMemoryBudgetMegabytes = config.parseInt(cl, "upload-memory-budget",
+					config.uploadMemoryBudgetMegabytes);
+			config.uploadExpirySeconds = config.parseInt(cl, "upload-expiry", config.uploadExpirySeconds);
+			config.transferParallelFiles = config.parseInt(cl, "transfer-parallel-files",
+					config.transferParallelFiles);
+			config.jsonPretty = cl.hasOption("json-pretty");
+			config.workflowCacheSize = config.parseInt(cl, "workflow-cache-size", config.workflowCacheSize);
+			config.archiveReadAhead = config.parseInt(cl, "archive-read-ahead", config.archiveReadAhead);
+			config.presignExpirySeconds = config.parseInt(cl, "presign-expiry", config.presignExpirySeconds);
+			config.storageContextIdleTimeoutSeconds = config.parseInt(cl, "storage-context-idle-timeout",
+					config.storageContextIdleTimeoutSeconds);
+			config.storageRefreshFreshnessSeconds = config.parseInt(cl, "storage-refresh-freshness",
+					config.storageRefreshFreshnessSeconds);
+			if (cl.hasOption("blob-cache-dir")) {
+				config.blobCacheDir = cl.getOptionValue("blob-cache-dir");
+			}
+			config.blobCacheSizeMegabytes = config.parseInt(cl, "blob-cache-size", config.blobCacheSizeMegabytes);
+			if (cl.hasOption("placement-strategy")) {
+				String value = cl.getOptionValue("placement-strategy");
+				try {
+					config.placementStrategy = PlacementEngine.Strategy
+							.valueOf(value.trim().toUpperCase().replace('-', '_'));
+				} catch (IllegalArgumentException e) {
+					config.parseErrors.add("Not a valid placement strategy: " + value);
+				}
+			}
 		} catch (ParseException e) {
 			LOG.error("Error while parsing the server configuration: " + e.getMessage());
 			e.printStackTrace();
@@ -79,8 +222,104 @@ class Config {
 		return frontendPath;
 	}
 
+	public int getDbPoolMin() {
+		return dbPoolMin;
+	}
+
+	public int getDbPoolMax() {
+		return dbPoolMax;
+	}
+
+	public int getDbPoolIdleTimeoutSeconds() {
+		return dbPoolIdleTimeoutSeconds;
+	}
+
+	public int getDbPoolTimeoutSeconds() {
+		return dbPoolTimeoutSeconds;
+	}
+
+	public String getDbValidationQuery() {
+		return dbValidationQuery;
+	}
+
+	public int getHttpPoolMax() {
+		return httpPoolMax;
+	}
+
+	public int getHttpPoolMaxPerServer() {
+		return httpPoolMaxPerServer;
+	}
+
+	public int getHttpConnectTimeoutSeconds() {
+		return httpConnectTimeoutSeconds;
+	}
+
+	public int getHttpSocketTimeoutSeconds() {
+		return httpSocketTimeoutSeconds;
+	}
+
+	public int getHttpRequestTimeoutSeconds() {
+		return httpRequestTimeoutSeconds;
+	}
+
+	public int getHttpIdleTimeoutSeconds() {
+		return httpIdleTimeoutSeconds;
+	}
+
+	public PlacementEngine.Strategy getPlacementStrategy() {
+		return placementStrategy;
+	}
+
+	public int getUploadParallelParts() {
+		return uploadParallelParts;
+	}
+
+	public int getUploadMemoryBudgetMegabytes() {
+		return uploadMemoryBudgetMegabytes;
+	}
+
+	public int getUploadExpirySeconds() {
+		return uploadExpirySeconds;
+	}
+
+	public int getTransferParallelFiles() {
+		return transferParallelFiles;
+	}
+
+	public boolean isJsonPretty() {
+		return jsonPretty;
+	}
+
+	public int getWorkflowCacheSize() {
+		return workflowCacheSize;
+	}
+
+	public int getArchiveReadAhead() {
+		return archiveReadAhead;
+	}
+
+	public int getPresignExpirySeconds() {
+		return presignExpirySeconds;
+	}
+
+	public int getStorageContextIdleTimeoutSeconds() {
+		return storageContextIdleTimeoutSeconds;
+	}
+
+	public int getStorageRefreshFreshnessSeconds() {
+		return storageRefreshFreshnessSeconds;
+	}
+
+	public String getBlobCacheDir() {
+		return blobCacheDir;
+	}
+
+	public int getBlobCacheSizeMegabytes() {
+		return blobCacheSizeMegabytes;
+	}
+
 	protected List<String> checkForErrors() {
-		List<String> errors = new ArrayList<>();
+		List<String> errors = new ArrayList<>(parseErrors);
 
 		// the jdbc url is required
 		if (StringUtils.isBlank(jdbcUrl)) {
@@ -101,7 +340,89 @@ class Config {
 			}
 		}
 
+		// the pool needs at least one connection and cannot keep more idle than it may
+		// open at all
+		if (dbPoolMax < 1) {
+			errors.add("The database pool needs a maximum size of at least one.");
+		}
+		if (dbPoolMin < 0 || dbPoolMin > dbPoolMax) {
+			errors.add("The minimum database pool size has to be between 0 and the maximum pool size.");
+		}
+		if (dbPoolTimeoutSeconds < 1) {
+			errors.add("The database pool timeout has to be at least one second.");
+		}
+
+		// the same goes for the connections to the workbench servers
+		if (httpPoolMax < 1 || httpPoolMaxPerServer < 1 || httpPoolMaxPerServer > httpPoolMax) {
+			errors.add("The http pool needs at least one connection per server and not more than in total.");
+		}
+		if (httpConnectTimeoutSeconds < 1 || httpSocketTimeoutSeconds < 1 || httpRequestTimeoutSeconds < 1) {
+			errors.add("The http timeouts have to be at least one second.");
+		}
+		if (httpIdleTimeoutSeconds < 1) {
+			errors.add("The http idle timeout has to be at least one second.");
+		}
+
+		// uploads need room for at least one part
+		if (uploadParallelParts < 1) {
+			errors.add("At least one part has to be uploaded at a time.");
+		}
+		if (uploadMemoryBudgetMegabytes < 1) {
+			errors.add("The upload memory budget has to be at least one megabyte.");
+		}
+
+		if (uploadExpirySeconds < 1) {
+			errors.add("Resumable uploads have to be kept for at least one second.");
+		}
+
+		if (transferParallelFiles < 1) {
+			errors.add("Transfers have to copy at least one file at a time.");
+		}
+
+		if (workflowCacheSize < 0) {
+			errors.add("The workflow cache size may not be negative.");
+		}
+
+		if (archiveReadAhead < 1) {
+			errors.add("Archive downloads have to fetch at least one file at a time.");
+		}
+
+		if (presignExpirySeconds < 1) {
+			errors.add("Signed urls have to be valid for at least one second.");
+		}
+
+		if (storageContextIdleTimeoutSeconds < 1) {
+			errors.add("The storage context idle timeout has to be at least one second.");
+		}
+		if (storageRefreshFreshnessSeconds < 0) {
+			errors.add("The storage refresh freshness may not be negative.");
+		}
+
+		// the cache directory is created if needed, but has to be usable
+		if (blobCacheDir != null) {
+			File dir = new File(blobCacheDir);
+			if (StringUtils.isBlank(blobCacheDir) || (dir.exists() && (!dir.isDirectory() || !dir.canWrite()))) {
+				errors.add("The blob cache directory is not a directory we have write access to.");
+			}
+		}
+		if (blobCacheSizeMegabytes < 0) {
+			errors.add("The blob cache size may not be negative.");
+		}
+
 		return errors;
 	}
 
+	// read a numeric option, remembering an error if the value is not a number
+	private int parseInt(CommandLine cl, String option, int defaultValue) {
+		if (!cl.hasOption(option)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(cl.getOptionValue(option));
+		} catch (NumberFormatException e) {
+			parseErrors.add("Not a valid number for option '" + option + "': " + cl.getOptionValue(option));
+			return defaultValue;
+		}
+	}
+
 }
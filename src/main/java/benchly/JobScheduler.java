@@ -38,7 +38,7 @@ class JobScheduler implements Runnable {
 
 		long delay = 0;
 		for (Job job : pending) {
-			executor.schedule(new JobSubmitTask(job), delay, TimeUnit.MILLISECONDS);
+			executor.schedule(new JobSubmitTask(job, executor), delay, TimeUnit.MILLISECONDS);
 			delay += delayEachMillis;
 		}
 	}
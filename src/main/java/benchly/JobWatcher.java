@@ -1,6 +1,17 @@
 package benchly;
 
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,42 +19,117 @@ import org.slf4j.LoggerFactory;
 import benchly.database.JobDao;
 import benchly.model.Job;
 import benchly.remote.JobUpdateTask;
+import benchly.util.Metrics;
 
 /**
- * On each run selects up to one job from the database and checks the job's
- * status.
+ * On each run claims all submitted jobs that were not checked for some time and
+ * checks their status. Jobs are grouped by their executing server and each
+ * server is queried by a limited number of requests at the same time.
  */
 class JobWatcher implements Runnable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(JobWatcher.class);
 
+	// an upper bound for the jobs checked in a single sweep
+	private static final long MAX_JOBS_PER_SWEEP = 5000;
+
 	private final int secondsTillCheck;
 
+	// jobs whose server pushes events are only checked to reconcile
+	private final int secondsTillReconcile;
+
+	private final int maxConcurrentPerServer;
+
 	private final ExecutorService executor;
 
-	protected JobWatcher(ExecutorService executor, int secondsTillCheckup) {
+	protected JobWatcher(ExecutorService executor, int secondsTillCheckup, int secondsTillReconcile,
+			int maxConcurrentPerServer) {
 		this.secondsTillCheck = secondsTillCheckup;
+		this.secondsTillReconcile = secondsTillReconcile;
+		this.maxConcurrentPerServer = maxConcurrentPerServer;
 		this.executor = executor;
 	}
 
 	@Override
 	public void run() {
-		Job job = pickAJobToCheck();
-		if (job == null) {
+		long start = System.nanoTime();
+
+		List<Job> due = claimDueJobs();
+		Metrics.set("jobs.sweep.due", due.size());
+		Metrics.set("jobs.sweep.maxLagSeconds", maxLagSeconds(due));
+		if (due.isEmpty()) {
+			Metrics.set("jobs.sweep.checked", 0);
+			return;
+		}
+
+		// split the jobs of each server into a limited number of lanes, that are
+		// processed concurrently. Each lane only issues the next request when the
+		// previous one is answered, no thread waits for that.
+		Map<Long, List<Job>> byServer = due.stream().collect(Collectors.groupingBy(JobWatcher::serverIdOf));
+		AtomicInteger checked = new AtomicInteger(0);
+		List<CompletableFuture<Void>> lanes = new ArrayList<>();
+		for (List<Job> jobs : byServer.values()) {
+			int laneCount = Math.min(maxConcurrentPerServer, jobs.size());
+			for (int lane = 0; lane < laneCount; lane++) {
+				CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+				for (int i = lane; i < jobs.size(); i += laneCount) {
+					Job job = jobs.get(i);
+					chain = chain.thenCompose(previous -> new JobUpdateTask(job, executor).update())
+							.thenAccept(wasChecked -> {
+								if (wasChecked) {
+									checked.incrementAndGet();
+								}
+							});
+				}
+				lanes.add(chain);
+			}
+		}
+
+		// wait for the lanes, such that the next sweep does not overlap with this one
+		try {
+			CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0])).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			return;
-		} else {
-			executor.submit(new JobUpdateTask(job));
+		} catch (ExecutionException e) {
+			LOG.error("Unexpected error while checking jobs: " + e.getCause().getMessage());
+			e.getCause().printStackTrace();
 		}
+
+		long durationNanos = System.nanoTime() - start;
+		Metrics.set("jobs.sweep.checked", checked.get());
+		Metrics.add("jobs.checked", checked.get());
+		Metrics.recordNanos("jobs.sweep.duration", durationNanos);
+		LOG.debug(String.format("Checked %d of %d due jobs on %d servers in %d ms.", checked.get(), due.size(),
+				byServer.size(), Duration.ofNanos(durationNanos).toMillis()));
 	}
 
-	private Job pickAJobToCheck() {
+	private List<Job> claimDueJobs() {
 		try {
-			return JobDao.pickSubmittedJobWhereLastCheckIsLongerAgoThan(secondsTillCheck);
+			return JobDao.claimSubmittedJobsWhereLastCheckIsLongerAgoThan(secondsTillCheck, secondsTillReconcile,
+					MAX_JOBS_PER_SWEEP);
 		} catch (Exception e) {
-			LOG.error("Error while attempting to fetch a job for checkup from the database: " + e.getMessage());
+			LOG.error("Error while attempting to fetch jobs for checkup from the database: " + e.getMessage());
 			e.printStackTrace();
-			return null;
+			return Collections.emptyList();
+		}
+	}
+
+	// how long the job waited for this check in seconds
+	private static long maxLagSeconds(List<Job> jobs) {
+		Instant now = Instant.now();
+		long result = 0;
+		for (Job job : jobs) {
+			Timestamp last = (job.getLastChecked() != null) ? job.getLastChecked() : job.getSubmittedAt();
+			if (last != null) {
+				result = Math.max(result, Duration.between(last.toInstant(), now).getSeconds());
+			}
 		}
+		return result;
+	}
+
+	private static long serverIdOf(Job job) {
+		return (job.getExecutingServer() == null) ? -1L : job.getExecutingServer().getId();
 	}
 
 }
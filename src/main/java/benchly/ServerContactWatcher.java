@@ -1,26 +1,73 @@
 package benchly;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import benchly.database.ServerContactDao;
 import benchly.model.ServerContact;
+import benchly.model.StatusReport;
 import benchly.remote.ServerStatusReportTask;
+import benchly.util.Metrics;
 
 /**
- * On each run selects up to one server from the database and checks the
- * server's status.
+ * On each run checks the status of all servers that are due, in parallel. How
+ * often a server is due adapts to it: Servers whose load changes or that just
+ * came back are checked more often, servers that cannot be reached are backed
+ * off from exponentially.
  */
 class ServerContactWatcher implements Runnable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(ServerContactWatcher.class);
 
+	// the shortest time between two checks of a server
+	private static final long MIN_INTERVAL_SECONDS = 10;
+
+	// the longest time between two checks of an unreachable server
+	private static final long MAX_BACKOFF_SECONDS = 1800;
+
+	// a relative change of usable memory that counts as a quick change
+	private static final double MEMORY_CHANGE_THRESHOLD = 0.1;
+
 	private final int secondsTillCheck;
 
 	private final ExecutorService executor;
 
+	// the check schedule of each server by id, kept between runs
+	private final Map<Long, Schedule> schedules = new ConcurrentHashMap<>();
+
+	private static class Schedule {
+
+		private long intervalSeconds;
+
+		private long nextCheckAtMillis;
+
+		private boolean inFlight = false;
+
+		private boolean unreachable = false;
+
+		private StatusReport lastReport = null;
+
+		private Schedule(long intervalSeconds, long nextCheckAtMillis) {
+			this.intervalSeconds = intervalSeconds;
+			this.nextCheckAtMillis = nextCheckAtMillis;
+		}
+	}
+
+	/**
+	 * @param secondsTillCheckup
+	 *            The usual time between two checks of a server.
+	 */
 	protected ServerContactWatcher(ExecutorService executor, int secondsTillCheckup) {
 		this.secondsTillCheck = secondsTillCheckup;
 		this.executor = executor;
@@ -28,20 +75,100 @@ class ServerContactWatcher implements Runnable {
 
 	@Override
 	public void run() {
+		long start = System.nanoTime();
+		long now = System.currentTimeMillis();
 
-		ServerContact contact = null;
+		List<ServerContact> contacts;
 		try {
-			contact = ServerContactDao.fetchOneWhereLastCheckIsLongerAgoThan(secondsTillCheck);
-
-			if (contact == null) {
-				return;
-			}
-
-			executor.submit(new ServerStatusReportTask(contact));
+			contacts = ServerContactDao.fetchAll();
 		} catch (Exception e) {
 			LOG.error("Unexpected error in server status check: " + e.getMessage());
 			e.printStackTrace();
+			return;
+		}
+
+		// forget servers that were removed, then start a check for each due server
+		Set<Long> known = new HashSet<>();
+		List<CompletableFuture<StatusReport>> checks = new ArrayList<>();
+		AtomicInteger unreachable = new AtomicInteger(0);
+		for (ServerContact contact : contacts) {
+			known.add(contact.getId());
+			Schedule schedule = schedules.computeIfAbsent(contact.getId(), id -> initialSchedule(contact));
+			synchronized (schedule) {
+				if (schedule.inFlight || schedule.nextCheckAtMillis > now) {
+					continue;
+				}
+				schedule.inFlight = true;
+			}
+			checks.add(new ServerStatusReportTask(contact, executor).check().whenComplete((report, e) -> {
+				if (report == null) {
+					unreachable.incrementAndGet();
+				}
+				reschedule(schedule, report);
+			}));
+		}
+		schedules.keySet().retainAll(known);
+
+		Metrics.set("servers.sweep.due", checks.size());
+		if (checks.isEmpty()) {
+			return;
+		}
+
+		// the sweep is done when all servers answered or timed out, nobody waits for
+		// that
+		CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).whenComplete((result, e) -> {
+			long durationNanos = System.nanoTime() - start;
+			Metrics.set("servers.sweep.unreachable", unreachable.get());
+			Metrics.recordNanos("servers.sweep.duration", durationNanos);
+			LOG.debug(String.format("Checked %d servers (%d unreachable) in %d ms.", checks.size(),
+					unreachable.get(), Duration.ofNanos(durationNanos).toMillis()));
+		});
+	}
+
+	// servers already checked before we started are due after the usual interval
+	private Schedule initialSchedule(ServerContact contact) {
+		long nextCheckAt = 0;
+		if (contact.getLastChecked() != null) {
+			nextCheckAt = contact.getLastChecked().getTime() + secondsTillCheck * 1000L;
+		}
+		Schedule schedule = new Schedule(secondsTillCheck, nextCheckAt);
+		schedule.unreachable = (contact.getReachability() == ServerContact.Reachability.REPORTED_UNREACHABLE);
+		return schedule;
+	}
+
+	private void reschedule(Schedule schedule, StatusReport report) {
+		synchronized (schedule) {
+			if (report == null) {
+				// back off exponentially, starting at the usual interval
+				long base = schedule.unreachable ? schedule.intervalSeconds : secondsTillCheck / 2;
+				schedule.intervalSeconds = Math.min(MAX_BACKOFF_SECONDS, Math.max(secondsTillCheck, base * 2));
+				schedule.unreachable = true;
+			} else if (schedule.unreachable || changedQuickly(schedule.lastReport, report)) {
+				schedule.intervalSeconds = MIN_INTERVAL_SECONDS;
+				schedule.unreachable = false;
+			} else {
+				// return to the usual interval while nothing changes
+				schedule.intervalSeconds = Math.min(secondsTillCheck, schedule.intervalSeconds * 2);
+			}
+			if (report != null) {
+				schedule.lastReport = report;
+			}
+			schedule.nextCheckAtMillis = System.currentTimeMillis() + schedule.intervalSeconds * 1000L;
+			schedule.inFlight = false;
+		}
+	}
+
+	private static boolean changedQuickly(StatusReport previous, StatusReport current) {
+		// nothing is known about servers checked for the first time
+		if (previous == null) {
+			return true;
+		}
+		if (previous.getRunningJobs() != current.getRunningJobs()) {
+			return true;
 		}
+		long before = previous.getLongTermUsableMemory();
+		long after = current.getLongTermUsableMemory();
+		return Math.abs(after - before) > MEMORY_CHANGE_THRESHOLD * Math.max(1L, Math.max(before, after));
 	}
 
 }
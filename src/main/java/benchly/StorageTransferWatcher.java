@@ -0,0 +1,42 @@
+package benchly;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import benchly.database.StorageDao;
+import benchly.model.StorageTransfer;
+import benchly.remote.StorageTransferTask;
+
+/**
+ * Starts storage transfers that are waiting and continues the ones that were
+ * running when the server stopped.
+ */
+class StorageTransferWatcher implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StorageTransferWatcher.class);
+
+	private final ExecutorService executor;
+
+	protected StorageTransferWatcher(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void run() {
+		try {
+			List<StorageTransfer> transfers = StorageDao
+					.fetchActiveTransfers(StorageTransferTask.runningTransferIds());
+			for (StorageTransfer transfer : transfers) {
+				LOG.debug("Scheduling storage transfer: " + transfer.getId());
+				StorageTransferTask.submit(transfer, executor);
+			}
+		} catch (Exception e) {
+			LOG.error("Unexpected error when checking for storage transfers: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+}
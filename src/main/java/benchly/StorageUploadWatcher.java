@@ -0,0 +1,63 @@
+package benchly;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import benchly.database.StorageDao;
+import benchly.error.StorageAccessError;
+import benchly.model.StorageConfig;
+import benchly.model.StorageUpload;
+import benchly.remote.StorageAccess;
+import benchly.util.Metrics;
+
+/**
+ * Aborts resumable uploads that did not receive a chunk for the configured
+ * time. The provider's multipart upload is aborted before the upload and its
+ * parts are deleted, such that the provider does not keep the parts. Uploads
+ * whose abort fails are tried again on the next run.
+ */
+class StorageUploadWatcher implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StorageUploadWatcher.class);
+
+	// how many uploads are aborted per run
+	private static final int UPLOADS_PER_RUN = 100;
+
+	private final int expirySeconds;
+
+	protected StorageUploadWatcher(int expirySeconds) {
+		this.expirySeconds = expirySeconds;
+	}
+
+	@Override
+	public void run() {
+		try {
+			List<StorageUpload> uploads = StorageDao.fetchUploadsInactiveLongerThan(expirySeconds, UPLOADS_PER_RUN);
+			for (StorageUpload upload : uploads) {
+				expire(upload);
+			}
+		} catch (Exception e) {
+			LOG.error("Unexpected error when checking for abandoned uploads: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	private void expire(StorageUpload upload) throws Exception {
+		StorageConfig config = StorageDao.fetchConfig(upload.getStorageConfig().getId());
+		// without the config there is no way to reach the provider's upload
+		if (config != null) {
+			try {
+				StorageAccess.getInstance().abortUpload(config, upload);
+			} catch (StorageAccessError | RuntimeException e) {
+				LOG.error("Unable to abort abandoned upload " + upload.getId() + ", got: " + e.getMessage());
+				return;
+			}
+		}
+		LOG.info("Aborted abandoned upload " + upload.getId() + " of file: " + upload.getName());
+		StorageDao.deleteUpload(upload);
+		Metrics.increment("storage.upload.resumable.expired");
+	}
+
+}
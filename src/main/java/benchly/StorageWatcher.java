@@ -11,7 +11,8 @@ import benchly.remote.StorageConfigRefreshTask;
 
 /**
  * On each run selects up to one storage config from the database and refreshes
- * the file meta if it is too old.
+ * the file meta if it is too old. Configs that are refreshed at the moment are
+ * skipped, such that a slow refresh does not hold up the others.
  */
 class StorageWatcher implements Runnable {
 
@@ -29,7 +30,8 @@ class StorageWatcher implements Runnable {
 	@Override
 	public void run() {
 		try {
-			StorageConfig config = StorageDao.fetchOneWhereLastRefreshIsLongerAgoThan(secondsTillCheck);
+			StorageConfig config = StorageDao.fetchOneWhereLastRefreshIsLongerAgoThan(secondsTillCheck,
+					StorageConfigRefreshTask.runningConfigIds());
 
 			if (config == null) {
 				return;
@@ -37,7 +39,7 @@ class StorageWatcher implements Runnable {
 
 			LOG.debug("Scheduling check for config: " + config.getId());
 
-			executor.submit(new StorageConfigRefreshTask(config));
+			StorageConfigRefreshTask.submit(config, executor);
 		} catch (Exception e) {
 			LOG.error("Unexpected error in storag file meta check: " + e.getMessage());
 			e.printStackTrace();
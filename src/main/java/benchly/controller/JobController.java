@@ -12,6 +12,7 @@ import benchly.model.Job;
 import benchly.model.User;
 import benchly.model.Workflow;
 import benchly.remote.JobCancelTask;
+import benchly.util.PageCursor;
 import benchly.util.RequestUtil;
 import benchly.util.SessionUtil;
 import benchly.util.RequestUtil.PaginationParams;
@@ -24,8 +25,10 @@ public class JobController extends Controller {
 		ensureLoggedInUser(request, "Only logged in users may view josb.");
 		
 		Job job = ensureSingleJobByIdFromRoute(request);
+		// the definition is not stored with the workflow, only single jobs show it
+		WorkflowDao.loadDefinition(job.getWorkflow());
 
-		return JsonTransformer.render(job, request);
+		return JsonTransformer.render("jobs.show", job, request, response);
 	};
 
 	public static Route index = (request, response) -> {
@@ -43,7 +46,9 @@ public class JobController extends Controller {
 			max = JobDao.countBelongingTo(user);
 		}
 
-		return JsonTransformer.renderPaginatedResult(jobs, request, pagination.limit, pagination.offset, max);
+		String next = PageCursor.nextToken(jobs, pagination, Job::getCreatedAt, Job::getId);
+		return JsonTransformer.renderPaginatedResult("jobs.index", jobs, request, response, pagination.limit,
+				pagination.offset, max, next);
 	};
 
 	public static Route create = (request, response) -> {
@@ -66,7 +71,7 @@ public class JobController extends Controller {
 		long rowsCreated = JobDao.create(job);
 		ensureRowCountIsOne(rowsCreated, "create job");
 
-		return JsonTransformer.render(job, request);
+		return JsonTransformer.render("jobs.create", job, request, response);
 	};
 
 	public static Route cancel = (request, response) -> {
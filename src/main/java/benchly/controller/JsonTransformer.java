@@ -1,56 +1,107 @@
 package benchly.controller;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonWriter;
 
+import benchly.Benchly;
 import benchly.error.InvalidRequestException;
+import benchly.model.User;
+import benchly.util.Metrics;
 import benchly.util.SessionUtil;
 import spark.Request;
-
+import spark.Response;
+
+/**
+ * Renders the json responses. The envelope of messages, user, content and
+ * pagination is written straight to the response while the content is
+ * serialized, without building the whole document in memory first. Output is
+ * compact unless the server runs with --json-pretty.
+ */
 class JsonTransformer {
 
-	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().excludeFieldsWithoutExposeAnnotation()
-			.create();
+	private static final boolean PRETTY = Benchly.getConfig().isJsonPretty();
+
+	private static final Gson GSON = PRETTY
+			? new GsonBuilder().setPrettyPrinting().excludeFieldsWithoutExposeAnnotation().create()
+			: new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+
+	// responses without content are errors and plain messages for arbitrary paths,
+	// so they are recorded under a single name
+	private static final String WITHOUT_CONTENT = "withoutContent";
 
 	private static class PaginationInfo {
 
 		@Expose
 		long limit, offset, max;
 
-		private PaginationInfo(long limit, long offset, long max) {
+		// a cursor pointing behind the last element (omitted on the last page)
+		@Expose
+		String next;
+
+		private PaginationInfo(long limit, long offset, long max, String next) {
 			this.limit = limit;
 			this.offset = offset;
 			this.max = max;
+			this.next = next;
 		}
 	}
-	
+
 	private static String doRender(JsonObject jsonObject) {
-		return GSON.toJson(jsonObject);
+		long start = System.nanoTime();
+		String result = GSON.toJson(jsonObject);
+		record(WITHOUT_CONTENT, System.nanoTime() - start, result.getBytes(StandardCharsets.UTF_8).length);
+		return result;
 	}
 
-	protected static String render(Object model, Request request) {
-		return doRender(prepareWithDefaultFields(model, request));
+	/**
+	 * Write the model as the content of a response.
+	 *
+	 * @param route
+	 *            A fixed name of the route, under which the rendering is measured.
+	 * @return What the route should return, the response is complete.
+	 */
+	protected static Object render(String route, Object model, Request request, Response response)
+			throws IOException {
+		return stream(route, model, null, request, response);
 	}
-	
-	// renders only the information contained in every response without a main model 
+
+	// renders only the information contained in every response without a main model
 	protected static String renderWithoutContent(Request request) {
 		return doRender(prepareWithDefaultFields("", request));
 	}
 
-	protected static String renderPaginatedResult(Collection<? extends Object> objects, Request request, long limit,
-			long offset, long max) {
-		JsonObject result = prepareWithDefaultFields(objects, request);
+	protected static Object renderPaginatedResult(String route, Collection<? extends Object> objects,
+			Request request, Response response, long limit, long offset, long max) throws IOException {
+		return renderPaginatedResult(route, objects, request, response, limit, offset, max, null);
+	}
 
-		JsonElement pagination = GSON.toJsonTree(new PaginationInfo(limit, offset, max));
-		result.add("pagination", pagination);
+	protected static Object renderPaginatedResult(String route, Collection<? extends Object> objects,
+			Request request, Response response, long limit, long offset, long max, String next) throws IOException {
+		return stream(route, objects, new PaginationInfo(limit, offset, max, next), request, response);
+	}
 
-		return doRender(result);
+	// renders a plain message in the format used between us and the workbench
+	// servers, without any session information
+	protected static String renderRemoteMessage(String message) {
+		JsonObject result = new JsonObject();
+		result.addProperty("message", message);
+		return GSON.toJson(result);
 	}
 
 	// read a json object but wrap any json syntax exceptions
@@ -62,6 +113,43 @@ class JsonTransformer {
 		}
 	}
 
+	private static Object stream(String route, Object model, PaginationInfo pagination, Request request,
+			Response response) throws IOException {
+		HttpServletResponse raw = response.raw();
+		if (raw.getContentType() == null) {
+			raw.setContentType("application/json");
+		}
+		raw.setCharacterEncoding("UTF-8");
+
+		long start = System.nanoTime();
+		CountingOutputStream counter = new CountingOutputStream(raw.getOutputStream());
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(counter, StandardCharsets.UTF_8))) {
+			JsonWriter writer = new JsonWriter(out);
+			writer.setSerializeNulls(false);
+			if (PRETTY) {
+				writer.setIndent("  ");
+			}
+
+			writer.beginObject();
+			writer.name("messages");
+			GSON.toJson(SessionUtil.clearUserMessages(request), Collection.class, writer);
+			writer.name("user");
+			GSON.toJson(SessionUtil.getCurrentUser(request), User.class, writer);
+			writer.name("content");
+			GSON.toJson(model, (model == null) ? Object.class : model.getClass(), writer);
+			if (pagination != null) {
+				writer.name("pagination");
+				GSON.toJson(pagination, PaginationInfo.class, writer);
+			}
+			writer.endObject();
+			writer.flush();
+		}
+		record(route, System.nanoTime() - start, counter.getByteCount());
+
+		// the response is committed, spark does not write a body of its own
+		return raw;
+	}
+
 	private static JsonObject prepareWithDefaultFields(Object model, Request request) {
 		JsonElement content = GSON.toJsonTree(model);
 
@@ -83,4 +171,9 @@ class JsonTransformer {
 		return root;
 	}
 
+	private static void record(String route, long nanos, long bytes) {
+		Metrics.recordNanos("json.render." + route, nanos);
+		Metrics.add("json.bytes." + route, bytes);
+	}
+
 }
@@ -0,0 +1,13 @@
+package benchly.controller;
+
+import benchly.util.Metrics;
+import spark.Route;
+
+public class MetricsController extends Controller {
+
+	public static Route index = (request, response) -> {
+		ensureAdminUser(request, "Only admin users may view metrics.");
+		return JsonTransformer.render("metrics.index", Metrics.snapshot(), request, response);
+	};
+
+}
@@ -0,0 +1,68 @@
+package benchly.controller;
+
+import static spark.Spark.halt;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import benchly.Benchly;
+import benchly.database.JobDao;
+import benchly.error.ResourceNotFoundError;
+import benchly.model.Job;
+import benchly.remote.PushedJobEventsTask;
+import benchly.util.RequestUtil;
+import benchly.util.SharedSecretSignature;
+import spark.Request;
+import spark.Route;
+
+/**
+ * Routes called by the workbench servers instead of users. Requests are not
+ * tied to a session, but have to be signed with the shared secret.
+ */
+public class RemoteController extends Controller {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RemoteController.class);
+
+	public static Route jobEvents = (request, response) -> {
+		byte[] body = ensureSignedRequest(request);
+		Job job = ensureSingleJobByIdFromRoute(request);
+
+		String json = new String(body, StandardCharsets.UTF_8);
+		int saved = new PushedJobEventsTask(job, json).call();
+
+		return JsonTransformer.renderRemoteMessage("Recorded " + saved + " events.");
+	};
+
+	// returns the request body if the request carries a valid signature, halts
+	// otherwise
+	private static byte[] ensureSignedRequest(Request request) {
+		if (!Benchly.sharedSecretIsAvailable()) {
+			LOG.warn("Rejecting remote request, no shared secret is configured: " + request.pathInfo());
+			halt(403, JsonTransformer.renderRemoteMessage("This server does not accept remote requests."));
+		}
+
+		byte[] body = request.bodyAsBytes();
+		String timestamp = request.headers(SharedSecretSignature.TIMESTAMP_HEADER);
+		String signature = request.headers(SharedSecretSignature.SIGNATURE_HEADER);
+		if (!SharedSecretSignature.verify(Benchly.readSharedSecret(), timestamp, signature, request.pathInfo(),
+				body)) {
+			LOG.warn("Rejecting remote request with invalid signature: " + request.pathInfo());
+			halt(403, JsonTransformer.renderRemoteMessage("Invalid request signature."));
+		}
+		return body;
+	}
+
+	private static Job ensureSingleJobByIdFromRoute(Request request) throws ResourceNotFoundError, SQLException {
+		long id = RequestUtil.parseIdParam(request);
+		Job job = JobDao.fetchById(id);
+
+		if (job == null) {
+			throw new ResourceNotFoundError("No job for id: '" + id + "'");
+		}
+		return job;
+	}
+
+}
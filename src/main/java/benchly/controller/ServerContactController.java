@@ -11,6 +11,7 @@ import benchly.model.ServerContact;
 import benchly.model.StatusReport;
 import benchly.remote.ServerNameCheckTask;
 import benchly.remote.ServerStatusReportTask;
+import benchly.util.PageCursor;
 import benchly.util.RequestUtil;
 import benchly.util.RequestUtil.PaginationParams;
 import spark.Request;
@@ -25,7 +26,8 @@ public class ServerContactController extends Controller {
 		List<ServerContact> contacts = ServerContactDao.fetchAll(pagination);
 		long max = ServerContactDao.count();
 
-		return JsonTransformer.renderPaginatedResult(contacts, request, pagination.limit, pagination.offset, max);
+		return JsonTransformer.renderPaginatedResult("serverContacts.index", contacts, request, response,
+				pagination.limit, pagination.offset, max);
 	};
 
 	public static Route indexReports = (request, response) -> {
@@ -36,7 +38,9 @@ public class ServerContactController extends Controller {
 		List<StatusReport> reports = ServerContactDao.fetchReports(pagination, contact);
 		long max = ServerContactDao.countReports(contact);
 
-		return JsonTransformer.renderPaginatedResult(reports, request, pagination.limit, pagination.offset, max);
+		String next = PageCursor.nextToken(reports, pagination, StatusReport::getCollectedAt, StatusReport::getId);
+		return JsonTransformer.renderPaginatedResult("serverContacts.indexReports", reports, request, response,
+				pagination.limit, pagination.offset, max, next);
 	};
 
 	public static Route create = (request, response) -> {
@@ -51,9 +55,9 @@ public class ServerContactController extends Controller {
 		ServerContactDao.create(contact);
 
 		// schedule a deferred status check that will actually be persisted now
-		BenchlyScheduler.get().submit(new ServerStatusReportTask(contact));
+		new ServerStatusReportTask(contact, BenchlyScheduler.get()).run();
 
-		return JsonTransformer.render(contact, request);
+		return JsonTransformer.render("serverContacts.create", contact, request, response);
 	};
 
 	public static Route show = (request, response) -> {
@@ -61,7 +65,7 @@ public class ServerContactController extends Controller {
 
 		ServerContact contact = ensureSingleContactByIdFromRoute(request);
 
-		return JsonTransformer.render(contact, request);
+		return JsonTransformer.render("serverContacts.show", contact, request, response);
 	};
 
 	public static Route update = (request, response) -> {
@@ -80,7 +84,7 @@ public class ServerContactController extends Controller {
 			throw new ServerAccessError("The server reports a different name: '" + name + "'");
 		}
 
-		return JsonTransformer.render(oldContact, request);
+		return JsonTransformer.render("serverContacts.update", oldContact, request, response);
 	};
 
 	private static ServerContact ensureSingleContactByIdFromRoute(Request request)
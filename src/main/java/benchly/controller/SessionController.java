@@ -69,7 +69,7 @@ public class SessionController extends Controller {
 		if (user == null) {
 			throw new ResourceNotFoundError("No user for the current session.");
 		} else {
-			return JsonTransformer.render(user, request);
+			return JsonTransformer.render("session.showLoggedInUser", user, request, response);
 		}
 	};
 
@@ -1,14 +1,31 @@
 package benchly.controller;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
 
 import javax.servlet.MultipartConfigElement;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.Part;
 
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,12 +35,21 @@ import benchly.error.InvalidModelException;
 import benchly.error.InvalidRequestException;
 import benchly.error.ResourceNotFoundError;
 import benchly.error.StorageAccessError;
+import benchly.model.PresignedUrl;
 import benchly.model.StorageConfig;
 import benchly.model.StorageFileMeta;
+import benchly.model.StoragePermission;
+import benchly.model.StorageTransfer;
+import benchly.model.StorageUpload;
+import benchly.model.StorageUploadPart;
 import benchly.model.User;
+import benchly.remote.ArchiveStreamer;
 import benchly.remote.StorageAccess;
 import benchly.remote.StorageConfigRefreshTask;
+import benchly.remote.StorageTransferTask;
+import benchly.util.PageCursor;
 import benchly.util.RequestUtil;
+import benchly.util.RequestUtil.PaginationParams;
 import spark.Request;
 import spark.Route;
 import spark.utils.StringUtils;
@@ -32,12 +58,14 @@ public class StorageController extends Controller {
 
 	private static Logger LOG = LoggerFactory.getLogger(StorageController.class);
 
+	private static final List<String> FILE_SORT_COLUMNS = Arrays.asList("name", "size", "lastModified");
+
 	public static Route index = (request, response) -> {
 		// no pagination option on purpose as we do not expect users to possess that
 		// many storage configurations and this only shows an index on a per-user basis
 		User user = ensureLoggedInUser(request, "Only registered users may view storage configurations.");
 		List<StorageConfig> configs = StorageDao.fetchAcessible(user);
-		return JsonTransformer.render(configs, request);
+		return JsonTransformer.render("storage.index", configs, request, response);
 	};
 
 	public static Route show=(request,response)->{User user=ensureLoggedInUser(request,"Only registered users may view storage configurations.");StorageConfig config=ensureStorageConfigFromRequest(request);ensureUserMayAccessConfig(user,config,request);
@@ -46,7 +74,7 @@ public class StorageController extends Controller {
 	// configuration
 	if(Boolean.parseBoolean(request.queryParams("refresh"))){LOG.debug("Explicit request for file meta registered for config: "+config.getId());
 
-	try{BenchlyScheduler.get().submit(new StorageConfigRefreshTask(config)).get();}catch(
+	try{StorageConfigRefreshTask.submit(config, BenchlyScheduler.get()).get();}catch(
 	ExecutionException e)
 	{
 		throw new StorageAccessError("Unable to refresh storage file meta.", e.getCause());
@@ -57,7 +85,7 @@ public class StorageController extends Controller {
 	// show
 	if(Boolean.parseBoolean(request.queryParams("credential"))){config.generateNewEncryptedCredential();}
 
-	return JsonTransformer.render(config,request);};
+	return JsonTransformer.render("storage.show", config,request,response);};
 
 	public static Route create = (request, response) -> {
 		User user = ensureLoggedInUser(request, "Only registered users may create storage configurations.");
@@ -71,7 +99,7 @@ public class StorageController extends Controller {
 		long rowCount = StorageDao.create(config);
 		ensureRowCountIsOne(rowCount, "create storage configuration");
 
-		return JsonTransformer.render(config, request);
+		return JsonTransformer.render("storage.create", config, request, response);
 	};
 
 	public static Route update = (request, response) -> {
@@ -87,10 +115,11 @@ public class StorageController extends Controller {
 		if (!target.validate()) {
 			throw new InvalidModelException(target);
 		}
-		long rowCount = StorageDao.update(target);
+		long rowCount = StorageDao.updateCredential(target);
 		ensureRowCountIsOne(rowCount, "update storage configuration");
+		StorageAccess.getInstance().invalidate(target);
 
-		return JsonTransformer.render(target, request);
+		return JsonTransformer.render("storage.update", target, request, response);
 	};
 
 	public static Route destroy = (request, response) -> {
@@ -101,15 +130,55 @@ public class StorageController extends Controller {
 
 		int rowCount = StorageDao.delete(config);
 		ensureRowCountIsOne(rowCount, "delete storage configuration");
+		StorageAccess.getInstance().invalidate(config);
+
+		return JsonTransformer.render("storage.destroy", config, request, response);
+	};
+
+	/**
+	 * List the config's files a page at a time. The names may be filtered by a
+	 * "prefix" and a "search" term, "sort" is one of "name" (default), "size" or
+	 * "lastModified" and "order" is "asc" (default) or "desc".
+	 */
+	public static Route indexFiles = (request, response) -> {
+		StorageConfig config = ensureStorageConfigWithFileAccess(request);
+		PaginationParams pagination = RequestUtil.parsePaginationParams(request);
+
+		String sort = StringUtils.isBlank(request.queryParams("sort")) ? "name" : request.queryParams("sort");
+		if (!FILE_SORT_COLUMNS.contains(sort)) {
+			throw new InvalidRequestException("Files may be sorted by one of: " + FILE_SORT_COLUMNS);
+		}
+		boolean ascending = !"desc".equalsIgnoreCase(request.queryParams("order"));
+		String prefix = request.queryParams("prefix");
+		String search = request.queryParams("search");
+
+		List<StorageFileMeta> files = StorageDao.fetchFilesMeta(config, prefix, search, sort, ascending, pagination);
+		long max = StorageDao.countFilesMeta(config, prefix, search);
+		return JsonTransformer.renderPaginatedResult("storage.indexFiles", files, request, response, pagination.limit,
+				pagination.offset, max);
+	};
+
+	/**
+	 * List the users that were given access to the config a page at a time.
+	 */
+	public static Route indexPermissions = (request, response) -> {
+		User user = ensureLoggedInUser(request, "Only registered users may view storage configurations.");
+		StorageConfig config = ensureStorageConfigFromRequest(request);
+		ensureUserMayAccessConfig(user, config, request);
+		PaginationParams pagination = RequestUtil.parsePaginationParams(request);
 
-		return JsonTransformer.render(config, request);
+		List<StoragePermission> permissions = StorageDao.fetchPermissions(config, pagination);
+		String next = PageCursor.nextToken(permissions, pagination, StoragePermission::getCreatedAt,
+				StoragePermission::getId);
+		return JsonTransformer.renderPaginatedResult("storage.indexPermissions", permissions, request, response,
+				pagination.limit, pagination.offset, config.getPermissionCount(), next);
 	};
 
 	public static Route showFileMeta = (request, response) -> {
 		StorageConfig config = ensureStorageConfigWithFileAccess(request);
 
 		StorageFileMeta fileMeta = ensureFileMetaWithConfigFromRequest(config, request);
-		return JsonTransformer.render(fileMeta, request);
+		return JsonTransformer.render("storage.showFileMeta", fileMeta, request, response);
 	};
 
 	public static Route downloadFile = (request, response) -> {
@@ -118,10 +187,109 @@ public class StorageController extends Controller {
 
 		response.raw().setHeader("Content-Disposition", "attachment; filename=" + fileMeta.getName());
 
-		StorageAccess.getInstance().streamFileToResponse(config, fileMeta, response.raw());
+		StorageAccess.getInstance().streamFileToResponse(config, fileMeta, request.raw(), response.raw());
+		return response.raw();
+	};
+
+	/**
+	 * Download several files as a single zip or tar archive ("format"), which is
+	 * built while it is sent. The files are given as comma separated "ids" or by a
+	 * name "prefix".
+	 */
+	public static Route downloadArchive = (request, response) -> {
+		StorageConfig config = ensureStorageConfigWithFileAccess(request);
+
+		String formatParam = StringUtils.isBlank(request.queryParams("format")) ? "zip" : request.queryParams("format");
+		ArchiveStreamer.Format format = ArchiveStreamer.Format.fromExtension(formatParam);
+		if (format == null) {
+			throw new InvalidRequestException("Archives may be downloaded as zip or tar, not: " + formatParam);
+		}
+
+		String idsParam = request.queryParams("ids");
+		String prefix = request.queryParams("prefix");
+		List<StorageFileMeta> files;
+		if (!StringUtils.isBlank(idsParam)) {
+			List<Long> ids = new ArrayList<>();
+			try {
+				for (String id : idsParam.split(",")) {
+					ids.add(Long.parseLong(id.trim()));
+				}
+			} catch (NumberFormatException e) {
+				throw new InvalidRequestException("File ids have to be numbers: " + idsParam);
+			}
+			files = StorageDao.fetchFilesMeta(config, ids);
+			if (files.size() != new HashSet<>(ids).size()) {
+				throw new InvalidRequestException("Not all files given belong to the storage config.");
+			}
+			files.sort(Comparator.comparing(StorageFileMeta::getName));
+		} else if (prefix != null) {
+			files = StorageDao.fetchFilesMetaWithPrefix(config, prefix);
+		} else {
+			throw new InvalidRequestException("Either file ids or a name prefix are needed for an archive.");
+		}
+
+		String archiveName = (prefix == null) ? "" : FilenameUtils.getName(prefix.replaceAll("/+$", ""));
+		archiveName = (StringUtils.isBlank(archiveName) ? "files" : archiveName) + "." + format.getExtension();
+		response.type(format.getContentType());
+		response.raw().setHeader("Content-Disposition", "attachment; filename=" + archiveName);
+
+		try (OutputStream out = response.raw().getOutputStream()) {
+			StorageAccess.getInstance().streamArchive(config, files, format, out);
+		}
 		return response.raw();
 	};
 
+	/**
+	 * Sign a request with which the client downloads the file straight from the
+	 * provider, without passing the content through this server.
+	 */
+	public static Route signDownload = (request, response) -> {
+		StorageConfig config = ensureStorageConfigWithFileAccess(request);
+		StorageFileMeta fileMeta = ensureFileMetaWithConfigFromRequest(config, request);
+
+		PresignedUrl signed = StorageAccess.getInstance().signDownload(config, fileMeta);
+		return JsonTransformer.render("storage.signDownload", signed, request, response);
+	};
+
+	/**
+	 * Sign a request with which the client uploads a file straight to the
+	 * provider. The body names the file and may give its "size" and
+	 * "contentType". The client reports the finished upload to
+	 * {@link #completeSignedUpload}.
+	 */
+	public static Route signUpload = (request, response) -> {
+		StorageConfig config = ensureStorageConfigWithFileAccess(request);
+
+		PresignedUrl upload = JsonTransformer.readRequestBody(request.body(), PresignedUrl.class);
+		if (!upload.validate()) {
+			throw new InvalidModelException(upload);
+		}
+
+		PresignedUrl signed = StorageAccess.getInstance().signUpload(config, upload);
+		return JsonTransformer.render("storage.signUpload", signed, request, response);
+	};
+
+	/**
+	 * Record a file uploaded with a signed request. The body gives the file's
+	 * "name", the file's meta information is taken from the provider.
+	 */
+	public static Route completeSignedUpload = (request, response) -> {
+		StorageConfig config = ensureStorageConfigWithFileAccess(request);
+
+		PresignedUrl upload = JsonTransformer.readRequestBody(request.body(), PresignedUrl.class);
+		if (!upload.validate()) {
+			throw new InvalidModelException(upload);
+		}
+
+		StorageFileMeta fileMeta = StorageAccess.getInstance().completeSignedUpload(config, upload.getName());
+		if (fileMeta == null) {
+			throw new InvalidRequestException("The file has not arrived at the storage provider: " + upload.getName());
+		}
+		fileMeta = StorageDao.recordFileMeta(fileMeta);
+
+		return JsonTransformer.render("storage.completeSignedUpload", fileMeta, request, response);
+	};
+
 	public static Route uploadFile = (request, response) -> {
 		StorageConfig config = ensureStorageConfigWithFileAccess(request);
 
@@ -147,9 +315,233 @@ public class StorageController extends Controller {
 		}
 
 		fileMeta.setLastModified(Date.from(Instant.now()));
-		StorageDao.create(fileMeta);
+		// the file may replace one with the same name
+		fileMeta = StorageDao.recordFileMeta(fileMeta);
+
+		return JsonTransformer.render("storage.uploadFile", fileMeta, request, response);
+	};
+
+	/**
+	 * Like {@link #uploadFile}, but the multipart body is parsed while it is read
+	 * and the file is piped straight into the storage upload, without spooling it
+	 * to local disk first. The file has to be sent in the field "upload", fields
+	 * before it are skipped.
+	 */
+	public static Route uploadFileStreaming = (request, response) -> {
+		StorageConfig config = ensureStorageConfigWithFileAccess(request);
+
+		HttpServletRequest raw = unwrap(request.raw());
+		if (!ServletFileUpload.isMultipartContent(raw)) {
+			throw new InvalidRequestException("Expected a multipart upload.");
+		}
+
+		StorageFileMeta fileMeta = null;
+		try {
+			FileItemIterator items = new ServletFileUpload().getItemIterator(raw);
+			while (fileMeta == null && items.hasNext()) {
+				FileItemStream item = items.next();
+				if (item.isFormField() || !"upload".equals(item.getFieldName())) {
+					continue;
+				}
+				String newFileName = FilenameUtils.getName(item.getName());
+				if (StringUtils.isBlank(newFileName)) {
+					newFileName = "unknown-file-name";
+				}
+				try (InputStream in = item.openStream()) {
+					fileMeta = StorageAccess.getInstance().streamToNewFile(config, newFileName, in);
+				}
+			}
+		} catch (FileUploadException e) {
+			throw new InvalidRequestException("Unable to read multipart upload: " + e.getMessage(), e);
+		}
+		if (fileMeta == null) {
+			throw new InvalidRequestException("No file part specified for expected mulitpart upload.");
+		}
+
+		fileMeta.setLastModified(Date.from(Instant.now()));
+		// the file may replace one with the same name
+		fileMeta = StorageDao.recordFileMeta(fileMeta);
+
+		return JsonTransformer.render("storage.uploadFileStreaming", fileMeta, request, response);
+	};
+
+	/**
+	 * Start a resumable upload. The body names the file and gives its size, the
+	 * client may suggest a chunk size. The answer contains the chunk size and
+	 * number of chunks to use.
+	 */
+	public static Route createUpload = (request, response) -> {
+		User user = ensureLoggedInUser(request, "Only registered users may access files.");
+		StorageConfig config = ensureStorageConfigFromRequest(request);
+		ensureUserMayAccessConfig(user, config, request);
+
+		StorageUpload upload = JsonTransformer.readRequestBody(request.body(), StorageUpload.class);
+		upload.setStorageConfig(config);
+		upload.setOwner(user);
+		if (!upload.validate()) {
+			throw new InvalidModelException(upload);
+		}
+
+		StorageAccess.getInstance().initiateUpload(config, upload);
+		long rowCount = StorageDao.create(upload);
+		ensureRowCountIsOne(rowCount, "create upload");
+
+		upload.setReceivedChunks(Collections.emptyList());
+		return JsonTransformer.render("storage.createUpload", upload, request, response);
+	};
+
+	/**
+	 * Show a resumable upload with the numbers of the chunks that arrived so far.
+	 */
+	public static Route showUpload = (request, response) -> {
+		StorageUpload upload = ensureUploadWithAccess(request);
+
+		upload.setReceivedChunks(StorageDao.fetchUploadParts(upload).stream().map(StorageUploadPart::getNumber)
+				.collect(Collectors.toList()));
+		return JsonTransformer.render("storage.showUpload", upload, request, response);
+	};
+
+	/**
+	 * Receive a chunk of a resumable upload as the raw request body. Chunks may be
+	 * sent in parallel and in any order, sending a chunk again replaces it.
+	 */
+	public static Route uploadChunk = (request, response) -> {
+		StorageUpload upload = ensureUploadWithAccess(request);
+
+		long number = RequestUtil.parseIdParam(request, ":number");
+		if (number < 1 || number > upload.getChunkCount()) {
+			throw new InvalidRequestException("Chunk numbers have to be between 1 and " + upload.getChunkCount());
+		}
+
+		StorageUploadPart part;
+		try (InputStream in = unwrap(request.raw()).getInputStream()) {
+			part = StorageAccess.getInstance().uploadChunk(upload.getStorageConfig(), upload, (int) number, in);
+		}
+		StorageDao.saveUploadPart(part);
+
+		upload.setReceivedChunks(Collections.singletonList(part.getNumber()));
+		return JsonTransformer.render("storage.uploadChunk", upload, request, response);
+	};
+
+	/**
+	 * Complete a resumable upload once all chunks have arrived.
+	 */
+	public static Route completeUpload = (request, response) -> {
+		StorageUpload upload = ensureUploadWithAccess(request);
+
+		List<StorageUploadPart> parts = StorageDao.fetchUploadParts(upload);
+		ensureAllChunksReceived(upload, parts);
+
+		StorageFileMeta fileMeta = StorageAccess.getInstance().completeUpload(upload.getStorageConfig(), upload,
+				parts);
+		fileMeta.setLastModified(Date.from(Instant.now()));
+		fileMeta = StorageDao.completeUpload(upload, fileMeta);
+
+		return JsonTransformer.render("storage.completeUpload", fileMeta, request, response);
+	};
+
+	public static Route abortUpload = (request, response) -> {
+		StorageUpload upload = ensureUploadWithAccess(request);
+
+		StorageAccess.getInstance().abortUpload(upload.getStorageConfig(), upload);
+		int rowCount = StorageDao.deleteUpload(upload);
+		ensureRowCountIsOne(rowCount, "delete upload");
 
-		return JsonTransformer.render(fileMeta, request);
+		return JsonTransformer.render("storage.abortUpload", upload, request, response);
+	};
+
+	/**
+	 * Copy files from one config to another on the server. The body names the
+	 * "sourceId" and "targetId" of the configs and the "fileIds" of the source's
+	 * files to copy. The transfer runs in the background.
+	 */
+	public static Route createTransfer = (request, response) -> {
+		User user = ensureLoggedInUser(request, "Only registered users may transfer files.");
+
+		StorageTransfer transfer = JsonTransformer.readRequestBody(request.body(), StorageTransfer.class);
+		transfer.setOwner(user);
+		transfer.setSource(ensureStorageConfigById(transfer.getSourceId()));
+		transfer.setTarget(ensureStorageConfigById(transfer.getTargetId()));
+		ensureUserMayAccessConfig(user, transfer.getSource(), request);
+		ensureUserMayAccessConfig(user, transfer.getTarget(), request);
+		if (!transfer.validate()) {
+			throw new InvalidModelException(transfer);
+		}
+
+		List<StorageFileMeta> files = StorageDao.fetchFilesMeta(transfer.getSource(), transfer.getFileIds());
+		if (files.size() != new HashSet<>(transfer.getFileIds()).size()) {
+			throw new InvalidRequestException("Not all files given to transfer belong to the source storage config.");
+		}
+		long rowCount = StorageDao.create(transfer, files);
+		ensureRowCountIsOne(rowCount, "create storage transfer");
+
+		StorageTransferTask.submit(transfer, BenchlyScheduler.get());
+		return JsonTransformer.render("storage.createTransfer", transfer, request, response);
+	};
+
+	public static Route indexTransfers = (request, response) -> {
+		User user = ensureLoggedInUser(request, "Only registered users may view transfers.");
+		PaginationParams pagination = RequestUtil.parsePaginationParams(request);
+
+		List<StorageTransfer> transfers;
+		long max;
+		if (user.isAdmin()) {
+			transfers = StorageDao.fetchTransfers(pagination);
+			max = StorageDao.countTransfers();
+		} else {
+			transfers = StorageDao.fetchTransfersBelongingTo(user, pagination);
+			max = StorageDao.countTransfersBelongingTo(user);
+		}
+		transfers.forEach(StorageTransferTask::applyLiveProgress);
+
+		String next = PageCursor.nextToken(transfers, pagination, StorageTransfer::getCreatedAt,
+				StorageTransfer::getId);
+		return JsonTransformer.renderPaginatedResult("storage.indexTransfers", transfers, request, response,
+				pagination.limit, pagination.offset, max, next);
+	};
+
+	public static Route showTransfer = (request, response) -> {
+		StorageTransfer transfer = ensureTransferWithAccess(request);
+
+		StorageTransferTask.applyLiveProgress(transfer);
+		return JsonTransformer.render("storage.showTransfer", transfer, request, response);
+	};
+
+	/**
+	 * Continue a failed or cancelled transfer with the files not copied yet.
+	 */
+	public static Route resumeTransfer = (request, response) -> {
+		StorageTransfer transfer = ensureTransferWithAccess(request);
+
+		if (transfer.isActive()) {
+			throw new InvalidRequestException("The transfer is still in progress.");
+		}
+		if (transfer.getState() == StorageTransfer.State.SUCCEEDED) {
+			throw new InvalidRequestException("The transfer is already complete.");
+		}
+		// the files in progress when it was cancelled may not have been copied yet
+		if (StorageTransferTask.isRunning(transfer)) {
+			throw new InvalidRequestException("The transfer is still finishing files in progress, try again shortly.");
+		}
+		StorageDao.updateTransferState(transfer, StorageTransfer.State.PENDING, null);
+		StorageTransferTask.submit(transfer, BenchlyScheduler.get());
+
+		return JsonTransformer.render("storage.resumeTransfer", transfer, request, response);
+	};
+
+	/**
+	 * Stop a transfer, files already copied are kept.
+	 */
+	public static Route cancelTransfer = (request, response) -> {
+		StorageTransfer transfer = ensureTransferWithAccess(request);
+
+		if (!transfer.isActive()) {
+			throw new InvalidRequestException("The transfer is not in progress.");
+		}
+		StorageDao.updateTransferState(transfer, StorageTransfer.State.CANCELLED, null);
+		StorageTransferTask.cancel(transfer);
+
+		return JsonTransformer.render("storage.cancelTransfer", transfer, request, response);
 	};
 
 	public static Route destroyFile = (request, response) -> {
@@ -160,12 +552,15 @@ public class StorageController extends Controller {
 
 		// TODO: Initialise a deferred refresh of the config's files
 
-		return JsonTransformer.render(fileMeta, request);
+		return JsonTransformer.render("storage.destroyFile", fileMeta, request, response);
 	};
 
 	private static StorageConfig ensureStorageConfigFromRequest(Request request)
 			throws SQLException, ResourceNotFoundError {
-		long id = RequestUtil.parseIdParam(request);
+		return ensureStorageConfigById(RequestUtil.parseIdParam(request));
+	}
+
+	private static StorageConfig ensureStorageConfigById(long id) throws SQLException, ResourceNotFoundError {
 		StorageConfig config = StorageDao.fetchConfig(id);
 
 		if (config == null) {
@@ -185,6 +580,70 @@ public class StorageController extends Controller {
 		return fileMeta;
 	}
 
+	// uploads may only be continued by the user who started them
+	private static StorageUpload ensureUploadWithAccess(Request request) throws SQLException, ResourceNotFoundError {
+		User user = ensureLoggedInUser(request, "Only registered users may access files.");
+		StorageConfig config = ensureStorageConfigFromRequest(request);
+		ensureUserMayAccessConfig(user, config, request);
+
+		long uploadId = RequestUtil.parseIdParam(request, ":uploadId");
+		StorageUpload upload = StorageDao.fetchUpload(config, uploadId);
+		if (upload == null) {
+			String msg = "No upload present for this storage configuration and uploadId. (config: %d, upload: %d)";
+			throw new ResourceNotFoundError(String.format(msg, config.getId(), uploadId));
+		}
+		if (!user.isAdmin() && upload.getOwner().getId() != user.getId()) {
+			haltForbbiden(request, "Only the user who started the upload may continue it.");
+		}
+		upload.setStorageConfig(config);
+		return upload;
+	}
+
+	// each chunk has to be present with its expected size, otherwise the provider
+	// would fail with an unclear message or complete a truncated file
+	private static void ensureAllChunksReceived(StorageUpload upload, List<StorageUploadPart> parts)
+			throws InvalidRequestException {
+		Map<Integer, StorageUploadPart> byNumber = new HashMap<>();
+		for (StorageUploadPart part : parts) {
+			byNumber.put(part.getNumber(), part);
+		}
+		int missing = 0;
+		int firstMissing = 0;
+		for (int number = 1; number <= upload.getChunkCount(); number++) {
+			StorageUploadPart part = byNumber.get(number);
+			if (part == null) {
+				firstMissing = (missing == 0) ? number : firstMissing;
+				missing += 1;
+			} else if (part.getSize() != upload.expectedChunkSize(number)) {
+				throw new InvalidRequestException(String.format("Chunk %d has %d instead of %d bytes.", number,
+						part.getSize(), upload.expectedChunkSize(number)));
+			}
+		}
+		if (missing > 0) {
+			throw new InvalidRequestException(String.format("%d of %d chunks have not been received, the first is %d.",
+					missing, upload.getChunkCount(), firstMissing));
+		}
+		if (byNumber.size() != upload.getChunkCount()) {
+			throw new InvalidRequestException("The upload has chunks beyond its chunk count.");
+		}
+	}
+
+	// transfers may be viewed and changed by the user who started them
+	private static StorageTransfer ensureTransferWithAccess(Request request)
+			throws SQLException, ResourceNotFoundError {
+		User user = ensureLoggedInUser(request, "Only registered users may view transfers.");
+
+		long id = RequestUtil.parseIdParam(request);
+		StorageTransfer transfer = StorageDao.fetchTransfer(id);
+		if (transfer == null) {
+			throw new ResourceNotFoundError("No storage transfer with id: '" + id + "'");
+		}
+		if (!user.isAdmin() && transfer.getOwner().getId() != user.getId()) {
+			haltForbbiden(request, "Only the user who started the transfer may access it.");
+		}
+		return transfer;
+	}
+
 	private static StorageConfig ensureStorageConfigWithFileAccess(Request request)
 			throws SQLException, ResourceNotFoundError {
 		User user = ensureLoggedInUser(request, "Only registered users may access files.");
@@ -210,6 +669,15 @@ public class StorageController extends Controller {
 		return user.getId() == config.getOwner().getId();
 	}
 
+	// Spark wraps the request such that the body is read into memory on first
+	// access, the streaming upload has to read from the actual request instead
+	private static HttpServletRequest unwrap(HttpServletRequest request) {
+		while (request instanceof HttpServletRequestWrapper) {
+			request = (HttpServletRequest) ((HttpServletRequestWrapper) request).getRequest();
+		}
+		return request;
+	}
+
 	private static void setupMultipartConfig(Request request) {
 		// TODO: Change this to another directory under our control only
 		String location = "/tmp/";
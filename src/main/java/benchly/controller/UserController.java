@@ -9,6 +9,7 @@ import org.slf4j.LoggerFactory;
 import benchly.database.UserDao;
 import benchly.error.ResourceNotFoundError;
 import benchly.model.User;
+import benchly.util.PageCursor;
 import benchly.util.RequestUtil;
 import benchly.util.RequestUtil.PaginationParams;
 import benchly.util.SessionUtil;
@@ -34,7 +35,7 @@ public class UserController extends Controller {
 
 		UserDao.create(user);
 
-		return JsonTransformer.render(user, request);
+		return JsonTransformer.render("users.create", user, request, response);
 	};
 
 	public static Route index = (request, response) -> {
@@ -44,13 +45,15 @@ public class UserController extends Controller {
 		List<User> users = UserDao.fetchAll(pagination);
 		long amount = UserDao.count();
 
-		return JsonTransformer.renderPaginatedResult(users, request, pagination.limit, pagination.offset, amount);
+		String next = PageCursor.nextToken(users, pagination, User::getCreatedAt, User::getId);
+		return JsonTransformer.renderPaginatedResult("users.index", users, request, response, pagination.limit,
+				pagination.offset, amount, next);
 	};
 
 	public static Route show = (request, response) -> {
 		ensureLoggedInUser(request, "Only logged in users may view other users information.");
 		User user = ensureUserFromRequesParams(request);
-		return JsonTransformer.render(user, request);
+		return JsonTransformer.render("users.show", user, request, response);
 	};
 
 	public static Route update = (request, response) -> {
@@ -80,7 +83,7 @@ public class UserController extends Controller {
 		long rowCount = UserDao.update(target);
 		ensureRowCountIsOne(rowCount, "update user");
 
-		return JsonTransformer.render(target, request);
+		return JsonTransformer.render("users.update", target, request, response);
 	};
 
 	public static Route destroy = (request, response) -> {
@@ -104,7 +107,7 @@ public class UserController extends Controller {
 		if (userDeletesSelf) {
 			return SessionController.logout.handle(request, response);
 		} else {
-			return JsonTransformer.render(target, request);
+			return JsonTransformer.render("users.destroy", target, request, response);
 		}
 	};
 
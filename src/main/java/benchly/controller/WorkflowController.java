@@ -13,6 +13,7 @@ import benchly.error.InvalidRequestException;
 import benchly.error.ResourceNotFoundError;
 import benchly.model.User;
 import benchly.model.Workflow;
+import benchly.util.PageCursor;
 import benchly.util.RequestUtil;
 import benchly.util.RequestUtil.PaginationParams;
 import benchly.util.SessionUtil;
@@ -30,7 +31,9 @@ public class WorkflowController extends Controller {
 		List<Workflow> workflows = WorkflowDao.fetchLatestVersions(pagination);
 		long amount = WorkflowDao.getCountOfLatestVersions();
 
-		return JsonTransformer.renderPaginatedResult(workflows, request, pagination.limit, pagination.offset, amount);
+		String next = PageCursor.nextToken(workflows, pagination, Workflow::getCreatedAt, Workflow::getId);
+		return JsonTransformer.renderPaginatedResult("workflows.index", workflows, request, response, pagination.limit,
+				pagination.offset, amount, next);
 	};
 
 	public static Route create = (request, response) -> {
@@ -43,13 +46,13 @@ public class WorkflowController extends Controller {
 		Workflow created = createNewWorkflow(workflow, user, request);
 
 		SessionUtil.addOkMessage(request, "Workflow created.");
-		return JsonTransformer.render(created, request);
+		return JsonTransformer.render("workflows.create", created, request, response);
 	};
 
 	public static Route show = (request, response) -> {
 		ensureLoggedInUser(request, "Only logged-in users may view workflows.");
 		Workflow workflow = ensureSingleWorkflowByVersionIdFromRoute(request);
-		return JsonTransformer.render(workflow, request);
+		return JsonTransformer.render("workflows.show", workflow, request, response);
 	};
 
 	public static Route showVersion = (request, response) -> {
@@ -62,7 +65,7 @@ public class WorkflowController extends Controller {
 			throw new ResourceNotFoundError("No workflow for id: '" + id + "' being a version of: " + versionId);
 		}
 
-		return JsonTransformer.render(workflow, request);
+		return JsonTransformer.render("workflows.showVersion", workflow, request, response);
 	};
 
 	public static Route update = (request, response) -> {
@@ -82,7 +85,7 @@ public class WorkflowController extends Controller {
 		// updating a workflow simply creates a new version
 		Workflow created = createNewWorkflow(newWorkflow, user, request);
 		SessionUtil.addOkMessage(request, "Workflow updated.");
-		return JsonTransformer.render(created, request);
+		return JsonTransformer.render("workflows.update", created, request, response);
 	};
 
 	public static Route destroy = (request, response) -> {
@@ -94,7 +97,7 @@ public class WorkflowController extends Controller {
 		LOG.debug("Deleted " + deletedRows + " versions of workflow " + workflow.getVersionId());
 
 		SessionUtil.addOkMessage(request, "Workflow deleted.");
-		return JsonTransformer.render(workflow, request);
+		return JsonTransformer.render("workflows.destroy", workflow, request, response);
 	};
 
 	// return a single workflow from an id supplied in the request route, throw an
@@ -0,0 +1,43 @@
+package benchly.database;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import benchly.util.Metrics;
+
+/**
+ * Reports the state of the database connection pool and the time spent
+ * waiting for connections to our metrics.
+ */
+class ConnectionPoolMetrics implements MetricsTrackerFactory {
+
+	private static final String PREFIX = "db.pool.";
+
+	@Override
+	public IMetricsTracker create(String poolName, PoolStats stats) {
+		Metrics.registerGauge(PREFIX + "active", stats::getActiveConnections);
+		Metrics.registerGauge(PREFIX + "idle", stats::getIdleConnections);
+		Metrics.registerGauge(PREFIX + "total", stats::getTotalConnections);
+		Metrics.registerGauge(PREFIX + "waitingThreads", stats::getPendingThreads);
+
+		return new IMetricsTracker() {
+
+			@Override
+			public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+				Metrics.recordNanos(PREFIX + "acquire", elapsedAcquiredNanos);
+			}
+
+			@Override
+			public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+				Metrics.recordMillis(PREFIX + "usage", elapsedBorrowedMillis);
+			}
+
+			@Override
+			public void recordConnectionTimeout() {
+				Metrics.increment(PREFIX + "timeouts");
+			}
+		};
+	}
+
+}
@@ -1,16 +1,22 @@
 package benchly.database;
 
 import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
-import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.jdbc.DataSourceConnectionSource;
 import com.j256.ormlite.support.ConnectionSource;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
 import benchly.Benchly;
+import benchly.Config;
 import benchly.model.AdminMessage;
 import benchly.model.Job;
 import benchly.model.JobMessage;
@@ -19,22 +25,34 @@ import benchly.model.StatusReport;
 import benchly.model.StorageConfig;
 import benchly.model.StorageFileMeta;
 import benchly.model.StoragePermission;
+import benchly.model.StorageUpload;
+import benchly.model.StorageTransfer;
+import benchly.model.StorageTransferItem;
+import benchly.model.StorageUploadPart;
 import benchly.model.User;
 import benchly.model.Workflow;
+import benchly.model.WorkflowDefinition;
 
 /**
- * A singleton class providing access to the sqlite database.
+ * A singleton class providing access to the database. Connections are taken
+ * from a pool, such that request threads and background tasks do not have to
+ * wait on each other.
  */
 class DatabaseHelper {
 
 	private static final Logger LOG = LoggerFactory.getLogger(DatabaseHelper.class);
 
 	private Dao<Workflow, Long> workflowDao = null;
+	private Dao<WorkflowDefinition, Long> workflowDefinitionDao = null;
 	private Dao<User, Long> userDao = null;
 	private Dao<Job, Long> jobDao = null;
 	private Dao<StorageConfig, Long> storageConfigDao = null;
 	private Dao<StoragePermission, Long> storagePermissionDao = null;
 	private Dao<StorageFileMeta, Long> storageFileMetaDao = null;
+	private Dao<StorageUpload, Long> storageUploadDao = null;
+	private Dao<StorageUploadPart, Long> storageUploadPartDao = null;
+	private Dao<StorageTransfer, Long> storageTransferDao = null;
+	private Dao<StorageTransferItem, Long> storageTransferItemDao = null;
 	private Dao<ServerContact, Long> serverContactDao = null;
 	private Dao<StatusReport, Long> statusReportDao = null;
 	private Dao<AdminMessage, Long> adminMessageDao = null;
@@ -42,11 +60,14 @@ class DatabaseHelper {
 
 	private ConnectionSource connectionSource;
 
+	private HikariDataSource dataSource;
+
 	private static DatabaseHelper instance = null;
 
-	private DatabaseHelper(final String jdbcUrl) {
+	private DatabaseHelper(final String jdbcUrl, final Config config) {
 		try {
-			connectionSource = new JdbcConnectionSource(jdbcUrl);
+			dataSource = new HikariDataSource(buildPoolConfig(jdbcUrl, config));
+			connectionSource = new DataSourceConnectionSource(dataSource, jdbcUrl);
 
 			// setup the tables if necessary
 			InitialSetup.setupTables(connectionSource);
@@ -55,11 +76,11 @@ class DatabaseHelper {
 		}
 	}
 
-	public static DatabaseHelper getInstance() {
+	public static synchronized DatabaseHelper getInstance() {
 		if (DatabaseHelper.instance == null) {
 
-			// the jdbc url is provided by the main program
-			instance = new DatabaseHelper(Benchly.getJdbcUrl());
+			// the jdbc url and pool settings are provided by the main program
+			instance = new DatabaseHelper(Benchly.getJdbcUrl(), Benchly.getConfig());
 
 			// insert the default user if necessary
 			// NOTE: After the instance is set, to allow calls to e.g. UserDao during setup
@@ -75,6 +96,13 @@ class DatabaseHelper {
 		return this.workflowDao;
 	}
 
+	protected Dao<WorkflowDefinition, Long> getWorkflowDefinitionDao() {
+		if (this.workflowDefinitionDao == null) {
+			this.workflowDefinitionDao = this.getMyDaoRuntimeExcept(connectionSource, WorkflowDefinition.class);
+		}
+		return this.workflowDefinitionDao;
+	}
+
 	protected Dao<User, Long> getUserDao() {
 		if (this.userDao == null) {
 			this.userDao = this.getMyDaoRuntimeExcept(connectionSource, User.class);
@@ -110,6 +138,34 @@ class DatabaseHelper {
 		return this.storageFileMetaDao;
 	}
 
+	protected Dao<StorageUpload, Long> getStorageUploadDao() {
+		if (this.storageUploadDao == null) {
+			this.storageUploadDao = this.getMyDaoRuntimeExcept(connectionSource, StorageUpload.class);
+		}
+		return this.storageUploadDao;
+	}
+
+	protected Dao<StorageUploadPart, Long> getStorageUploadPartDao() {
+		if (this.storageUploadPartDao == null) {
+			this.storageUploadPartDao = this.getMyDaoRuntimeExcept(connectionSource, StorageUploadPart.class);
+		}
+		return this.storageUploadPartDao;
+	}
+
+	protected Dao<StorageTransfer, Long> getStorageTransferDao() {
+		if (this.storageTransferDao == null) {
+			this.storageTransferDao = this.getMyDaoRuntimeExcept(connectionSource, StorageTransfer.class);
+		}
+		return this.storageTransferDao;
+	}
+
+	protected Dao<StorageTransferItem, Long> getStorageTransferItemDao() {
+		if (this.storageTransferItemDao == null) {
+			this.storageTransferItemDao = this.getMyDaoRuntimeExcept(connectionSource, StorageTransferItem.class);
+		}
+		return this.storageTransferItemDao;
+	}
+
 	protected Dao<ServerContact, Long> getServerContactDao() {
 		if (this.serverContactDao == null) {
 			this.serverContactDao = this.getMyDaoRuntimeExcept(connectionSource, ServerContact.class);
@@ -138,6 +194,30 @@ class DatabaseHelper {
 		return this.jobMessageDao;
 	}
 
+	private static HikariConfig buildPoolConfig(String jdbcUrl, Config config) {
+		HikariConfig result = new HikariConfig();
+		result.setPoolName("benchly-db");
+		result.setJdbcUrl(jdbcUrl);
+		result.setMinimumIdle(config.getDbPoolMin());
+		result.setMaximumPoolSize(config.getDbPoolMax());
+		result.setIdleTimeout(TimeUnit.SECONDS.toMillis(config.getDbPoolIdleTimeoutSeconds()));
+		result.setConnectionTimeout(TimeUnit.SECONDS.toMillis(config.getDbPoolTimeoutSeconds()));
+		if (!StringUtils.isBlank(config.getDbValidationQuery())) {
+			result.setConnectionTestQuery(config.getDbValidationQuery());
+		}
+		result.setMetricsTrackerFactory(new ConnectionPoolMetrics());
+
+		// with multiple connections on the same sqlite file, writers should wait for
+		// each other instead of failing immediately
+		if (jdbcUrl.startsWith("jdbc:sqlite:")) {
+			result.addDataSourceProperty("busy_timeout", Long.toString(result.getConnectionTimeout()));
+		}
+
+		LOG.info(String.format("Database pool size: %d - %d connections", result.getMinimumIdle(),
+				result.getMaximumPoolSize()));
+		return result;
+	}
+
 	// convenience method that wraps the SQL Exception on Dao Creation
 	private <D extends Dao<T, ?>, T> D getMyDaoRuntimeExcept(ConnectionSource connectionSource, Class<T> clazz) {
 		D result = null;
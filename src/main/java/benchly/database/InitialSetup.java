@@ -1,11 +1,22 @@
 package benchly.database;
 
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.j256.ormlite.dao.CloseableIterator;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.misc.TransactionManager;
 import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
 import com.j256.ormlite.table.TableUtils;
 
 import benchly.model.AdminMessage;
@@ -16,24 +27,246 @@ import benchly.model.StatusReport;
 import benchly.model.StorageConfig;
 import benchly.model.StorageFileMeta;
 import benchly.model.StoragePermission;
+import benchly.model.StorageUpload;
+import benchly.model.StorageTransfer;
+import benchly.model.StorageTransferItem;
+import benchly.model.StorageUploadPart;
 import benchly.model.User;
 import benchly.model.Workflow;
+import benchly.model.WorkflowDefinition;
 
 class InitialSetup {
 
 	private static final Logger LOG = LoggerFactory.getLogger(InitialSetup.class);
 
+	// rows migrated per query and transaction, such that large tables are not
+	// held in memory at once
+	private static final long MIGRATION_BATCH_SIZE = 500;
+
 	protected static void setupTables(final ConnectionSource connectionSource) throws SQLException {
-		TableUtils.createTableIfNotExists(connectionSource, Workflow.class);
-		TableUtils.createTableIfNotExists(connectionSource, User.class);
-		TableUtils.createTableIfNotExists(connectionSource, Job.class);
-		TableUtils.createTableIfNotExists(connectionSource, StorageConfig.class);
-		TableUtils.createTableIfNotExists(connectionSource, StoragePermission.class);
-		TableUtils.createTableIfNotExists(connectionSource, StorageFileMeta.class);
-		TableUtils.createTableIfNotExists(connectionSource, ServerContact.class);
-		TableUtils.createTableIfNotExists(connectionSource, StatusReport.class);
-		TableUtils.createTableIfNotExists(connectionSource, AdminMessage.class);
-		TableUtils.createTableIfNotExists(connectionSource, JobMessage.class);
+		createTableIfNotExists(connectionSource, Workflow.class);
+		createTableIfNotExists(connectionSource, WorkflowDefinition.class);
+		createTableIfNotExists(connectionSource, User.class);
+		createTableIfNotExists(connectionSource, Job.class);
+		createTableIfNotExists(connectionSource, StorageConfig.class);
+		createTableIfNotExists(connectionSource, StoragePermission.class);
+		createTableIfNotExists(connectionSource, StorageFileMeta.class);
+		createTableIfNotExists(connectionSource, StorageUpload.class);
+		createTableIfNotExists(connectionSource, StorageUploadPart.class);
+		createTableIfNotExists(connectionSource, StorageTransfer.class);
+		createTableIfNotExists(connectionSource, StorageTransferItem.class);
+		createTableIfNotExists(connectionSource, ServerContact.class);
+		createTableIfNotExists(connectionSource, StatusReport.class);
+		createTableIfNotExists(connectionSource, AdminMessage.class);
+		createTableIfNotExists(connectionSource, JobMessage.class);
+
+		// columns added to existing tables
+		addColumnIfNotExists(connectionSource, "job", "eventsPushedAt", "TIMESTAMP NULL");
+		addColumnIfNotExists(connectionSource, "storage_config", "refreshMarker", "TEXT NULL");
+		addColumnIfNotExists(connectionSource, "storage_config", "refreshedUpTo", "TEXT NULL");
+		addColumnIfNotExists(connectionSource, "workflow", "definitionRef", "BIGINT NULL");
+
+		// definitions that were stored with their workflows are moved out once
+		if (columnExists(connectionSource, "workflow", "definition")) {
+			moveWorkflowDefinitions(connectionSource);
+		}
+
+		// summaries of the storage configs' files and permissions are filled in once
+		boolean summariesAdded = addColumnIfNotExists(connectionSource, "storage_config", "fileCount",
+				"BIGINT NOT NULL DEFAULT 0");
+		summariesAdded |= addColumnIfNotExists(connectionSource, "storage_config", "totalBytes",
+				"BIGINT NOT NULL DEFAULT 0");
+		summariesAdded |= addColumnIfNotExists(connectionSource, "storage_config", "permissionCount",
+				"BIGINT NOT NULL DEFAULT 0");
+		if (summariesAdded) {
+			fillStorageConfigSummaries(connectionSource);
+		}
+
+		// composite indexes backing the keyset pagination of listings
+		createIndexIfNotExists(connectionSource, "job", "job_createdAt_id_idx", "createdAt", "id");
+		createIndexIfNotExists(connectionSource, "job", "job_owner_createdAt_id_idx", "owner", "createdAt", "id");
+		createIndexIfNotExists(connectionSource, "workflow", "workflow_latest_createdAt_id_idx", "latestVersion",
+				"isDeleted", "createdAt", "id");
+		createIndexIfNotExists(connectionSource, "workflow", "workflow_definitionRef_idx", "definitionRef");
+		createIndexIfNotExists(connectionSource, "user", "user_isDeleted_createdAt_id_idx", "isDeleted", "createdAt",
+				"id");
+		createIndexIfNotExists(connectionSource, "status_report", "status_report_contact_collectedAt_id_idx",
+				"serverContact", "collectedAt", "id");
+	}
+
+	// Not every database supports "CREATE INDEX IF NOT EXISTS" (e.g. MySQL), so
+	// ormlite would fail on the indexes of an existing table. Only create tables
+	// that are actually missing.
+	private static <T> void createTableIfNotExists(ConnectionSource connectionSource, Class<T> clazz)
+			throws SQLException {
+		Dao<T, ?> dao = DaoManager.createDao(connectionSource, clazz);
+		if (!dao.isTableExists()) {
+			TableUtils.createTable(connectionSource, clazz);
+		}
+	}
+
+	// Ormlite does not alter existing tables, so columns added to a model later on
+	// have to be added here as well. Returns whether the column was added.
+	private static boolean addColumnIfNotExists(ConnectionSource connectionSource, String table, String column,
+			String definition) throws SQLException {
+		if (columnExists(connectionSource, table, column)) {
+			return false;
+		}
+		DatabaseType dbType = connectionSource.getDatabaseType();
+		DatabaseConnection connection = connectionSource.getReadWriteConnection(table);
+		try {
+			StringBuilder sb = new StringBuilder("ALTER TABLE ");
+			dbType.appendEscapedEntityName(sb, table);
+			sb.append(" ADD COLUMN ");
+			dbType.appendEscapedEntityName(sb, column);
+			sb.append(" ").append(definition);
+
+			LOG.info("Adding column '" + column + "' to table '" + table + "'");
+			connection.executeStatement(sb.toString(), DatabaseConnection.DEFAULT_RESULT_FLAGS);
+			return true;
+		} finally {
+			connectionSource.releaseConnection(connection);
+		}
+	}
+
+	private static boolean columnExists(ConnectionSource connectionSource, String table, String column)
+			throws SQLException {
+		DatabaseConnection connection = connectionSource.getReadOnlyConnection(table);
+		try {
+			Connection internal = ((JdbcDatabaseConnection) connection).getInternalConnection();
+			DatabaseMetaData meta = internal.getMetaData();
+			// restricted to our own database, mysql would also report tables of the same
+			// name in other schemas the user can see
+			try (ResultSet columns = meta.getColumns(internal.getCatalog(), null, table, column)) {
+				return columns.next();
+			}
+		} finally {
+			connectionSource.releaseConnection(connection);
+		}
+	}
+
+	// Moves the definitions of workflows that still carry their own into the
+	// definition table. Versions are visited in order, such that each one may be
+	// stored as the difference to its predecessor. The old column is emptied, not
+	// dropped, as not every database can drop columns.
+	private static void moveWorkflowDefinitions(ConnectionSource connectionSource) throws SQLException {
+		DatabaseType dbType = connectionSource.getDatabaseType();
+		Dao<Workflow, Long> workflows = DaoManager.createDao(connectionSource, Workflow.class);
+		Dao<WorkflowDefinition, Long> definitions = DaoManager.createDao(connectionSource, WorkflowDefinition.class);
+
+		// moved rows no longer match, so each batch is read from the start
+		StringBuilder select = new StringBuilder("SELECT ").append(escaped(dbType, "id")).append(", ")
+				.append(escaped(dbType, "versionId")).append(", ").append(escaped(dbType, "definition"))
+				.append(" FROM ").append(escaped(dbType, "workflow")).append(" WHERE ")
+				.append(escaped(dbType, "definitionRef")).append(" IS NULL AND ").append(escaped(dbType, "definition"))
+				.append(" IS NOT NULL ORDER BY ").append(escaped(dbType, "versionId")).append(", ")
+				.append(escaped(dbType, "createdAt")).append(", ").append(escaped(dbType, "id")).append(" ");
+		dbType.appendLimitValue(select, MIGRATION_BATCH_SIZE, null);
+		String update = "UPDATE " + escaped(dbType, "workflow") + " SET " + escaped(dbType, "definitionRef")
+				+ " = ?, " + escaped(dbType, "definition") + " = NULL WHERE " + escaped(dbType, "id") + " = ?";
+
+		// the last stored definition, which the next version of the same workflow
+		// may be stored relative to, carried over from one batch to the next
+		String[] previousVersionId = new String[1];
+		WorkflowDefinition[] previous = new WorkflowDefinition[1];
+		int moved = 0;
+		while (true) {
+			int count = TransactionManager.callInTransaction(connectionSource, new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					int count = 0;
+					try (CloseableIterator<String[]> rows = workflows.queryRaw(select.toString()).closeableIterator()) {
+						while (rows.hasNext()) {
+							String[] row = rows.next();
+							if (!row[1].equals(previousVersionId[0])) {
+								previous[0] = null;
+							}
+							previous[0] = WorkflowDao.storeDefinition(definitions,
+									WorkflowDefinition.bytesOf(row[2]), previous[0]);
+							workflows.updateRaw(update, String.valueOf(previous[0].getId()), row[0]);
+							previousVersionId[0] = row[1];
+							count++;
+						}
+					}
+					return count;
+				}
+			});
+			moved += count;
+			if (count < MIGRATION_BATCH_SIZE) {
+				break;
+			}
+		}
+		if (moved > 0) {
+			LOG.info("Moved the definitions of " + moved + " workflow versions to their own table");
+		}
+	}
+
+	// Counts the files and permissions of the existing storage configs, which are
+	// kept up to date by the storage dao afterwards.
+	private static void fillStorageConfigSummaries(ConnectionSource connectionSource) throws SQLException {
+		DatabaseType dbType = connectionSource.getDatabaseType();
+		StringBuilder config = new StringBuilder();
+		dbType.appendEscapedEntityName(config, "storage_config");
+		String configId = config + "." + escaped(dbType, "id");
+
+		StringBuilder sb = new StringBuilder("UPDATE ").append(config).append(" SET ");
+		sb.append(escaped(dbType, "fileCount")).append(" = (SELECT COUNT(*) FROM ")
+				.append(escaped(dbType, "storage_file_meta")).append(" WHERE ")
+				.append(escaped(dbType, "storageConfig")).append(" = ").append(configId).append("), ");
+		sb.append(escaped(dbType, "totalBytes")).append(" = (SELECT COALESCE(SUM(")
+				.append(escaped(dbType, "size")).append("), 0) FROM ").append(escaped(dbType, "storage_file_meta"))
+				.append(" WHERE ").append(escaped(dbType, "storageConfig")).append(" = ").append(configId)
+				.append("), ");
+		sb.append(escaped(dbType, "permissionCount")).append(" = (SELECT COUNT(*) FROM ")
+				.append(escaped(dbType, "storage_permission")).append(" WHERE ")
+				.append(escaped(dbType, "storageConfig")).append(" = ").append(configId).append(")");
+
+		LOG.info("Counting the files and permissions of existing storage configs");
+		DatabaseConnection connection = connectionSource.getReadWriteConnection("storage_config");
+		try {
+			connection.executeStatement(sb.toString(), DatabaseConnection.DEFAULT_RESULT_FLAGS);
+		} finally {
+			connectionSource.releaseConnection(connection);
+		}
+	}
+
+	private static String escaped(DatabaseType dbType, String name) {
+		StringBuilder sb = new StringBuilder();
+		dbType.appendEscapedEntityName(sb, name);
+		return sb.toString();
+	}
+
+	// Indexes added after a table was created are set up here, such that existing
+	// tables receive them as well.
+	private static void createIndexIfNotExists(ConnectionSource connectionSource, String table, String indexName,
+			String... columns) throws SQLException {
+		DatabaseType dbType = connectionSource.getDatabaseType();
+
+		StringBuilder sb = new StringBuilder("CREATE INDEX ");
+		if (dbType.isCreateIndexIfNotExistsSupported()) {
+			sb.append("IF NOT EXISTS ");
+		}
+		dbType.appendEscapedEntityName(sb, indexName);
+		sb.append(" ON ");
+		dbType.appendEscapedEntityName(sb, table);
+		sb.append(" (");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			dbType.appendEscapedEntityName(sb, columns[i]);
+		}
+		sb.append(")");
+
+		DatabaseConnection connection = connectionSource.getReadWriteConnection(table);
+		try {
+			connection.executeStatement(sb.toString(), DatabaseConnection.DEFAULT_RESULT_FLAGS);
+		} catch (SQLException e) {
+			// without "IF NOT EXISTS" this is expected to fail if the index is present
+			LOG.debug("Not creating index '" + indexName + "': " + e.getMessage());
+		} finally {
+			connectionSource.releaseConnection(connection);
+		}
 	}
 
 	protected static void insertDefaultAdminUser() {
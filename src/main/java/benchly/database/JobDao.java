@@ -4,9 +4,14 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
 
 import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.misc.TransactionManager;
 import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.UpdateBuilder;
+import com.j256.ormlite.stmt.Where;
 
 import benchly.model.Job;
 import benchly.model.User;
@@ -14,6 +19,9 @@ import benchly.util.RequestUtil.PaginationParams;
 
 public class JobDao {
 
+	// keeps statements below the bind variable limit of some databases (sqlite)
+	private static final int MAX_IDS_PER_STATEMENT = 500;
+
 	public static long count() throws SQLException {
 		return dao().countOf();
 	}
@@ -23,13 +31,15 @@ public class JobDao {
 	}
 
 	public static List<Job> fetchAll(PaginationParams pagination) throws SQLException {
-		return dao().queryBuilder().offset(pagination.offset).limit(pagination.limit).orderBy("createdAt", false)
-				.query();
+		QueryBuilder<Job, Long> builder = dao().queryBuilder();
+		KeysetPagination.apply(builder, null, "createdAt", false, pagination);
+		return builder.query();
 	}
 
 	public static List<Job> fetchAllBelongigTo(User owner, PaginationParams pagination) throws SQLException {
-		return dao().queryBuilder().offset(pagination.offset).limit(pagination.limit).orderBy("createdAt", false)
-				.where().eq("owner", owner).query();
+		QueryBuilder<Job, Long> builder = dao().queryBuilder();
+		KeysetPagination.apply(builder, builder.where().eq("owner", owner), "createdAt", false, pagination);
+		return builder.query();
 	}
 
 	public static List<Job> fetchPendingJobs() throws SQLException {
@@ -40,13 +50,61 @@ public class JobDao {
 		return dao().queryBuilder().orderBy("estimatedTime", true).where().eq("state", Job.State.SUBMITTED).query();
 	}
 
-	public static Job pickSubmittedJobWhereLastCheckIsLongerAgoThan(long seconds) throws SQLException {
-		Timestamp threshold = Timestamp.from(Instant.now().minusSeconds(seconds));
+	/**
+	 * Selects submitted jobs that were not checked for the given time, longest
+	 * waiting first, and sets their last check to now in a single transaction. The
+	 * returned jobs still carry their previous last check time.
+	 * 
+	 * Jobs whose server pushes events to us are only checked to reconcile missed
+	 * events, which happens after the second, usually longer time.
+	 */
+	public static List<Job> claimSubmittedJobsWhereLastCheckIsLongerAgoThan(long seconds, long secondsIfPushed,
+			long limit) throws SQLException {
+		Timestamp now = Timestamp.from(Instant.now());
+		Timestamp threshold = Timestamp.from(now.toInstant().minusSeconds(seconds));
+		Timestamp pushedThreshold = Timestamp.from(now.toInstant().minusSeconds(secondsIfPushed));
 
 		QueryBuilder<Job, Long> builder = dao().queryBuilder();
-		builder.orderBy("lastChecked", false);
-		builder.where().isNull("lastChecked").or().le("lastChecked", threshold).and().eq("state", Job.State.SUBMITTED);
-		return builder.queryForFirst();
+		builder.orderBy("lastChecked", true).limit(limit);
+		Where<Job, Long> where = builder.where();
+		where.and(where.eq("state", Job.State.SUBMITTED),
+				where.or(where.isNull("lastChecked"),
+						where.and(where.isNull("eventsPushedAt"), where.le("lastChecked", threshold)),
+						where.le("lastChecked", pushedThreshold)));
+
+		return TransactionManager.callInTransaction(dao().getConnectionSource(), new Callable<List<Job>>() {
+			@Override
+			public List<Job> call() throws Exception {
+				List<Job> jobs = builder.query();
+				setLastChecked(jobs, now);
+				return jobs;
+			}
+		});
+	}
+
+	// updates the last check of all jobs with as few statements as possible
+	private static void setLastChecked(List<Job> jobs, Timestamp time) throws SQLException {
+		List<Long> ids = jobs.stream().map(Job::getId).collect(Collectors.toList());
+		for (int from = 0; from < ids.size(); from += MAX_IDS_PER_STATEMENT) {
+			List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_STATEMENT));
+			UpdateBuilder<Job, Long> update = dao().updateBuilder();
+			update.updateColumnValue("lastChecked", time).where().in("id", chunk);
+			update.update();
+		}
+	}
+
+	public static int setLastCheckedNow(Job job) throws SQLException {
+		job.setLastCheckedNow();
+		UpdateBuilder<Job, Long> update = dao().updateBuilder();
+		update.updateColumnValue("lastChecked", job.getLastChecked()).where().idEq(job.getId());
+		return update.update();
+	}
+
+	public static int setEventsPushedNow(Job job) throws SQLException {
+		job.setEventsPushedNow();
+		UpdateBuilder<Job, Long> update = dao().updateBuilder();
+		update.updateColumnValue("eventsPushedAt", job.getEventsPushedAt()).where().idEq(job.getId());
+		return update.update();
 	}
 
 	public static Job fetchById(long jobId) throws SQLException {
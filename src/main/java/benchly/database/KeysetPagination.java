@@ -0,0 +1,59 @@
+package benchly.database;
+
+import java.sql.SQLException;
+
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.Where;
+
+import benchly.util.PageCursor;
+import benchly.util.RequestUtil.PaginationParams;
+
+/**
+ * Pagination for listings ordered by a timestamp column and the id. If the
+ * pagination params contain a cursor, only rows behind the cursor are selected,
+ * such that the database can seek in the (timestamp, id) index instead of
+ * skipping over an offset. Without a cursor the offset is used as before.
+ */
+class KeysetPagination {
+
+	/**
+	 * @param where
+	 *            The query's condition or null if the query has none.
+	 */
+	static <T> void apply(QueryBuilder<T, Long> builder, Where<T, Long> where, String timeColumn, boolean ascending,
+			PaginationParams pagination) throws SQLException {
+		builder.orderBy(timeColumn, ascending).orderBy("id", ascending);
+		builder.limit(pagination.limit);
+
+		PageCursor cursor = pagination.after;
+		if (cursor == null) {
+			builder.offset(pagination.offset);
+			if (where != null) {
+				builder.setWhere(where);
+			}
+			return;
+		}
+
+		boolean hasCondition = (where != null);
+		if (!hasCondition) {
+			where = builder.where();
+		}
+
+		// (time, id) > (cursorTime, cursorId) written out for databases without row
+		// value comparison, or "<" for a descending order
+		if (ascending) {
+			where.or(where.gt(timeColumn, cursor.time),
+					where.and(where.eq(timeColumn, cursor.time), where.gt("id", cursor.id)));
+		} else {
+			where.or(where.lt(timeColumn, cursor.time),
+					where.and(where.eq(timeColumn, cursor.time), where.lt("id", cursor.id)));
+		}
+
+		// combine with the query's own condition
+		if (hasCondition) {
+			where.and(2);
+		}
+		builder.setWhere(where);
+	}
+
+}
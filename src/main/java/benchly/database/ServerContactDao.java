@@ -6,7 +6,6 @@ import java.time.Instant;
 import java.util.List;
 import java.util.concurrent.Callable;
 
-import com.j256.ormlite.dao.CloseableIterator;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.misc.TransactionManager;
 import com.j256.ormlite.stmt.DeleteBuilder;
@@ -33,7 +32,10 @@ public class ServerContactDao {
 	}
 	
 	public static List<StatusReport> fetchReports(PaginationParams pagination, ServerContact contact) throws SQLException {
-		return reportDao().queryBuilder().limit(pagination.limit).offset(pagination.offset).where().eq("serverContact", contact.getId()).query();
+		QueryBuilder<StatusReport, Long> builder = reportDao().queryBuilder();
+		KeysetPagination.apply(builder, builder.where().eq("serverContact", contact.getId()), "collectedAt", true,
+				pagination);
+		return builder.query();
 	}
 
 	public static ServerContact fetchById(long id) throws SQLException {
@@ -44,12 +46,8 @@ public class ServerContactDao {
 		return dao().queryBuilder().where().eq("name", name).queryForFirst();
 	}
 
-	public static ServerContact fetchOneWhereLastCheckIsLongerAgoThan(long seconds) throws SQLException {
-		Timestamp threshold = Timestamp.from(Instant.now().minusSeconds(seconds));
-
-		QueryBuilder<ServerContact, Long> builder = dao().queryBuilder();
-		builder.where().isNull("lastChecked").or().le("lastChecked", threshold);
-		return builder.queryForFirst();
+	public static List<ServerContact> fetchAll() throws SQLException {
+		return dao().queryForAll();
 	}
 
 	public static int create(ServerContact contact) throws SQLException {
@@ -94,25 +92,6 @@ public class ServerContactDao {
 		return builder.delete();
 	}
 
-	/**
-	 * Fetches list of server contacts, that presumably meet the required memory
-	 * demand. Tries to order suitable candidates first.
-	 * 
-	 * @return An iterator over ServerContact objects
-	 * @throws SQLException
-	 */
-	public static CloseableIterator<ServerContact> fetchJobSubmittalCandidates(long memoryDemand) throws SQLException {
-		QueryBuilder<ServerContact, Long> builder = dao().queryBuilder();
-
-		// sort those with few jobs and best memory first, return only those that meet
-		// the memory demand
-		builder.orderBy("approximateRunningJobs", true);
-		builder.orderBy("approximateUsableMemory", false);
-		builder.where().eq("reachability", Reachability.DEFAULT).and().ge("approximateUsableMemory", memoryDemand);
-
-		return builder.iterator();
-	}
-
 	private static Dao<ServerContact, Long> dao() {
 		return DatabaseHelper.getInstance().getServerContactDao();
 	}
@@ -1,32 +1,61 @@
 package benchly.database;
 
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.db.MysqlDatabaseType;
+import com.j256.ormlite.db.PostgresDatabaseType;
+import com.j256.ormlite.field.SqlType;
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
 import com.j256.ormlite.misc.TransactionManager;
 import com.j256.ormlite.stmt.DeleteBuilder;
 import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.SelectArg;
 import com.j256.ormlite.stmt.UpdateBuilder;
+import com.j256.ormlite.stmt.Where;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
 
 import benchly.model.StorageConfig;
 import benchly.model.StorageFileMeta;
 import benchly.model.StoragePermission;
+import benchly.model.StorageTransfer;
+import benchly.model.StorageTransferItem;
+import benchly.model.StorageUpload;
+import benchly.model.StorageUploadPart;
 import benchly.model.User;
+import benchly.util.Metrics;
+import benchly.util.RequestUtil.PaginationParams;
 
 public class StorageDao {
 
 	private static final Logger LOG = LoggerFactory.getLogger(StorageDao.class);
 
+	// how many rows are selected or deleted by a single statement with ids
+	private static final int FILE_META_BATCH_SIZE = 500;
+
 	public static StorageConfig fetchConfig(long id) throws SQLException {
 		return dao().queryForId(id);
 	}
@@ -37,21 +66,98 @@ public class StorageDao {
 		return dao().create(config);
 	}
 
-	public static int update(StorageConfig config) throws SQLException {
+	/**
+	 * Save the config's credential, the only thing that may be changed. Other
+	 * columns are left alone, as the summaries and the refresh position are
+	 * changed concurrently by uploads, deletes and refreshes.
+	 */
+	public static int updateCredential(StorageConfig config) throws SQLException {
 		config.setUpdatedAtNow();
-		return dao().update(config);
+		UpdateBuilder<StorageConfig, Long> builder = dao().updateBuilder();
+		builder.where().idEq(config.getId());
+		builder.updateColumnValue("credential", new SelectArg(SqlType.STRING, config.getCredential()));
+		builder.updateColumnValue("updatedAt", config.getUpdatedAt());
+		return builder.update();
 	}
 
-	public static StorageConfig fetchOneWhereLastRefreshIsLongerAgoThan(long seconds) throws SQLException {
+	public static StorageConfig fetchOneWhereLastRefreshIsLongerAgoThan(long seconds, Set<Long> excludedIds)
+			throws SQLException {
 		Timestamp threshold = Timestamp.from(Instant.now().minusSeconds(seconds));
 
 		QueryBuilder<StorageConfig, Long> builder = dao().queryBuilder();
-		builder.where().isNull("refreshedAt").or().le("refreshedAt", threshold);
+		Where<StorageConfig, Long> where = builder.where();
+		where.or(where.isNull("refreshedAt"), where.le("refreshedAt", threshold));
+		if (!excludedIds.isEmpty()) {
+			where.and(where, where.notIn("id", excludedIds));
+		}
 		return builder.queryForFirst();
 	}
 
-	public static List<StorageFileMeta> fetchFilesMeta(StorageConfig config) throws SQLException {
-		return fileMetaDao().queryForEq("storageConfig", config);
+	/**
+	 * Fetch a page of the config's file meta.
+	 *
+	 * @param prefix
+	 *            Only files with names starting with this, may be null.
+	 * @param search
+	 *            Only files with names containing this ignoring case, may be null.
+	 * @param sortColumn
+	 *            One of "name", "size" or "lastModified".
+	 */
+	public static List<StorageFileMeta> fetchFilesMeta(StorageConfig config, String prefix, String search,
+			String sortColumn, boolean ascending, PaginationParams pagination) throws SQLException {
+		QueryBuilder<StorageFileMeta, Long> builder = fileMetaDao().queryBuilder();
+		whereFilesMatch(builder, config, prefix, search);
+		builder.orderBy(sortColumn, ascending).orderBy("id", ascending);
+		builder.limit(pagination.limit).offset(pagination.offset);
+		return builder.query();
+	}
+
+	/**
+	 * Fetch all of the config's files whose names start with the prefix, ordered
+	 * by name.
+	 */
+	public static List<StorageFileMeta> fetchFilesMetaWithPrefix(StorageConfig config, String prefix)
+			throws SQLException {
+		QueryBuilder<StorageFileMeta, Long> builder = fileMetaDao().queryBuilder();
+		whereFilesMatch(builder, config, prefix, null);
+		builder.orderBy("name", true);
+		return builder.query();
+	}
+
+	public static long countFilesMeta(StorageConfig config, String prefix, String search) throws SQLException {
+		QueryBuilder<StorageFileMeta, Long> builder = fileMetaDao().queryBuilder();
+		whereFilesMatch(builder, config, prefix, search);
+		return builder.countOf();
+	}
+
+	private static void whereFilesMatch(QueryBuilder<StorageFileMeta, Long> builder, StorageConfig config,
+			String prefix, String search) throws SQLException {
+		Where<StorageFileMeta, Long> where = builder.where();
+		where.eq("storageConfig", config);
+		if (!StringUtils.isEmpty(prefix)) {
+			// a range instead of "like", such that the prefix needs no escaping
+			where.and().raw(bytewise("name") + " >= ?", new SelectArg(SqlType.LONG_STRING, prefix));
+			String end = prefixEnd(prefix);
+			if (end != null) {
+				where.and().raw(bytewise("name") + " < ?", new SelectArg(SqlType.LONG_STRING, end));
+			}
+		}
+		if (!StringUtils.isEmpty(search)) {
+			// "!" as the escape character, backslashes are treated differently by databases
+			String pattern = "%" + search.toLowerCase().replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+			where.and().raw("LOWER(" + escaped("name") + ") LIKE ? ESCAPE '!'",
+					new SelectArg(SqlType.LONG_STRING, pattern));
+		}
+	}
+
+	/**
+	 * Fetch a page of the users that were given access to the config.
+	 */
+	public static List<StoragePermission> fetchPermissions(StorageConfig config, PaginationParams pagination)
+			throws SQLException {
+		QueryBuilder<StoragePermission, Long> builder = permissionDao().queryBuilder();
+		KeysetPagination.apply(builder, builder.where().eq("storageConfig", config), "createdAt", true, pagination);
+		return builder.query();
 	}
 
 	public static boolean userHasAccess(User user, StorageConfig config) throws SQLException {
@@ -89,6 +195,26 @@ public class StorageDao {
 					fileMetaDelete.where().in("storageConfig", ids);
 					permissionDelete.delete();
 					fileMetaDelete.delete();
+
+					// transfers from or to the configs are forgotten as well
+					QueryBuilder<StorageTransfer, Long> transferIds = transferDao().queryBuilder();
+					transferIds.selectColumns("id").where().in("source", ids).or().in("target", ids);
+					DeleteBuilder<StorageTransferItem, Long> itemDelete = transferItemDao().deleteBuilder();
+					itemDelete.where().in("transfer", transferIds);
+					itemDelete.delete();
+					DeleteBuilder<StorageTransfer, Long> transferDelete = transferDao().deleteBuilder();
+					transferDelete.where().in("source", ids).or().in("target", ids);
+					transferDelete.delete();
+
+					// unfinished uploads are simply forgotten
+					QueryBuilder<StorageUpload, Long> uploadIds = uploadDao().queryBuilder();
+					uploadIds.selectColumns("id").where().in("storageConfig", ids);
+					DeleteBuilder<StorageUploadPart, Long> partDelete = uploadPartDao().deleteBuilder();
+					partDelete.where().in("upload", uploadIds);
+					partDelete.delete();
+					DeleteBuilder<StorageUpload, Long> uploadDelete = uploadDao().deleteBuilder();
+					uploadDelete.where().in("storageConfig", ids);
+					uploadDelete.delete();
 				}
 				return dao().delete(configs);
 			}
@@ -114,7 +240,14 @@ public class StorageDao {
 			LOG.warn("Config ids do not match on bulk update of access permissions. Ignoring invalid ids");
 		}
 		// actually update
-		return bulkUpdateForStorageConfig(permissionDao(), config, toPersist);
+		int result = bulkUpdateForStorageConfig(permissionDao(), config, toPersist);
+
+		UpdateBuilder<StorageConfig, Long> builder = dao().updateBuilder();
+		builder.where().idEq(config.getId());
+		builder.updateColumnValue("permissionCount", result);
+		builder.update();
+
+		return result;
 	}
 
 	// Return the file meta information given by the id, but only if it is linked to
@@ -124,7 +257,13 @@ public class StorageDao {
 	}
 
 	public static int create(StorageFileMeta fileMeta) throws SQLException {
-		return fileMetaDao().create(fileMeta);
+		return TransactionManager.callInTransaction(fileMetaDao().getConnectionSource(), new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				addToFileSummary(fileMeta.getStorageConfig(), 1, fileMeta.getSize());
+				return fileMetaDao().create(fileMeta);
+			}
+		});
 	}
 
 	public static int update(StorageFileMeta fileMeta) throws SQLException {
@@ -132,26 +271,491 @@ public class StorageDao {
 	}
 
 	public static int delete(StorageFileMeta fileMeta) throws SQLException {
-		return fileMetaDao().delete(fileMeta);
+		return TransactionManager.callInTransaction(fileMetaDao().getConnectionSource(), new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				int result = fileMetaDao().delete(fileMeta);
+				if (result > 0) {
+					addToFileSummary(fileMeta.getStorageConfig(), -1, -fileMeta.getSize());
+				}
+				return result;
+			}
+		});
 	}
 
-	public static int updateStorageFileMeta(StorageConfig config, Set<StorageFileMeta> fileInfos) throws SQLException {
+	/**
+	 * Bring the stored file meta of the config in line with one page of the
+	 * container listing. The page covers the names after afterName (or from the
+	 * beginning if null) up to its last name, or up to the end if it is the last
+	 * page. Only new files are inserted, changed files updated and files in that
+	 * range that are no longer listed deleted, such that file ids stay the same
+	 * for unchanged files.
+	 *
+	 * The position in the listing is saved along with the page, such that an
+	 * interrupted refresh may continue from there. The last page marks the config
+	 * as refreshed.
+	 *
+	 * The providers list names in the byte order of their UTF-8 encoding. Names
+	 * are compared in that order as well, regardless of the database's collation,
+	 * which may e.g. ignore case on mysql and would move rows between pages.
+	 *
+	 * @return The number of rows inserted, updated or deleted.
+	 */
+	public static int updateStorageFileMetaPage(StorageConfig config, List<StorageFileMeta> page, String afterName,
+			String nextMarker) throws SQLException {
 		// make sure that the right config id is set
-		Set<StorageFileMeta> toPersist = fileInfos.stream()
-				.filter(meta -> meta.getStorageConfig().getId() == config.getId()).collect(Collectors.toSet());
-		if (toPersist.size() != fileInfos.size()) {
-			LOG.warn("Config ids do not match on bulk update of file meta information. Ignoring invalid ids");
+		List<StorageFileMeta> listed = page.stream().filter(meta -> meta.getStorageConfig().getId() == config.getId())
+				.collect(Collectors.toList());
+		if (listed.size() != page.size()) {
+			LOG.warn("Config ids do not match on update of file meta information. Ignoring invalid ids");
 		}
-		// actually update
-		int result = bulkUpdateForStorageConfig(fileMetaDao(), config, toPersist);
-	
-		// set refresh date on the config
+		boolean lastPage = (nextMarker == null);
+		String upToName = lastPage ? null : (page.isEmpty() ? afterName : page.get(page.size() - 1).getName());
+
+		return TransactionManager.callInTransaction(fileMetaDao().getConnectionSource(), new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				int result = 0;
+				if (lastPage || upToName != null) {
+					result = reconcileFileMeta(config, listed, afterName, upToName);
+				}
+
+				UpdateBuilder<StorageConfig, Long> builder = dao().updateBuilder();
+				builder.where().idEq(config.getId());
+				builder.updateColumnValue("refreshMarker", new SelectArg(SqlType.LONG_STRING, nextMarker));
+				builder.updateColumnValue("refreshedUpTo", new SelectArg(SqlType.LONG_STRING, upToName));
+				if (lastPage) {
+					builder.updateColumnValue("refreshedAt", Timestamp.from(Instant.now()));
+				}
+				builder.update();
+
+				// the counts are only of use for a complete listing
+				if (lastPage) {
+					countFiles(config);
+				}
+
+				return result;
+			}
+		});
+	}
+
+	// compares the listed files with the stored ones with a name in the range
+	// (afterName, upToName], both bounds may be null for an open range
+	private static int reconcileFileMeta(StorageConfig config, List<StorageFileMeta> listed, String afterName,
+			String upToName) throws SQLException {
+		// only the columns needed for comparison are read
+		QueryBuilder<StorageFileMeta, Long> query = fileMetaDao().queryBuilder();
+		query.selectColumns("id", "name", "size", "lastModified");
+		Where<StorageFileMeta, Long> where = query.where();
+		where.eq("storageConfig", config);
+		if (afterName != null) {
+			where.and().raw(bytewise("name") + " > ?", new SelectArg(SqlType.LONG_STRING, afterName));
+		}
+		if (upToName != null) {
+			where.and().raw(bytewise("name") + " <= ?", new SelectArg(SqlType.LONG_STRING, upToName));
+		}
+
+		Map<String, StorageFileMeta> stored = new HashMap<>();
+		List<Long> toDelete = new ArrayList<>();
+		for (StorageFileMeta meta : query.query()) {
+			// names are unique in a container, duplicate rows are removed
+			if (meta.getName() == null || stored.putIfAbsent(meta.getName(), meta) != null) {
+				toDelete.add(meta.getId());
+			}
+		}
+
+		List<StorageFileMeta> toCreate = new ArrayList<>();
+		Map<Long, StorageFileMeta> toUpdate = new LinkedHashMap<>();
+		for (StorageFileMeta meta : listed) {
+			StorageFileMeta existing = stored.remove(meta.getName());
+			if (existing == null) {
+				toCreate.add(meta);
+			} else if (existing.getSize() != meta.getSize()
+					|| !sameSecond(existing.getLastModified(), meta.getLastModified())) {
+				toUpdate.put(existing.getId(), meta);
+			}
+		}
+		// whatever was not listed does not exist anymore
+		stored.values().forEach(meta -> toDelete.add(meta.getId()));
+
+		int updated = updateFileMeta(toUpdate);
+
+		int deleted = 0;
+		for (int from = 0; from < toDelete.size(); from += FILE_META_BATCH_SIZE) {
+			DeleteBuilder<StorageFileMeta, Long> delete = fileMetaDao().deleteBuilder();
+			delete.where().in("id", toDelete.subList(from, Math.min(from + FILE_META_BATCH_SIZE, toDelete.size())));
+			deleted += delete.delete();
+		}
+		int created = toCreate.isEmpty() ? 0 : fileMetaDao().create(toCreate);
+
+		Metrics.add("storage.refresh.inserted", created);
+		Metrics.add("storage.refresh.updated", updated);
+		Metrics.add("storage.refresh.deleted", deleted);
+		LOG.debug("Refreshed files of storage config " + config.getId() + ": " + created + " new, " + updated
+				+ " changed, " + deleted + " removed");
+		return created + updated + deleted;
+	}
+
+	// mysql stores dates without fractions of a second, while some providers list
+	// them with milliseconds
+	private static boolean sameSecond(Date a, Date b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return Math.floorDiv(a.getTime(), 1000L) == Math.floorDiv(b.getTime(), 1000L);
+	}
+
+	// Sets the listed size and modification time on the rows with the given ids.
+	// Ormlite sends one statement per row, so the updates are sent as jdbc batches
+	// on the connection of the running transaction.
+	private static int updateFileMeta(Map<Long, StorageFileMeta> changes) throws SQLException {
+		if (changes.isEmpty()) {
+			return 0;
+		}
+		ConnectionSource connectionSource = fileMetaDao().getConnectionSource();
+		DatabaseType dbType = connectionSource.getDatabaseType();
+		StringBuilder sb = new StringBuilder("UPDATE ");
+		dbType.appendEscapedEntityName(sb, "storage_file_meta");
+		sb.append(" SET ");
+		dbType.appendEscapedEntityName(sb, "size");
+		sb.append(" = ?, ");
+		dbType.appendEscapedEntityName(sb, "lastModified");
+		sb.append(" = ?, ");
+		dbType.appendEscapedEntityName(sb, "retrievedAt");
+		sb.append(" = ? WHERE ");
+		dbType.appendEscapedEntityName(sb, "id");
+		sb.append(" = ?");
+
+		int result = 0;
+		DatabaseConnection connection = connectionSource.getReadWriteConnection("storage_file_meta");
+		try (PreparedStatement statement = ((JdbcDatabaseConnection) connection).getInternalConnection()
+				.prepareStatement(sb.toString())) {
+			int batched = 0;
+			for (Map.Entry<Long, StorageFileMeta> change : changes.entrySet()) {
+				StorageFileMeta meta = change.getValue();
+				statement.setLong(1, meta.getSize());
+				if (meta.getLastModified() == null) {
+					statement.setNull(2, Types.TIMESTAMP);
+				} else {
+					statement.setTimestamp(2, new Timestamp(meta.getLastModified().getTime()));
+				}
+				statement.setTimestamp(3, meta.getRetrievedAt());
+				statement.setLong(4, change.getKey());
+				statement.addBatch();
+				batched += 1;
+				if (batched == FILE_META_BATCH_SIZE) {
+					result += countUpdated(statement.executeBatch());
+					batched = 0;
+				}
+			}
+			if (batched > 0) {
+				result += countUpdated(statement.executeBatch());
+			}
+		} finally {
+			connectionSource.releaseConnection(connection);
+		}
+		return result;
+	}
+
+	private static int countUpdated(int[] counts) {
+		int result = 0;
+		for (int count : counts) {
+			// drivers may not report the count of each statement
+			result += (count == Statement.SUCCESS_NO_INFO) ? 1 : Math.max(0, count);
+		}
+		return result;
+	}
+
+	// Return the upload given by the id, but only if it is linked to the given
+	// config
+	public static StorageUpload fetchUpload(StorageConfig config, long uploadId) throws SQLException {
+		return uploadDao().queryBuilder().where().eq("storageConfig", config).and().eq("id", uploadId)
+				.queryForFirst();
+	}
+
+	/**
+	 * Fetch uploads that did not receive a chunk for the given time, least
+	 * recently active first.
+	 */
+	public static List<StorageUpload> fetchUploadsInactiveLongerThan(long seconds, long limit) throws SQLException {
+		Timestamp threshold = Timestamp.from(Instant.now().minusSeconds(seconds));
+		return uploadDao().queryBuilder().orderBy("updatedAt", true).limit(limit).where().le("updatedAt", threshold)
+				.query();
+	}
+
+	public static int create(StorageUpload upload) throws SQLException {
+		return uploadDao().create(upload);
+	}
+
+	public static List<StorageUploadPart> fetchUploadParts(StorageUpload upload) throws SQLException {
+		return uploadPartDao().queryBuilder().orderBy("number", true).where().eq("upload", upload).query();
+	}
+
+	/**
+	 * Save the part, replacing a part with the same number if it was uploaded
+	 * before.
+	 */
+	public static int saveUploadPart(StorageUploadPart part) throws SQLException {
+		return TransactionManager.callInTransaction(uploadPartDao().getConnectionSource(), new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				DeleteBuilder<StorageUploadPart, Long> delete = uploadPartDao().deleteBuilder();
+				delete.where().eq("upload", part.getUpload()).and().eq("number", part.getNumber());
+				delete.delete();
+
+				UpdateBuilder<StorageUpload, Long> touch = uploadDao().updateBuilder();
+				touch.where().idEq(part.getUpload().getId());
+				touch.updateColumnValue("updatedAt", Timestamp.from(Instant.now()));
+				touch.update();
+
+				return uploadPartDao().create(part);
+			}
+		});
+	}
+
+	/**
+	 * Remove the upload and its parts.
+	 */
+	public static int deleteUpload(StorageUpload upload) throws SQLException {
+		return TransactionManager.callInTransaction(uploadDao().getConnectionSource(), new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return deleteUploadRows(upload);
+			}
+		});
+	}
+
+	/**
+	 * Remove the completed upload and its parts and record the completed file in
+	 * the same transaction. An existing row with the file's name is updated.
+	 *
+	 * @return The file meta as stored.
+	 */
+	public static StorageFileMeta completeUpload(StorageUpload upload, StorageFileMeta completedFile)
+			throws SQLException {
+		return TransactionManager.callInTransaction(uploadDao().getConnectionSource(),
+				new Callable<StorageFileMeta>() {
+					@Override
+					public StorageFileMeta call() throws Exception {
+						deleteUploadRows(upload);
+						return saveFileMetaByName(completedFile);
+					}
+				});
+	}
+
+	private static int deleteUploadRows(StorageUpload upload) throws SQLException {
+		DeleteBuilder<StorageUploadPart, Long> partDelete = uploadPartDao().deleteBuilder();
+		partDelete.where().eq("upload", upload);
+		partDelete.delete();
+		return uploadDao().delete(upload);
+	}
+
+	/**
+	 * Fetch the file meta with the given ids that belong to the config.
+	 */
+	public static List<StorageFileMeta> fetchFilesMeta(StorageConfig config, Collection<Long> ids)
+			throws SQLException {
+		List<Long> remaining = new ArrayList<>(new HashSet<>(ids));
+		List<StorageFileMeta> result = new ArrayList<>(remaining.size());
+		for (int from = 0; from < remaining.size(); from += FILE_META_BATCH_SIZE) {
+			List<Long> batch = remaining.subList(from, Math.min(from + FILE_META_BATCH_SIZE, remaining.size()));
+			result.addAll(fileMetaDao().queryBuilder().where().eq("storageConfig", config).and().in("id", batch)
+					.query());
+		}
+		return result;
+	}
+
+	public static StorageTransfer fetchTransfer(long id) throws SQLException {
+		return transferDao().queryForId(id);
+	}
+
+	public static List<StorageTransfer> fetchTransfers(PaginationParams pagination) throws SQLException {
+		QueryBuilder<StorageTransfer, Long> builder = transferDao().queryBuilder();
+		KeysetPagination.apply(builder, null, "createdAt", false, pagination);
+		return builder.query();
+	}
+
+	public static List<StorageTransfer> fetchTransfersBelongingTo(User owner, PaginationParams pagination)
+			throws SQLException {
+		QueryBuilder<StorageTransfer, Long> builder = transferDao().queryBuilder();
+		KeysetPagination.apply(builder, builder.where().eq("owner", owner), "createdAt", false, pagination);
+		return builder.query();
+	}
+
+	public static long countTransfers() throws SQLException {
+		return transferDao().countOf();
+	}
+
+	public static long countTransfersBelongingTo(User owner) throws SQLException {
+		return transferDao().queryBuilder().where().eq("owner", owner).countOf();
+	}
+
+	/**
+	 * Fetch the transfers that are waiting or were running when the server
+	 * stopped, except the ones given.
+	 */
+	public static List<StorageTransfer> fetchActiveTransfers(Set<Long> excludedIds) throws SQLException {
+		QueryBuilder<StorageTransfer, Long> builder = transferDao().queryBuilder();
+		builder.orderBy("createdAt", true);
+		Where<StorageTransfer, Long> where = builder.where();
+		where.in("state", StorageTransfer.State.PENDING, StorageTransfer.State.RUNNING);
+		if (!excludedIds.isEmpty()) {
+			where.and().notIn("id", excludedIds);
+		}
+		return builder.query();
+	}
+
+	/**
+	 * Create the transfer along with an item for each file to copy.
+	 */
+	public static int create(StorageTransfer transfer, List<StorageFileMeta> files) throws SQLException {
+		return TransactionManager.callInTransaction(transferDao().getConnectionSource(), new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				transfer.setTotals(files.size(), files.stream().mapToLong(StorageFileMeta::getSize).sum());
+				int result = transferDao().create(transfer);
+				transferItemDao().create(
+						files.stream().map(f -> new StorageTransferItem(transfer, f)).collect(Collectors.toList()));
+				return result;
+			}
+		});
+	}
+
+	public static List<StorageTransferItem> fetchOpenTransferItems(StorageTransfer transfer) throws SQLException {
+		return transferItemDao().queryBuilder().orderBy("id", true).where().eq("transfer", transfer).and()
+				.eq("done", false).query();
+	}
+
+	/**
+	 * Mark the item as copied and record the copied file in the target config in
+	 * the same transaction. A file of the same name that was overwritten keeps its
+	 * id.
+	 */
+	public static int completeTransferItem(StorageTransferItem item, StorageFileMeta copiedFile)
+			throws SQLException {
+		return TransactionManager.callInTransaction(transferDao().getConnectionSource(), new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				saveFileMetaByName(copiedFile);
+
+				UpdateBuilder<StorageTransferItem, Long> itemUpdate = transferItemDao().updateBuilder();
+				itemUpdate.where().idEq(item.getId());
+				itemUpdate.updateColumnValue("done", true);
+				itemUpdate.update();
+
+				UpdateBuilder<StorageTransfer, Long> transferUpdate = transferDao().updateBuilder();
+				transferUpdate.where().idEq(item.getTransfer().getId());
+				transferUpdate.updateColumnExpression("filesDone", escaped("filesDone") + " + 1");
+				transferUpdate.updateColumnExpression("bytesDone", escaped("bytesDone") + " + " + item.getSize());
+				return transferUpdate.update();
+			}
+		});
+	}
+
+	/**
+	 * Record a file that was written to the provider outside of a refresh, e.g. by
+	 * a client using a signed upload url. An existing row with the same name is
+	 * updated, such that the file keeps its id.
+	 *
+	 * @return The file meta as stored.
+	 */
+	public static StorageFileMeta recordFileMeta(StorageFileMeta fileMeta) throws SQLException {
+		return TransactionManager.callInTransaction(fileMetaDao().getConnectionSource(),
+				new Callable<StorageFileMeta>() {
+					@Override
+					public StorageFileMeta call() throws Exception {
+						return saveFileMetaByName(fileMeta);
+					}
+				});
+	}
+
+	// creates or updates the file meta with the same name, to be called within a
+	// transaction
+	private static StorageFileMeta saveFileMetaByName(StorageFileMeta fileMeta) throws SQLException {
+		StorageFileMeta existing = fileMetaDao().queryBuilder().where()
+				.eq("storageConfig", fileMeta.getStorageConfig()).and()
+				.raw(bytewise("name") + " = ?", new SelectArg(SqlType.LONG_STRING, fileMeta.getName()))
+				.queryForFirst();
+		if (existing == null) {
+			fileMetaDao().create(fileMeta);
+			addToFileSummary(fileMeta.getStorageConfig(), 1, fileMeta.getSize());
+			return fileMeta;
+		}
+		UpdateBuilder<StorageFileMeta, Long> update = fileMetaDao().updateBuilder();
+		update.where().idEq(existing.getId());
+		update.updateColumnValue("size", fileMeta.getSize());
+		update.updateColumnValue("lastModified", fileMeta.getLastModified());
+		update.updateColumnValue("retrievedAt", fileMeta.getRetrievedAt());
+		update.update();
+		addToFileSummary(fileMeta.getStorageConfig(), 0, fileMeta.getSize() - existing.getSize());
+		return fetchFileMeta(fileMeta.getStorageConfig(), existing.getId());
+	}
+
+	/**
+	 * Set the transfer's state, the error is cleared unless given. The start and
+	 * end times are set according to the state.
+	 */
+	public static int updateTransferState(StorageTransfer transfer, StorageTransfer.State state, String error)
+			throws SQLException {
+		UpdateBuilder<StorageTransfer, Long> builder = transferDao().updateBuilder();
+		builder.where().idEq(transfer.getId());
+		return updateTransferState(builder, transfer, state, error);
+	}
+
+	/**
+	 * Like {@link #updateTransferState}, but only if the transfer is still
+	 * running. A run that ends does not overwrite the state set by a cancel or a
+	 * resume in the meantime.
+	 *
+	 * @return 1 if the state was set, 0 otherwise.
+	 */
+	public static int endTransfer(StorageTransfer transfer, StorageTransfer.State state, String error)
+			throws SQLException {
+		UpdateBuilder<StorageTransfer, Long> builder = transferDao().updateBuilder();
+		builder.where().idEq(transfer.getId()).and().eq("state", StorageTransfer.State.RUNNING);
+		return updateTransferState(builder, transfer, state, error);
+	}
+
+	private static int updateTransferState(UpdateBuilder<StorageTransfer, Long> builder, StorageTransfer transfer,
+			StorageTransfer.State state, String error) throws SQLException {
+		builder.updateColumnValue("state", state);
+		builder.updateColumnValue("error", new SelectArg(SqlType.LONG_STRING, error));
+		Timestamp now = Timestamp.from(Instant.now());
+		if (state == StorageTransfer.State.RUNNING) {
+			builder.updateColumnValue("startedAt", now);
+			builder.updateColumnValue("endedAt", null);
+		} else if (state != StorageTransfer.State.PENDING) {
+			builder.updateColumnValue("endedAt", now);
+		}
+		int result = builder.update();
+		if (result > 0) {
+			transfer.setState(state);
+			transfer.setError(error);
+		}
+		return result;
+	}
+
+	// adjusts the config's file summary for files added or removed outside of a
+	// refresh
+	private static void addToFileSummary(StorageConfig config, long files, long bytes) throws SQLException {
 		UpdateBuilder<StorageConfig, Long> builder = dao().updateBuilder();
 		builder.where().idEq(config.getId());
-		builder.updateColumnValue("refreshedAt", Timestamp.from(Instant.now()));
+		builder.updateColumnExpression("fileCount", escaped("fileCount") + " + " + files);
+		builder.updateColumnExpression("totalBytes", escaped("totalBytes") + " + " + bytes);
+		builder.update();
+	}
+
+	// sets the config's file summary from the stored file meta
+	private static void countFiles(StorageConfig config) throws SQLException {
+		QueryBuilder<StorageFileMeta, Long> query = fileMetaDao().queryBuilder();
+		query.selectRaw("COUNT(*)", "COALESCE(SUM(" + escaped("size") + "), 0)").where().eq("storageConfig", config);
+		String[] counts = query.queryRaw().getFirstResult();
+
+		UpdateBuilder<StorageConfig, Long> builder = dao().updateBuilder();
+		builder.where().idEq(config.getId());
+		builder.updateColumnValue("fileCount", Long.parseLong(counts[0]));
+		builder.updateColumnValue("totalBytes", Long.parseLong(counts[1]));
 		builder.update();
-		
-		return result;
 	}
 
 	// bulk updates the dao's table by deleting all objects referring to the storage
@@ -170,6 +774,41 @@ public class StorageDao {
 		return created;
 	}
 
+	// the column for comparisons in the byte order of its UTF-8 content, which
+	// sqlite uses anyway
+	private static String bytewise(String columnName) {
+		DatabaseType dbType = dao().getConnectionSource().getDatabaseType();
+		if (dbType instanceof MysqlDatabaseType) {
+			return "BINARY " + escaped(columnName);
+		} else if (dbType instanceof PostgresDatabaseType) {
+			return escaped(columnName) + " COLLATE \"C\"";
+		}
+		return escaped(columnName);
+	}
+
+	// the first string after all strings starting with the prefix in code point
+	// order, which is the byte order of UTF-8, or null if there is none
+	private static String prefixEnd(String prefix) {
+		int[] codePoints = prefix.codePoints().toArray();
+		for (int i = codePoints.length - 1; i >= 0; i--) {
+			int next = codePoints[i] + 1;
+			if (next == Character.MIN_SURROGATE) {
+				next = Character.MAX_SURROGATE + 1;
+			}
+			if (next <= Character.MAX_CODE_POINT) {
+				codePoints[i] = next;
+				return new String(codePoints, 0, i + 1);
+			}
+		}
+		return null;
+	}
+
+	private static String escaped(String columnName) {
+		StringBuilder sb = new StringBuilder();
+		dao().getConnectionSource().getDatabaseType().appendEscapedEntityName(sb, columnName);
+		return sb.toString();
+	}
+
 	private static Dao<StorageConfig, Long> dao() {
 		return DatabaseHelper.getInstance().getStorageConfigDao();
 	}
@@ -182,4 +821,20 @@ public class StorageDao {
 		return DatabaseHelper.getInstance().getStorageFileMetaDao();
 	}
 
+	private static final Dao<StorageUpload, Long> uploadDao() {
+		return DatabaseHelper.getInstance().getStorageUploadDao();
+	}
+
+	private static final Dao<StorageUploadPart, Long> uploadPartDao() {
+		return DatabaseHelper.getInstance().getStorageUploadPartDao();
+	}
+
+	private static final Dao<StorageTransfer, Long> transferDao() {
+		return DatabaseHelper.getInstance().getStorageTransferDao();
+	}
+
+	private static final Dao<StorageTransferItem, Long> transferItemDao() {
+		return DatabaseHelper.getInstance().getStorageTransferItemDao();
+	}
+
 }
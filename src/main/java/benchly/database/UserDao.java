@@ -25,7 +25,10 @@ public class UserDao {
 
 	public static int update(User user) throws SQLException {
 		user.setUpdatedAtNow();
-		return dao().update(user);
+		int rows = dao().update(user);
+		// cached workflows carry their author
+		WorkflowDao.forgetCachedAuthor(user);
+		return rows;
 	}
 
 	public static boolean userWithEmailExists(String email) throws SQLException {
@@ -34,8 +37,7 @@ public class UserDao {
 
 	public static List<User> fetchAll(PaginationParams pagination) throws SQLException {
 		QueryBuilder<User, Long> builder = dao().queryBuilder();
-		builder.limit(pagination.limit).offset(pagination.offset);
-		builder.setWhere(whereNonDeleted());
+		KeysetPagination.apply(builder, whereNonDeleted(), "createdAt", true, pagination);
 		return builder.query();
 	}
 	
@@ -68,6 +70,8 @@ public class UserDao {
 				return update(user);
 			}
 		});
+		// the workflows might have been cached again before the commit
+		WorkflowDao.forgetCachedAuthor(user);
 		return result;
 	}
 
@@ -1,6 +1,8 @@
 package benchly.database;
 
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -10,38 +12,70 @@ import com.j256.ormlite.stmt.QueryBuilder;
 import com.j256.ormlite.stmt.UpdateBuilder;
 import com.j256.ormlite.stmt.Where;
 
+import benchly.Benchly;
 import benchly.model.User;
 import benchly.model.Workflow;
+import benchly.model.WorkflowDefinition;
+import benchly.util.Metrics;
 import benchly.util.RequestUtil.PaginationParams;
 
 /**
  * Workflows have multiple versions. Those belonging to the same version bear
  * the same versionId.
+ *
+ * Single versions are served from a cache, which is kept up to date by the
+ * methods here that change workflows.
+ *
+ * Definitions are stored apart from the versions, once per distinct content.
+ * They are only read when a single version is fetched, listings leave them
+ * out.
  */
 public class WorkflowDao {
 
+	private static final WorkflowVersionCache CACHE = new WorkflowVersionCache(
+			Benchly.getConfig().getWorkflowCacheSize());
+
 	public static long getCountOfLatestVersions() throws SQLException {
 		return whereNotDeleted().and().eq("latestVersion", true).countOf();
 	}
 
 	public static Workflow fetchById(long workflowId) throws SQLException {
-		return whereNotDeleted().and().idEq(workflowId).queryForFirst();
+		Workflow cached = CACHE.get(workflowId);
+		if (cached != null) {
+			return cached;
+		}
+		long generation = CACHE.generation();
+		return cached(withDefinition(whereNotDeleted().and().idEq(workflowId).queryForFirst()), generation);
 	}
 
 	public static Workflow fetchLatestVersion(String versionId) throws SQLException {
-		return whereNotDeleted().and().eq("latestVersion", true).and().eq("versionId", versionId).queryForFirst();
+		Workflow cached = CACHE.getLatest(versionId);
+		if (cached != null) {
+			return cached;
+		}
+		long generation = CACHE.generation();
+		return cached(withDefinition(
+				whereNotDeleted().and().eq("latestVersion", true).and().eq("versionId", versionId).queryForFirst()),
+				generation);
 	}
 
 	public static Workflow fetchSpecificVersion(long id, String versionId) throws SQLException {
+		Workflow cached = CACHE.get(id);
+		if (cached != null && cached.getVersionId().equals(versionId)) {
+			return cached;
+		}
 		// querying for id only would suffice but we want to make sure that the version
 		// in question exists
-		return whereNotDeleted().and().eq("versionId", versionId).and().eq("id", id).queryForFirst();
+		long generation = CACHE.generation();
+		return cached(
+				withDefinition(whereNotDeleted().and().eq("versionId", versionId).and().eq("id", id).queryForFirst()),
+				generation);
 	}
 
 	public static List<Workflow> fetchLatestVersions(PaginationParams pagination) throws SQLException {
 		QueryBuilder<Workflow, Long> builder = dao().queryBuilder();
-		builder.setWhere(whereNotDeleted().and().eq("latestVersion", true));
-		builder.limit(pagination.limit).offset(pagination.offset);
+		KeysetPagination.apply(builder, whereNotDeleted().and().eq("latestVersion", true), "createdAt", true,
+				pagination);
 		return builder.query();
 	}
 
@@ -60,6 +94,13 @@ public class WorkflowDao {
 		final Dao<Workflow, Long> dao = dao();
 		int insertedRows = TransactionManager.callInTransaction(dao().getConnectionSource(), new Callable<Integer>() {
 			public Integer call() throws SQLException {
+				// store the definition, as a difference to the previous version's if possible
+				Workflow previous = dao.queryBuilder().where().eq("latestVersion", true).and()
+						.eq("versionId", workflow.getVersionId()).queryForFirst();
+				WorkflowDefinition previousDefinition = (previous == null) ? null : previous.getDefinitionRef();
+				workflow.setDefinitionRef(storeDefinition(definitionDao(),
+						WorkflowDefinition.bytesOf(workflow.getDefinition()), previousDefinition));
+
 				// update all existing versions of this workflow to not be the latest
 				UpdateBuilder<Workflow, Long> updateBuilder = dao.updateBuilder();
 				updateBuilder.updateColumnValue("latestVersion", false).where().eq("versionId",
@@ -72,19 +113,114 @@ public class WorkflowDao {
 				return rows;
 			}
 		});
+		CACHE.putSaved(workflow);
 		return insertedRows;
 	}
 
 	public static int setDeleted(Workflow workflow) throws SQLException {
 		UpdateBuilder<Workflow, Long> builder = getSetDeletedBuilder();
 		builder.where().idEq(workflow.getId());
-		return builder.update();
+		int rows = builder.update();
+		CACHE.invalidate(workflow.getId());
+		return rows;
 	}
 
+	/**
+	 * Delete all workflows of the author. If called within a transaction,
+	 * {@link #forgetCachedAuthor(User)} has to be called again after the commit.
+	 */
 	public static int setDeletedWhereAuthorIs(User author) throws SQLException {
 		UpdateBuilder<Workflow, Long> builder = getSetDeletedBuilder();
 		builder.where().eq("author", author);
-		return builder.update();
+		int rows = builder.update();
+		CACHE.invalidateAuthor(author);
+		return rows;
+	}
+
+	/**
+	 * Drop the cached workflows of the author, whose details changed.
+	 */
+	public static void forgetCachedAuthor(User author) {
+		CACHE.invalidateAuthor(author);
+	}
+
+	/**
+	 * Read the definition of a workflow that was not fetched by this dao, e.g.
+	 * one that was loaded along with a job.
+	 */
+	public static void loadDefinition(Workflow workflow) throws SQLException {
+		withDefinition(workflow);
+	}
+
+	/**
+	 * Find the stored definition with the content or store a new one, encoded as
+	 * the difference to the previous definition if that is smaller.
+	 *
+	 * @param previous
+	 *            The definition of the previous version, may be null. Only its id
+	 *            is needed.
+	 */
+	static WorkflowDefinition storeDefinition(Dao<WorkflowDefinition, Long> definitions, byte[] content,
+			WorkflowDefinition previous) throws SQLException {
+		WorkflowDefinition existing = definitions.queryBuilder().where()
+				.eq("hash", WorkflowDefinition.hashOf(content)).queryForFirst();
+		if (existing != null) {
+			Metrics.increment("workflows.definitions.reused");
+			return existing;
+		}
+
+		WorkflowDefinition base = null;
+		byte[] baseContent = null;
+		if (previous != null) {
+			base = definitions.queryForId(previous.getId());
+			baseContent = (base == null) ? null : contentOf(definitions, base);
+		}
+		WorkflowDefinition created = WorkflowDefinition.encode(content, base, baseContent);
+		definitions.create(created);
+
+		Metrics.increment((created.getEncoding() == WorkflowDefinition.Encoding.DELTA)
+				? "workflows.definitions.deltas" : "workflows.definitions.full");
+		Metrics.add("workflows.definitions.bytes", created.getSize());
+		Metrics.add("workflows.definitions.storedBytes", created.getStoredSize());
+		return created;
+	}
+
+	/**
+	 * @return The uncompressed content of the definition, only its id is needed.
+	 */
+	static byte[] contentOf(Dao<WorkflowDefinition, Long> definitions, WorkflowDefinition definition)
+			throws SQLException {
+		// collect the differences down to the full content, then apply them upwards
+		Deque<WorkflowDefinition> chain = new ArrayDeque<>();
+		WorkflowDefinition current = definitions.queryForId(definition.getId());
+		while (current != null && current.getEncoding() == WorkflowDefinition.Encoding.DELTA) {
+			chain.push(current);
+			current = (current.getBase() == null) ? null : definitions.queryForId(current.getBase().getId());
+		}
+		if (current == null) {
+			throw new SQLException("Missing workflow definition below: " + definition.getId());
+		}
+
+		byte[] content = current.decode(null);
+		while (!chain.isEmpty()) {
+			content = chain.pop().decode(content);
+		}
+		return content;
+	}
+
+	private static Workflow withDefinition(Workflow workflow) throws SQLException {
+		if (workflow != null && workflow.getDefinition() == null && workflow.getDefinitionRef() != null) {
+			byte[] content = contentOf(definitionDao(), workflow.getDefinitionRef());
+			workflow.setDefinition(WorkflowDefinition.stringOf(content));
+		}
+		return workflow;
+	}
+
+	private static Workflow cached(Workflow workflow, long generation) {
+		if (workflow != null) {
+			CACHE.put(workflow, generation);
+		}
+		return workflow;
 	}
 
 	private static Where<Workflow, Long> whereNotDeleted() throws SQLException {
@@ -98,4 +234,8 @@ public class WorkflowDao {
 	private static Dao<Workflow, Long> dao() {
 		return DatabaseHelper.getInstance().getWorkflowDao();
 	}
+
+	private static Dao<WorkflowDefinition, Long> definitionDao() {
+		return DatabaseHelper.getInstance().getWorkflowDefinitionDao();
+	}
 }
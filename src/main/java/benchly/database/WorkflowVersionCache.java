@@ -0,0 +1,164 @@
+package benchly.database;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import benchly.model.User;
+import benchly.model.Workflow;
+import benchly.util.Metrics;
+
+/**
+ * Keeps recently used workflow versions by id, together with an index of the
+ * latest version for each versionId. Versions do not change once saved, except
+ * for no longer being the latest or being deleted, both of which go through
+ * the {@link WorkflowDao} and drop the affected entries. The least recently
+ * used versions are evicted once the configured number is reached.
+ *
+ * Workflows handed out are shared between requests and may not be modified.
+ */
+class WorkflowVersionCache {
+
+	private final int maxSize;
+
+	private final Map<Long, Workflow> versions;
+
+	private final Map<String, Long> latestIds = new HashMap<>();
+
+	// incremented on every invalidation, such that a version read from the database
+	// before it is not cached afterwards
+	private long generation = 0;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	WorkflowVersionCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.versions = new LinkedHashMap<Long, Workflow>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Workflow> eldest) {
+				if (size() <= WorkflowVersionCache.this.maxSize) {
+					return false;
+				}
+				Workflow evicted = eldest.getValue();
+				latestIds.remove(evicted.getVersionId(), evicted.getId());
+				Metrics.increment("workflows.cache.evictions");
+				return true;
+			}
+		};
+
+		Metrics.registerGauge("workflows.cache.size", this::size);
+		Metrics.registerGauge("workflows.cache.hitRate", () -> {
+			long hitCount = hits.sum();
+			long total = hitCount + misses.sum();
+			return (total == 0) ? 0.0 : hitCount / (double) total;
+		});
+	}
+
+	boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * @return The current generation, to be passed to {@link #put} for a version
+	 *         that is read from the database afterwards.
+	 */
+	synchronized long generation() {
+		return generation;
+	}
+
+	synchronized Workflow get(long id) {
+		return count(versions.get(id));
+	}
+
+	synchronized Workflow getLatest(String versionId) {
+		Long id = latestIds.get(versionId);
+		return count((id == null) ? null : versions.get(id));
+	}
+
+	/**
+	 * Cache a version read from the database, unless something was invalidated
+	 * since the given generation.
+	 */
+	synchronized void put(Workflow workflow, long readGeneration) {
+		if (readGeneration == generation && !workflow.isDeleted()) {
+			add(workflow);
+		}
+	}
+
+	/**
+	 * Cache a version that was just saved as the latest of its versionId.
+	 */
+	synchronized void putSaved(Workflow workflow) {
+		invalidateVersionsOf(workflow.getVersionId());
+		add(workflow);
+	}
+
+	/**
+	 * Drop the latest version of the versionId, which is no longer the latest or
+	 * was deleted.
+	 */
+	synchronized void invalidateVersionsOf(String versionId) {
+		generation += 1;
+		Long id = latestIds.remove(versionId);
+		if (id != null) {
+			versions.remove(id);
+			Metrics.increment("workflows.cache.invalidations");
+		}
+	}
+
+	synchronized void invalidate(long id) {
+		generation += 1;
+		Workflow removed = versions.remove(id);
+		if (removed != null) {
+			latestIds.remove(removed.getVersionId(), id);
+			Metrics.increment("workflows.cache.invalidations");
+		}
+	}
+
+	/**
+	 * Drop the versions written by the author, e.g. because the author's details
+	 * changed.
+	 */
+	synchronized void invalidateAuthor(User author) {
+		generation += 1;
+		versions.values().removeIf(workflow -> {
+			if (workflow.getAuthor() == null || workflow.getAuthor().getId() != author.getId()) {
+				return false;
+			}
+			latestIds.remove(workflow.getVersionId(), workflow.getId());
+			Metrics.increment("workflows.cache.invalidations");
+			return true;
+		});
+	}
+
+	private synchronized int size() {
+		return versions.size();
+	}
+
+	private void add(Workflow workflow) {
+		if (!isEnabled()) {
+			return;
+		}
+		versions.put(workflow.getId(), workflow);
+		if (workflow.isLatestVersion()) {
+			latestIds.put(workflow.getVersionId(), workflow.getId());
+		}
+	}
+
+	private Workflow count(Workflow workflow) {
+		if (workflow == null) {
+			misses.increment();
+			Metrics.increment("workflows.cache.misses");
+		} else {
+			hits.increment();
+			Metrics.increment("workflows.cache.hits");
+		}
+		return workflow;
+	}
+
+}
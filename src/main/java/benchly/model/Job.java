@@ -74,6 +74,11 @@ public class Job extends Model {
 	@Expose(deserialize = false)
 	private Timestamp lastChecked;
 
+	// when the executing server last pushed events for this job to us
+	@DatabaseField(columnName = "eventsPushedAt", canBeNull = true)
+	@Expose(deserialize = false)
+	private Timestamp eventsPushedAt;
+
 	public Job() {
 		this.state = State.PENDING;
 		this.createdAt = Timestamp.from(Instant.now());
@@ -166,6 +171,10 @@ public class Job extends Model {
 		this.endedAt = timestamp;
 	}
 
+	public Timestamp getCreatedAt() {
+		return createdAt;
+	}
+
 	public Timestamp getLastChecked() {
 		return lastChecked;
 	}
@@ -174,6 +183,14 @@ public class Job extends Model {
 		this.lastChecked = Timestamp.from(Instant.now());
 	}
 
+	public Timestamp getEventsPushedAt() {
+		return eventsPushedAt;
+	}
+
+	public void setEventsPushedNow() {
+		this.eventsPushedAt = Timestamp.from(Instant.now());
+	}
+
 	@Override
 	public boolean validate() {
 		// TODO Auto-generated method stub
@@ -0,0 +1,93 @@
+package benchly.model;
+
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jclouds.http.HttpRequest;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * A request signed for a storage provider, which a client may send to the
+ * provider directly until it expires. Clients asking for an upload name the
+ * file and may give its size and content type.
+ */
+public class PresignedUrl extends Model {
+
+	// the file to upload as asked for by the client
+	@Expose(serialize = false)
+	private String name;
+
+	@Expose(serialize = false)
+	private long size = -1;
+
+	@Expose(serialize = false)
+	private String contentType;
+
+	// the request to send to the provider
+	@Expose(deserialize = false)
+	private String method;
+
+	@Expose(deserialize = false)
+	private String url;
+
+	// headers that have to be sent along with the request
+	@Expose(deserialize = false)
+	private Map<String, String> headers;
+
+	@Expose(deserialize = false)
+	private Timestamp expiresAt;
+
+	public static PresignedUrl from(HttpRequest request, Timestamp expiresAt) {
+		PresignedUrl result = new PresignedUrl();
+
+		result.method = request.getMethod();
+		result.url = request.getEndpoint().toString();
+		result.headers = new LinkedHashMap<>();
+		request.getHeaders().asMap()
+				.forEach((header, values) -> result.headers.put(header, String.join(", ", values)));
+		result.expiresAt = expiresAt;
+
+		return result;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public Timestamp getExpiresAt() {
+		return expiresAt;
+	}
+
+	@Override
+	public boolean validate() {
+		valid = true;
+
+		if (StringUtils.isBlank(name)) {
+			addError("A file name is required.");
+		} else if (name.contains("/") || name.contains("\\")) {
+			addError("File names may not contain path separators.");
+		}
+
+		return valid;
+	}
+
+}
@@ -94,4 +94,8 @@ public class ServerContact {
 		return approximateRunningJobs;
 	}
 
+	public Timestamp getLastChecked() {
+		return lastChecked;
+	}
+
 }
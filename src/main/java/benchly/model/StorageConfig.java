@@ -7,10 +7,8 @@ import org.apache.commons.lang3.StringUtils;
 
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
-import com.j256.ormlite.dao.ForeignCollection;
 import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
-import com.j256.ormlite.field.ForeignCollectionField;
 import com.j256.ormlite.table.DatabaseTable;
 
 import benchly.error.InvalidRequestException;
@@ -78,15 +76,19 @@ public class StorageConfig extends Model {
 	@Expose
 	private String container;
 
-	// defines which users have access to this storage config (n to n)
-	@ForeignCollectionField(foreignFieldName = "storageConfig", eager = true)
+	// a summary of the files and access permissions of this config, kept up to
+	// date along with them, such that listings do not have to load either
+	@DatabaseField(columnName = "fileCount", canBeNull = false)
 	@Expose(deserialize = false)
-	private ForeignCollection<StoragePermission> accessPermissions;
+	private long fileCount;
 
-	// locally stored information about the files accessible via this config
-	@ForeignCollectionField(foreignFieldName = "storageConfig", eager = true)
+	@DatabaseField(columnName = "totalBytes", canBeNull = false)
 	@Expose(deserialize = false)
-	private ForeignCollection<StorageFileMeta> filesMeta;
+	private long totalBytes;
+
+	@DatabaseField(columnName = "permissionCount", canBeNull = false)
+	@Expose(deserialize = false)
+	private long permissionCount;
 
 	@DatabaseField(columnName = "createdAt", canBeNull = false, index = true)
 	@Expose(deserialize = false)
@@ -100,6 +102,14 @@ public class StorageConfig extends Model {
 	@Expose(deserialize = false)
 	private Timestamp refreshedAt;
 
+	// where an unfinished refresh of the file meta continues: the provider's
+	// marker for the next listing page and the last file name compared so far
+	@DatabaseField(columnName = "refreshMarker", canBeNull = true, dataType = DataType.LONG_STRING)
+	private String refreshMarker;
+
+	@DatabaseField(columnName = "refreshedUpTo", canBeNull = true, dataType = DataType.LONG_STRING)
+	private String refreshedUpTo;
+
 	public StorageConfig() {
 		this.createdAt = Timestamp.from(Instant.now());
 		;
@@ -169,16 +179,32 @@ public class StorageConfig extends Model {
 		setUpdatedAt(Timestamp.from(Instant.now()));
 	}
 	
+	public Timestamp getRefreshedAt() {
+		return refreshedAt;
+	}
+
 	public void setRefreshedAtNow() {
 		this.refreshedAt = Timestamp.from(Instant.now());
 	}
 
-	public ForeignCollection<StoragePermission> getAccessPermissions() {
-		return this.accessPermissions;
+	public String getRefreshMarker() {
+		return refreshMarker;
+	}
+
+	public String getRefreshedUpTo() {
+		return refreshedUpTo;
+	}
+
+	public long getFileCount() {
+		return fileCount;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
 	}
 
-	public ForeignCollection<StorageFileMeta> getFilesMeta() {
-		return this.filesMeta;
+	public long getPermissionCount() {
+		return permissionCount;
 	}
 
 	public StorageCredential generateNewEncryptedCredential() throws InvalidRequestException {
@@ -65,7 +65,10 @@ public class StorageFileMeta extends Model {
 		result.storageConfig = config;
 		result.name = storageMeta.getName();
 		result.size = storageMeta.getSize();
-		result.lastModified = storageMeta.getLastModified();
+		// whole seconds, which is what every database keeps
+		Date lastModified = storageMeta.getLastModified();
+		result.lastModified = (lastModified == null) ? null
+				: new Date(Math.floorDiv(lastModified.getTime(), 1000L) * 1000L);
 
 		return result;
 	}
@@ -0,0 +1,220 @@
+package benchly.model;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+import com.google.gson.annotations.Expose;
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * A copy of files from one storage config to another that is done by the
+ * server. Each file is an item of the transfer, items already copied are
+ * skipped when an interrupted or failed transfer is resumed.
+ */
+@DatabaseTable(tableName = "storage_transfer")
+public class StorageTransfer extends Model {
+
+	public static enum State {
+		PENDING, RUNNING, SUCCEEDED, FAILED, CANCELLED
+	}
+
+	@DatabaseField(columnName = "id", generatedId = true)
+	@Expose(deserialize = false)
+	private long id;
+
+	@DatabaseField(columnName = "state", canBeNull = false, index = true)
+	@Expose(deserialize = false)
+	private State state;
+
+	@DatabaseField(columnName = "owner", canBeNull = false, foreign = true, foreignAutoRefresh = true, index = true)
+	@Expose(deserialize = false)
+	private User owner;
+
+	@DatabaseField(columnName = "source", canBeNull = false, foreign = true, foreignAutoRefresh = true, index = true)
+	@Expose(deserialize = false)
+	private StorageConfig source;
+
+	@DatabaseField(columnName = "target", canBeNull = false, foreign = true, foreignAutoRefresh = true, index = true)
+	@Expose(deserialize = false)
+	private StorageConfig target;
+
+	// the configs and the ids of the source's files to copy, only read on creation
+	@Expose(serialize = false)
+	private long sourceId;
+
+	@Expose(serialize = false)
+	private long targetId;
+
+	@Expose(serialize = false)
+	private List<Long> fileIds;
+
+	@DatabaseField(columnName = "fileCount", canBeNull = false)
+	@Expose(deserialize = false)
+	private long fileCount;
+
+	@DatabaseField(columnName = "bytesTotal", canBeNull = false)
+	@Expose(deserialize = false)
+	private long bytesTotal;
+
+	@DatabaseField(columnName = "filesDone", canBeNull = false)
+	@Expose(deserialize = false)
+	private long filesDone;
+
+	@DatabaseField(columnName = "bytesDone", canBeNull = false)
+	@Expose(deserialize = false)
+	private long bytesDone;
+
+	// the current throughput, only set while the transfer is running
+	@Expose(deserialize = false)
+	private Long bytesPerSecond;
+
+	// why the transfer failed
+	@DatabaseField(columnName = "error", canBeNull = true, dataType = DataType.LONG_STRING)
+	@Expose(deserialize = false)
+	private String error;
+
+	@DatabaseField(columnName = "createdAt", canBeNull = false, index = true)
+	@Expose(deserialize = false)
+	private Timestamp createdAt;
+
+	@DatabaseField(columnName = "startedAt", canBeNull = true)
+	@Expose(deserialize = false)
+	private Timestamp startedAt;
+
+	@DatabaseField(columnName = "endedAt", canBeNull = true)
+	@Expose(deserialize = false)
+	private Timestamp endedAt;
+
+	public StorageTransfer() {
+		this.state = State.PENDING;
+		this.createdAt = Timestamp.from(Instant.now());
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public void setState(State state) {
+		this.state = state;
+	}
+
+	public User getOwner() {
+		return owner;
+	}
+
+	public void setOwner(User owner) {
+		this.owner = owner;
+	}
+
+	public StorageConfig getSource() {
+		return source;
+	}
+
+	public void setSource(StorageConfig source) {
+		this.source = source;
+	}
+
+	public StorageConfig getTarget() {
+		return target;
+	}
+
+	public void setTarget(StorageConfig target) {
+		this.target = target;
+	}
+
+	public long getSourceId() {
+		return sourceId;
+	}
+
+	public long getTargetId() {
+		return targetId;
+	}
+
+	public List<Long> getFileIds() {
+		return fileIds;
+	}
+
+	public long getFileCount() {
+		return fileCount;
+	}
+
+	public long getBytesTotal() {
+		return bytesTotal;
+	}
+
+	/**
+	 * Set the totals from the files that are to be copied.
+	 */
+	public void setTotals(long fileCount, long bytesTotal) {
+		this.fileCount = fileCount;
+		this.bytesTotal = bytesTotal;
+	}
+
+	public long getFilesDone() {
+		return filesDone;
+	}
+
+	public long getBytesDone() {
+		return bytesDone;
+	}
+
+	/**
+	 * Show the progress of a running transfer, which includes the bytes of files
+	 * that are still being copied.
+	 */
+	public void setLiveProgress(long bytesDone, long bytesPerSecond) {
+		this.bytesDone = bytesDone;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	public Timestamp getCreatedAt() {
+		return createdAt;
+	}
+
+	public Timestamp getStartedAt() {
+		return startedAt;
+	}
+
+	public Timestamp getEndedAt() {
+		return endedAt;
+	}
+
+	public boolean isActive() {
+		return state == State.PENDING || state == State.RUNNING;
+	}
+
+	@Override
+	public boolean validate() {
+		valid = true;
+
+		if (owner == null) {
+			addError("No user set on transfer.");
+		}
+		if (source == null || target == null) {
+			addError("A source and a target storage config are required for a transfer.");
+		} else if (source.getId() == target.getId()) {
+			addError("Source and target of a transfer have to be different storage configs.");
+		}
+		if (fileIds == null || fileIds.isEmpty()) {
+			addError("No files given to transfer.");
+		}
+
+		return valid;
+	}
+
+}
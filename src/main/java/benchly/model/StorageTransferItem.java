@@ -0,0 +1,61 @@
+package benchly.model;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * A single file of a transfer between storage configs.
+ */
+@DatabaseTable(tableName = "storage_transfer_item")
+public class StorageTransferItem {
+
+	@DatabaseField(columnName = "id", generatedId = true)
+	private long id;
+
+	@DatabaseField(columnName = "transfer", canBeNull = false, foreign = true, index = true)
+	private StorageTransfer transfer;
+
+	// the file's name, which is the same in source and target
+	@DatabaseField(columnName = "name", canBeNull = false, dataType = DataType.LONG_STRING)
+	private String name;
+
+	// the size of the file when the transfer was created
+	@DatabaseField(columnName = "size", canBeNull = false)
+	private long size;
+
+	@DatabaseField(columnName = "done", canBeNull = false)
+	private boolean done;
+
+	protected StorageTransferItem() {
+		// empty constructor mainly for ormlite
+	}
+
+	public StorageTransferItem(StorageTransfer transfer, StorageFileMeta file) {
+		this.transfer = transfer;
+		this.name = file.getName();
+		this.size = file.getSize();
+		this.done = false;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public StorageTransfer getTransfer() {
+		return transfer;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+}
@@ -0,0 +1,171 @@
+package benchly.model;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.gson.annotations.Expose;
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * A resumable upload of a single file to a storage config. The file is sent in
+ * numbered chunks of equal size (except for the last one), each of which is
+ * uploaded as a part of a multipart upload at the provider.
+ */
+@DatabaseTable(tableName = "storage_upload")
+public class StorageUpload extends Model {
+
+	@DatabaseField(columnName = "id", generatedId = true)
+	@Expose(deserialize = false)
+	private long id;
+
+	@DatabaseField(columnName = "storageConfig", canBeNull = false, foreign = true, index = true)
+	private StorageConfig storageConfig;
+
+	// the user that started the upload and may continue it
+	@DatabaseField(columnName = "owner", canBeNull = false, foreign = true, foreignAutoRefresh = true, index = true)
+	private User owner;
+
+	// the name of the file once it is complete
+	@DatabaseField(columnName = "name", canBeNull = false, dataType = DataType.LONG_STRING)
+	@Expose
+	private String name;
+
+	// the size of the whole file in bytes
+	@DatabaseField(columnName = "size", canBeNull = false)
+	@Expose
+	private long size;
+
+	// the size of each chunk, the client may suggest one
+	@DatabaseField(columnName = "chunkSize", canBeNull = false)
+	@Expose
+	private int chunkSize;
+
+	@DatabaseField(columnName = "chunkCount", canBeNull = false)
+	@Expose(deserialize = false)
+	private int chunkCount;
+
+	// the id of the multipart upload at the storage provider
+	@DatabaseField(columnName = "providerUploadId", canBeNull = false, dataType = DataType.LONG_STRING)
+	private String providerUploadId;
+
+	// the numbers of the chunks received so far, only set when shown to the client
+	@Expose(deserialize = false)
+	private List<Integer> receivedChunks;
+
+	@DatabaseField(columnName = "createdAt", canBeNull = false)
+	@Expose(deserialize = false)
+	private Timestamp createdAt;
+
+	@DatabaseField(columnName = "updatedAt", canBeNull = false)
+	@Expose(deserialize = false)
+	private Timestamp updatedAt;
+
+	public StorageUpload() {
+		this.createdAt = Timestamp.from(Instant.now());
+		this.updatedAt = this.createdAt;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public StorageConfig getStorageConfig() {
+		return storageConfig;
+	}
+
+	public void setStorageConfig(StorageConfig storageConfig) {
+		this.storageConfig = storageConfig;
+	}
+
+	public User getOwner() {
+		return owner;
+	}
+
+	public void setOwner(User owner) {
+		this.owner = owner;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Set the chunk size and with it the number of chunks the file is sent in.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+		this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * @return The number of bytes the chunk with the given number (starting at 1)
+	 *         has to have.
+	 */
+	public long expectedChunkSize(int number) {
+		if (number < chunkCount) {
+			return chunkSize;
+		}
+		return size - (long) (chunkCount - 1) * chunkSize;
+	}
+
+	public String getProviderUploadId() {
+		return providerUploadId;
+	}
+
+	public void setProviderUploadId(String providerUploadId) {
+		this.providerUploadId = providerUploadId;
+	}
+
+	public void setReceivedChunks(List<Integer> receivedChunks) {
+		this.receivedChunks = receivedChunks;
+	}
+
+	public Timestamp getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setUpdatedAtNow() {
+		this.updatedAt = Timestamp.from(Instant.now());
+	}
+
+	@Override
+	public boolean validate() {
+		valid = true;
+
+		if (storageConfig == null) {
+			addError("No storage config set on upload.");
+		}
+		if (owner == null) {
+			addError("No user set on upload.");
+		}
+		if (StringUtils.isBlank(name)) {
+			addError("A file name is required for the upload.");
+		}
+		if (size <= 0) {
+			addError("The size of the uploaded file has to be given in bytes.");
+		}
+		if (chunkSize < 0) {
+			addError("The chunk size may not be negative.");
+		}
+
+		return valid;
+	}
+
+}
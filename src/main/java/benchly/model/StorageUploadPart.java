@@ -0,0 +1,64 @@
+package benchly.model;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * A chunk of a resumable upload that arrived at the storage provider.
+ */
+@DatabaseTable(tableName = "storage_upload_part")
+public class StorageUploadPart {
+
+	@DatabaseField(columnName = "id", generatedId = true)
+	private long id;
+
+	@DatabaseField(columnName = "upload", canBeNull = false, foreign = true, uniqueIndexName = "uploadToNumber", index = true)
+	private StorageUpload upload;
+
+	// the chunk number, which is also the part number at the provider
+	@DatabaseField(columnName = "number", canBeNull = false, uniqueIndexName = "uploadToNumber")
+	private int number;
+
+	@DatabaseField(columnName = "size", canBeNull = false)
+	private long size;
+
+	// the provider's tag for the part, needed to complete the upload
+	@DatabaseField(columnName = "eTag", dataType = DataType.LONG_STRING)
+	private String eTag;
+
+	@DatabaseField(columnName = "uploadedAt", canBeNull = false)
+	private Timestamp uploadedAt;
+
+	protected StorageUploadPart() {
+		// empty constructor mainly for ormlite
+	}
+
+	public StorageUploadPart(StorageUpload upload, int number, long size, String eTag) {
+		this.upload = upload;
+		this.number = number;
+		this.size = size;
+		this.eTag = eTag;
+		this.uploadedAt = Timestamp.from(Instant.now());
+	}
+
+	public StorageUpload getUpload() {
+		return upload;
+	}
+
+	public int getNumber() {
+		return number;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getETag() {
+		return eTag;
+	}
+
+}
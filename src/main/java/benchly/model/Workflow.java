@@ -29,7 +29,11 @@ public class Workflow extends Model {
 	@Expose
 	private String name;
 
-	@DatabaseField(columnName = "definition", dataType = DataType.LONG_STRING)
+	// the stored definition, shared by versions with the same content
+	@DatabaseField(columnName = "definitionRef", foreign = true, index = true)
+	private WorkflowDefinition definitionRef;
+
+	// only read from the definition when a single version is fetched
 	@Expose
 	private String definition;
 
@@ -83,6 +87,18 @@ public class Workflow extends Model {
 		return definition;
 	}
 
+	public void setDefinition(String definition) {
+		this.definition = definition;
+	}
+
+	public WorkflowDefinition getDefinitionRef() {
+		return definitionRef;
+	}
+
+	public void setDefinitionRef(WorkflowDefinition definitionRef) {
+		this.definitionRef = definitionRef;
+	}
+
 	public User getAuthor() {
 		return author;
 	}
@@ -0,0 +1,256 @@
+package benchly.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The definition of one or more workflow versions, stored once per distinct
+ * content and found by the content's hash. The content is compressed, either
+ * on its own or as the difference to the definition of the previous version,
+ * whichever is smaller. Differences are chained only up to a fixed depth, such
+ * that reading a definition needs a bounded number of rows.
+ */
+@DatabaseTable(tableName = "workflow_definition")
+public class WorkflowDefinition {
+
+	public static enum Encoding {
+		// the deflated content
+		FULL,
+
+		// the deflated difference to the base's content
+		DELTA
+	}
+
+	// how many differences may have to be applied to read a definition
+	public static final int MAX_DELTA_DEPTH = 8;
+
+	@DatabaseField(columnName = "id", generatedId = true)
+	private long id;
+
+	// the sha-256 of the uncompressed content as hex string
+	@DatabaseField(columnName = "hash", canBeNull = false, unique = true, width = 64)
+	private String hash;
+
+	@DatabaseField(columnName = "encoding", canBeNull = false)
+	private Encoding encoding;
+
+	// the definition the difference applies to, only for deltas
+	@DatabaseField(columnName = "base", foreign = true)
+	private WorkflowDefinition base;
+
+	// the number of differences to apply, 0 for full contents
+	@DatabaseField(columnName = "depth", canBeNull = false)
+	private int depth;
+
+	// the number of bytes of the uncompressed content
+	@DatabaseField(columnName = "size", canBeNull = false)
+	private int size;
+
+	@DatabaseField(columnName = "content", canBeNull = false, dataType = DataType.BYTE_ARRAY)
+	private byte[] content;
+
+	@DatabaseField(columnName = "createdAt", canBeNull = false)
+	private Timestamp createdAt;
+
+	protected WorkflowDefinition() {
+		// empty constructor mainly for ormlite
+	}
+
+	private WorkflowDefinition(String hash, Encoding encoding, WorkflowDefinition base, int size, byte[] content) {
+		this.hash = hash;
+		this.encoding = encoding;
+		this.base = base;
+		this.depth = (base == null) ? 0 : base.depth + 1;
+		this.size = size;
+		this.content = content;
+		this.createdAt = Timestamp.from(Instant.now());
+	}
+
+	/**
+	 * Encode the content, as a difference to the base if that is smaller.
+	 *
+	 * @param base
+	 *            The previous version's definition, may be null.
+	 * @param baseContent
+	 *            The base's uncompressed content, if a base is given.
+	 */
+	public static WorkflowDefinition encode(byte[] content, WorkflowDefinition base, byte[] baseContent) {
+		String hash = hashOf(content);
+		byte[] full = deflate(content);
+		if (base != null && base.depth < MAX_DELTA_DEPTH) {
+			byte[] delta = deflate(difference(baseContent, content));
+			if (delta.length < full.length) {
+				return new WorkflowDefinition(hash, Encoding.DELTA, base, content.length, delta);
+			}
+		}
+		return new WorkflowDefinition(hash, Encoding.FULL, null, content.length, full);
+	}
+
+	/**
+	 * @param baseContent
+	 *            The base's uncompressed content, ignored for full contents.
+	 * @return The uncompressed content.
+	 */
+	public byte[] decode(byte[] baseContent) {
+		byte[] inflated = inflate(content);
+		if (encoding == Encoding.FULL) {
+			return inflated;
+		}
+		return applyDifference(baseContent, inflated, size);
+	}
+
+	public static String hashOf(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available.", e);
+		}
+	}
+
+	public static byte[] bytesOf(String definition) {
+		return definition.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static String stringOf(byte[] content) {
+		return new String(content, StandardCharsets.UTF_8);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public Encoding getEncoding() {
+		return encoding;
+	}
+
+	public WorkflowDefinition getBase() {
+		return base;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getStoredSize() {
+		return content.length;
+	}
+
+	// Versions mostly change in one place, so the difference is the length of the
+	// common prefix and suffix followed by the bytes in between.
+	private static byte[] difference(byte[] from, byte[] to) {
+		int max = Math.min(from.length, to.length);
+		int prefix = 0;
+		while (prefix < max && from[prefix] == to[prefix]) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < max - prefix && from[from.length - 1 - suffix] == to[to.length - 1 - suffix]) {
+			suffix++;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(to.length - prefix - suffix + 10);
+		writeVarInt(out, prefix);
+		writeVarInt(out, suffix);
+		out.write(to, prefix, to.length - prefix - suffix);
+		return out.toByteArray();
+	}
+
+	private static byte[] applyDifference(byte[] from, byte[] difference, int size) {
+		int[] position = { 0 };
+		int prefix = readVarInt(difference, position);
+		int suffix = readVarInt(difference, position);
+		int middle = difference.length - position[0];
+		if (prefix + suffix > from.length || prefix + middle + suffix != size) {
+			throw new IllegalStateException("Workflow definition difference does not match its base.");
+		}
+
+		byte[] result = new byte[size];
+		System.arraycopy(from, 0, result, 0, prefix);
+		System.arraycopy(difference, position[0], result, prefix, middle);
+		System.arraycopy(from, from.length - suffix, result, prefix + middle, suffix);
+		return result;
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarInt(byte[] bytes, int[] position) {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = bytes[position[0]++];
+			result |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IllegalStateException("Malformed number in workflow definition difference.");
+	}
+
+	private static byte[] deflate(byte[] bytes) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] bytes) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated workflow definition.");
+				}
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException | IOException e) {
+			throw new IllegalStateException("Unable to decompress workflow definition: " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,385 @@
+package benchly.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import benchly.error.StorageAccessError;
+import benchly.model.StorageConfig;
+import benchly.model.StorageFileMeta;
+import benchly.util.BufferPool;
+import benchly.util.Metrics;
+import benchly.util.TarOutputStream;
+
+/**
+ * Streams several files of a storage config as a single archive that is built
+ * while it is sent. The next few files are fetched from the provider ahead of
+ * the one being written, each into a small bounded queue of chunks, such that a
+ * slow file does not hold up the archive while the files after it arrive. At
+ * most a few chunks per file are held in memory, nothing is written to disk.
+ */
+public class ArchiveStreamer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ArchiveStreamer.class);
+
+	public static enum Format {
+
+		ZIP("zip", "application/zip"),
+
+		TAR("tar", "application/x-tar");
+
+		private final String extension;
+
+		private final String contentType;
+
+		private Format(String extension, String contentType) {
+			this.extension = extension;
+			this.contentType = contentType;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * @return The format with the given extension or null if there is none.
+		 */
+		public static Format fromExtension(String extension) {
+			for (Format format : values()) {
+				if (format.extension.equalsIgnoreCase(extension)) {
+					return format;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	// how many chunks of a single file may wait to be written
+	private static final int CHUNKS_PER_FILE = 4;
+
+	private static final BufferPool CHUNKS = new BufferPool("storage.archive", CHUNK_SIZE, 64);
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	// the number of threads is bounded by the read-ahead of the running archives
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "benchly-archive-" + THREAD_COUNT.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final BlobStore blobStore;
+
+	private final StorageConfig config;
+
+	private final int readAhead;
+
+	ArchiveStreamer(BlobStore blobStore, StorageConfig config, int readAhead) {
+		this.blobStore = blobStore;
+		this.config = config;
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * Write the files as an archive to the stream, in the order given. Files that
+	 * vanished from the provider in the meantime are left out.
+	 *
+	 * @return The number of file bytes written.
+	 */
+	long stream(List<StorageFileMeta> files, Format format, OutputStream out) throws IOException, StorageAccessError {
+		ArchiveOutput archive = (format == Format.TAR) ? new TarArchive(out) : new ZipArchive(out);
+		Deque<Fetch> ahead = new ArrayDeque<>(readAhead);
+		Iterator<StorageFileMeta> remaining = files.iterator();
+		Fetch current = null;
+		long total = 0;
+		try {
+			while (true) {
+				while (ahead.size() < readAhead && remaining.hasNext()) {
+					Fetch fetch = new Fetch(remaining.next());
+					ahead.add(fetch);
+					EXECUTOR.execute(fetch);
+				}
+				current = ahead.poll();
+				if (current == null) {
+					break;
+				}
+
+				BlobMetadata meta = current.awaitOpened();
+				if (meta == null) {
+					LOG.warn("Leaving file missing in storage out of archive: " + current.fileMeta.getName());
+					Metrics.increment("storage.archive.missingFiles");
+					continue;
+				}
+				Long contentLength = meta.getContentMetadata().getContentLength();
+				long size = (contentLength == null) ? current.fileMeta.getSize() : contentLength;
+				Date lastModified = (meta.getLastModified() == null) ? current.fileMeta.getLastModified()
+						: meta.getLastModified();
+
+				OutputStream entry = archive.begin(entryName(current.fileMeta.getName()), size,
+						(lastModified == null) ? System.currentTimeMillis() : lastModified.getTime());
+				long written = current.copyTo(entry);
+				archive.end();
+
+				total += written;
+				Metrics.increment("storage.archive.files");
+				Metrics.add("storage.archive.bytes", written);
+			}
+			archive.finish();
+			return total;
+		} finally {
+			if (current != null) {
+				ahead.addFirst(current);
+			}
+			for (Fetch fetch : ahead) {
+				fetch.cancel();
+			}
+			// the fetches use the blob store, which may be closed once we return
+			for (Fetch fetch : ahead) {
+				fetch.awaitDone();
+			}
+		}
+	}
+
+	// archives may not contain absolute paths
+	private static String entryName(String name) {
+		int start = 0;
+		while (start < name.length() - 1 && name.charAt(start) == '/') {
+			start++;
+		}
+		return name.substring(start);
+	}
+
+	private static class Chunk {
+
+		private static final Chunk END = new Chunk(null, -1);
+
+		private final byte[] buffer;
+
+		private final int length;
+
+		private Chunk(byte[] buffer, int length) {
+			this.buffer = buffer;
+			this.length = length;
+		}
+	}
+
+	// fetches a single file in the background into a bounded queue of chunks
+	private class Fetch implements Runnable {
+
+		private final StorageFileMeta fileMeta;
+
+		// completes with null if the file does not exist
+		private final CompletableFuture<BlobMetadata> opened = new CompletableFuture<>();
+
+		private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(CHUNKS_PER_FILE);
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile boolean cancelled = false;
+
+		private volatile Exception failure = null;
+
+		private Fetch(StorageFileMeta fileMeta) {
+			this.fileMeta = fileMeta;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Blob blob = cancelled ? null : blobStore.getBlob(config.getContainer(), fileMeta.getName());
+				if (blob == null) {
+					opened.complete(null);
+					return;
+				}
+				opened.complete(blob.getMetadata());
+				try (InputStream in = blob.getPayload().openStream()) {
+					while (!cancelled) {
+						byte[] buffer = CHUNKS.take();
+						int count = MultipartUploader.readFully(in, buffer);
+						if (count > 0) {
+							put(new Chunk(buffer, count));
+						} else {
+							CHUNKS.give(buffer);
+						}
+						if (count < buffer.length) {
+							break;
+						}
+					}
+				}
+			} catch (Exception e) {
+				failure = e;
+				opened.completeExceptionally(e);
+			} finally {
+				put(Chunk.END);
+				done.countDown();
+			}
+		}
+
+		// waits for room in the queue unless the fetch is cancelled
+		private void put(Chunk chunk) {
+			try {
+				while (!cancelled) {
+					if (chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			CHUNKS.give(chunk.buffer);
+		}
+
+		private BlobMetadata awaitOpened() throws StorageAccessError {
+			long start = System.nanoTime();
+			try {
+				return opened.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StorageAccessError("Interrupted while waiting for file: " + fileMeta.getName(), e);
+			} catch (ExecutionException e) {
+				throw new StorageAccessError("Unable to fetch file for archive: " + fileMeta.getName(), e.getCause());
+			} finally {
+				Metrics.recordNanos("storage.archive.wait", System.nanoTime() - start);
+			}
+		}
+
+		private long copyTo(OutputStream out) throws IOException, StorageAccessError {
+			long total = 0;
+			while (true) {
+				Chunk chunk = chunks.poll();
+				if (chunk == null) {
+					long start = System.nanoTime();
+					try {
+						chunk = chunks.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new StorageAccessError("Interrupted while waiting for file: " + fileMeta.getName(), e);
+					}
+					Metrics.recordNanos("storage.archive.wait", System.nanoTime() - start);
+				}
+				if (chunk == Chunk.END) {
+					break;
+				}
+				try {
+					out.write(chunk.buffer, 0, chunk.length);
+				} finally {
+					CHUNKS.give(chunk.buffer);
+				}
+				total += chunk.length;
+			}
+			if (failure != null) {
+				throw new StorageAccessError("Unable to read file for archive: " + fileMeta.getName(), failure);
+			}
+			return total;
+		}
+
+		private void cancel() {
+			cancelled = true;
+			Chunk chunk;
+			while ((chunk = chunks.poll()) != null) {
+				CHUNKS.give(chunk.buffer);
+			}
+		}
+
+		private void awaitDone() {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private interface ArchiveOutput {
+
+		OutputStream begin(String name, long size, long modifiedMillis) throws IOException;
+
+		void end() throws IOException;
+
+		void finish() throws IOException;
+	}
+
+	private static class ZipArchive implements ArchiveOutput {
+
+		private final ZipOutputStream zip;
+
+		private ZipArchive(OutputStream out) {
+			// sizes and checksums follow each entry, so nothing has to be known up front
+			this.zip = new ZipOutputStream(out);
+			this.zip.setLevel(Deflater.BEST_SPEED);
+		}
+
+		@Override
+		public OutputStream begin(String name, long size, long modifiedMillis) throws IOException {
+			ZipEntry entry = new ZipEntry(name);
+			entry.setTime(modifiedMillis);
+			zip.putNextEntry(entry);
+			return zip;
+		}
+
+		@Override
+		public void end() throws IOException {
+			zip.closeEntry();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			zip.finish();
+		}
+	}
+
+	private static class TarArchive implements ArchiveOutput {
+
+		private final TarOutputStream tar;
+
+		private TarArchive(OutputStream out) {
+			this.tar = new TarOutputStream(out);
+		}
+
+		@Override
+		public OutputStream begin(String name, long size, long modifiedMillis) throws IOException {
+			tar.putNextEntry(name, size, modifiedMillis);
+			return tar;
+		}
+
+		@Override
+		public void end() throws IOException {
+			tar.closeEntry();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			tar.finish();
+		}
+	}
+
+}
@@ -0,0 +1,471 @@
+package benchly.remote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.server.HttpOutput;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import benchly.Benchly;
+import benchly.error.StorageAccessError;
+import benchly.model.StorageConfig;
+import benchly.util.BufferPool;
+import benchly.util.ByteRange;
+import benchly.util.Metrics;
+
+/**
+ * Keeps recently downloaded files on local disk, such that files downloaded by
+ * many users are fetched from the storage provider only once. Entries are
+ * keyed by the config, the file name and the file's ETag (or modification date)
+ * at the provider, so a changed file is simply a new entry. The least recently
+ * used entries are evicted when the configured size is exceeded.
+ *
+ * The first request for a file starts to fill the entry in the background. It
+ * and concurrent requests for the same file read what has been written so far
+ * and wait for the rest.
+ *
+ * The index is only kept in memory, files left from an earlier run are removed
+ * on startup.
+ */
+public class BlobCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BlobCache.class);
+
+	private static BlobCache instance = null;
+
+	// hits are sent in mapped slices of at most this size
+	private static final long MAX_MAPPED_BYTES = 64 * 1024 * 1024;
+
+	private static final BufferPool FILL_BUFFERS = new BufferPool("storage.cache", 256 * 1024, 16);
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	// makes the file of each entry unique, a replaced entry may still have readers
+	private static final AtomicLong FILE_COUNT = new AtomicLong();
+
+	// files are fetched into the cache in the background, such that a slow client
+	// does not slow down the others waiting for the same file
+	private static final ExecutorService FILL_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "benchly-cache-fill-" + THREAD_COUNT.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Opens the file at the storage provider if it has to be fetched.
+	 */
+	@FunctionalInterface
+	public static interface BlobSource {
+		InputStream open() throws IOException, StorageAccessError;
+	}
+
+	// a cached file, either complete or still being filled
+	private static class Entry {
+
+		private final String validator;
+
+		private final Path path;
+
+		private final long size;
+
+		private long written = 0;
+
+		private volatile boolean complete = false;
+
+		private volatile boolean failed = false;
+
+		private int readers = 0;
+
+		private boolean evicted = false;
+
+		private Entry(String validator, Path path, long size) {
+			this.validator = validator;
+			this.path = path;
+			this.size = size;
+		}
+
+		private synchronized void advance(long count) {
+			written += count;
+			notifyAll();
+		}
+
+		private synchronized void finish(boolean success) {
+			complete = success;
+			failed = !success;
+			notifyAll();
+		}
+
+		// wait until more than the given number of bytes are written or the fill ended
+		private synchronized long awaitBeyond(long position) throws IOException {
+			while (written <= position && !complete && !failed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the cache to be filled.", e);
+				}
+			}
+			if (failed) {
+				throw new IOException("Filling the cache from the storage provider failed.");
+			}
+			return written;
+		}
+	}
+
+	private final Path directory;
+
+	private final long maxBytes;
+
+	private long usedBytes = 0;
+
+	// entries by config id and file name, in the order of their last access
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private BlobCache(Path directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	// return the singleton instance, a cache without a directory is disabled
+	public static synchronized BlobCache getInstance() {
+		if (instance == null) {
+			String dir = Benchly.getConfig().getBlobCacheDir();
+			long maxBytes = Benchly.getConfig().getBlobCacheSizeMegabytes() * 1024L * 1024L;
+			instance = new BlobCache(StringUtils.isBlank(dir) ? null : Paths.get(dir), maxBytes);
+			instance.setup();
+		}
+		return instance;
+	}
+
+	private void setup() {
+		if (directory == null) {
+			return;
+		}
+		try {
+			Files.createDirectories(directory);
+			File[] leftOver = directory.toFile().listFiles((dir, name) -> name.endsWith(".blob"));
+			for (File file : (leftOver == null) ? new File[0] : leftOver) {
+				Files.deleteIfExists(file.toPath());
+			}
+		} catch (IOException e) {
+			LOG.error("Unable to set up the blob cache in " + directory + ": " + e.getMessage());
+		}
+		Metrics.registerGauge("storage.cache.bytes", () -> {
+			synchronized (this) {
+				return usedBytes;
+			}
+		});
+		Metrics.registerGauge("storage.cache.entries", () -> {
+			synchronized (this) {
+				return entries.size();
+			}
+		});
+	}
+
+	public boolean isEnabled() {
+		return directory != null && maxBytes > 0;
+	}
+
+	/**
+	 * @return Whether the file may be cached, i.e. it is not larger than the cache
+	 *         and the provider gives version information for it.
+	 */
+	public boolean accepts(BlobMetadata meta) {
+		Long size = meta.getContentMetadata().getContentLength();
+		return isEnabled() && validatorOf(meta) != null && size != null && size <= maxBytes;
+	}
+
+	/**
+	 * Send the whole file, from the cache if it is there and through the cache if
+	 * it is not. Should only be called for files that the cache accepts. If there
+	 * is no room because all entries are in use, the file is sent from the
+	 * provider without being cached.
+	 *
+	 * @return The number of bytes sent.
+	 */
+	public long sendWhole(StorageConfig config, BlobMetadata meta, BlobSource source, OutputStream out)
+			throws IOException, StorageAccessError {
+		String validator = validatorOf(meta);
+		long size = meta.getContentMetadata().getContentLength();
+
+		String key = config.getId() + "\n" + meta.getName();
+		Entry entry;
+		boolean filling = false;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && (!entry.validator.equals(validator) || entry.failed)) {
+				remove(key, entry);
+				entry = null;
+			}
+			if (entry == null && makeRoom(size)) {
+				entry = new Entry(validator, directory.resolve(fileNameOf(key, validator)), size);
+				entries.put(key, entry);
+				usedBytes += size;
+				filling = true;
+			}
+			if (entry != null) {
+				// the fill counts as a reader, such that the file is not deleted under it
+				entry.readers += filling ? 2 : 1;
+			}
+		}
+
+		if (entry == null) {
+			Metrics.increment("storage.cache.bypassed");
+			return bypass(source, out);
+		}
+
+		if (filling) {
+			Metrics.increment("storage.cache.misses");
+			Entry filled = entry;
+			FILL_EXECUTOR.execute(() -> {
+				try {
+					fill(key, filled, source);
+				} finally {
+					release(filled);
+				}
+			});
+		} else {
+			Metrics.increment("storage.cache.hits");
+		}
+
+		try {
+			long sent = send(entry, 0, entry.size, out);
+			if (!filling) {
+				Metrics.add("storage.cache.bytesServed", sent);
+			}
+			return sent;
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * Send a range of the file if it is completely cached.
+	 *
+	 * @return The number of bytes sent or -1 if the file is not cached.
+	 */
+	public long sendRange(StorageConfig config, BlobMetadata meta, ByteRange range, OutputStream out)
+			throws IOException {
+		String validator = validatorOf(meta);
+		if (!isEnabled() || validator == null) {
+			return -1;
+		}
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(config.getId() + "\n" + meta.getName());
+			if (entry == null || !entry.complete || !entry.validator.equals(validator)) {
+				return -1;
+			}
+			entry.readers += 1;
+		}
+		try {
+			Metrics.increment("storage.cache.rangeHits");
+			long sent = send(entry, range.start, range.end + 1, out);
+			Metrics.add("storage.cache.bytesServed", sent);
+			return sent;
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * Drop the file from the cache, e.g. because it was deleted.
+	 */
+	public synchronized void invalidate(StorageConfig config, String name) {
+		String key = config.getId() + "\n" + name;
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			remove(key, entry);
+		}
+	}
+
+	// copy from the provider to the cache file, independent of the speed of the
+	// clients reading from it
+	private void fill(String key, Entry entry, BlobSource source) {
+		boolean success = false;
+		byte[] buffer = FILL_BUFFERS.take();
+		try (InputStream in = source.open();
+				FileChannel file = FileChannel.open(entry.path, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			long total = 0;
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, count);
+				while (chunk.hasRemaining()) {
+					file.write(chunk);
+				}
+				entry.advance(count);
+				total += count;
+			}
+			if (total != entry.size) {
+				throw new IOException("Expected " + entry.size + " bytes from storage, got " + total);
+			}
+			success = true;
+			Metrics.add("storage.cache.bytesFilled", total);
+		} catch (IOException | StorageAccessError | RuntimeException e) {
+			LOG.warn("Unable to cache " + entry.path + ": " + e.getMessage());
+		} finally {
+			FILL_BUFFERS.give(buffer);
+			entry.finish(success);
+			if (!success) {
+				synchronized (this) {
+					remove(key, entry);
+				}
+			}
+		}
+	}
+
+	private long bypass(BlobSource source, OutputStream out) throws IOException, StorageAccessError {
+		byte[] buffer = FILL_BUFFERS.take();
+		try (InputStream in = source.open()) {
+			long total = 0;
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+				total += count;
+			}
+			return total;
+		} finally {
+			FILL_BUFFERS.give(buffer);
+		}
+	}
+
+	// send the bytes from start (inclusive) to end (exclusive), waiting for them
+	// to be written if the entry is being filled
+	private long send(Entry entry, long start, long end, OutputStream out) throws IOException {
+		if (start >= end) {
+			return 0;
+		}
+		// once anything is written, the file exists
+		long available = Math.min(end, entry.awaitBeyond(start));
+		try (FileChannel file = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+			long position = start;
+			while (true) {
+				transfer(file, position, available - position, out);
+				position = available;
+				if (position >= end) {
+					return end - start;
+				}
+				available = Math.min(end, entry.awaitBeyond(position));
+			}
+		}
+	}
+
+	// Jetty writes mapped buffers straight to the socket, such that the file's
+	// pages are not copied through the heap
+	private static void transfer(FileChannel file, long position, long count, OutputStream out) throws IOException {
+		if (out instanceof HttpOutput) {
+			HttpOutput httpOut = (HttpOutput) out;
+			long done = 0;
+			while (done < count) {
+				long slice = Math.min(MAX_MAPPED_BYTES, count - done);
+				httpOut.write(file.map(FileChannel.MapMode.READ_ONLY, position + done, slice));
+				done += slice;
+			}
+		} else {
+			long done = 0;
+			while (done < count) {
+				done += file.transferTo(position + done, count - done, Channels.newChannel(out));
+			}
+		}
+	}
+
+	// evict the least recently used entries that nobody reads until the new size
+	// fits, returns whether it does
+	private boolean makeRoom(long size) {
+		List<Map.Entry<String, Entry>> evict = new ArrayList<>();
+		long freed = 0;
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (usedBytes - freed + size > maxBytes && it.hasNext()) {
+			Map.Entry<String, Entry> candidate = it.next();
+			if (candidate.getValue().readers == 0) {
+				evict.add(candidate);
+				freed += candidate.getValue().size;
+			}
+		}
+		for (Map.Entry<String, Entry> e : evict) {
+			remove(e.getKey(), e.getValue());
+			Metrics.increment("storage.cache.evictions");
+		}
+		return usedBytes + size <= maxBytes;
+	}
+
+	// remove the entry from the index, the file is deleted once nobody reads it
+	private void remove(String key, Entry entry) {
+		if (entries.get(key) == entry) {
+			entries.remove(key);
+		}
+		if (!entry.evicted) {
+			entry.evicted = true;
+			usedBytes -= entry.size;
+		}
+		if (entry.readers == 0) {
+			deleteFile(entry);
+		}
+	}
+
+	private synchronized void release(Entry entry) {
+		entry.readers -= 1;
+		if (entry.evicted && entry.readers == 0) {
+			deleteFile(entry);
+		}
+	}
+
+	private static void deleteFile(Entry entry) {
+		try {
+			Files.deleteIfExists(entry.path);
+		} catch (IOException e) {
+			LOG.warn("Unable to delete cached file " + entry.path + ": " + e.getMessage());
+		}
+	}
+
+	// the version of the file at the provider
+	private static String validatorOf(BlobMetadata meta) {
+		if (!StringUtils.isBlank(meta.getETag())) {
+			return "etag:" + meta.getETag();
+		}
+		if (meta.getLastModified() != null) {
+			return "modified:" + meta.getLastModified().getTime();
+		}
+		return null;
+	}
+
+	private static String fileNameOf(String key, String validator) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest((key + "\n" + validator).getBytes(StandardCharsets.UTF_8));
+			StringBuilder result = new StringBuilder();
+			for (byte b : hash) {
+				result.append(String.format("%02x", b));
+			}
+			return result.append("-").append(FILE_COUNT.incrementAndGet()).append(".blob").toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available.", e);
+		}
+	}
+
+}
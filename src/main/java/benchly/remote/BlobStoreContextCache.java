@@ -0,0 +1,228 @@
+package benchly.remote;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobRequestSigner;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import benchly.database.StorageDao;
+import benchly.model.StorageConfig;
+import benchly.util.Metrics;
+
+/**
+ * Keeps one jclouds context per storage config, because building a context is
+ * expensive. Contexts are leased for the duration of an access and closed once
+ * they were not used for a while, or when their config changed or was deleted
+ * and the last lease is returned.
+ *
+ * Contexts for different configs are built concurrently, only requests for the
+ * same config wait for each other.
+ */
+class BlobStoreContextCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BlobStoreContextCache.class);
+
+	/**
+	 * Access to a context, which has to be closed after use.
+	 */
+	static class Lease implements AutoCloseable {
+
+		private final Holder holder;
+
+		private final BlobStoreContext context;
+
+		private Lease(Holder holder, BlobStoreContext context) {
+			this.holder = holder;
+			this.context = context;
+		}
+
+		BlobStore getBlobStore() {
+			return context.getBlobStore();
+		}
+
+		BlobRequestSigner getSigner() {
+			return context.getSigner();
+		}
+
+		@Override
+		public void close() {
+			holder.release();
+		}
+	}
+
+	// the context of a config as it was when the context was built
+	private static class Holder {
+
+		private final String fingerprint;
+
+		private BlobStoreContext context = null;
+
+		private int leases = 0;
+
+		private long lastUsedMillis = System.currentTimeMillis();
+
+		private boolean retired = false;
+
+		private Holder(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+
+		// returns null if the holder was retired in the meantime
+		private synchronized BlobStoreContext acquire(StorageConfig config) {
+			if (retired) {
+				return null;
+			}
+			if (context == null) {
+				long start = System.nanoTime();
+				context = build(config);
+				Metrics.recordNanos("storage.contexts.build", System.nanoTime() - start);
+				Metrics.increment("storage.contexts.created");
+			} else {
+				Metrics.increment("storage.contexts.reused");
+			}
+			leases += 1;
+			lastUsedMillis = System.currentTimeMillis();
+			return context;
+		}
+
+		private synchronized void release() {
+			leases -= 1;
+			lastUsedMillis = System.currentTimeMillis();
+			if (retired && leases == 0) {
+				close();
+			}
+		}
+
+		private synchronized void retire() {
+			retired = true;
+			if (leases == 0) {
+				close();
+			}
+		}
+
+		private synchronized boolean isIdleLongerThan(long millis) {
+			return leases == 0 && context != null && System.currentTimeMillis() - lastUsedMillis > millis;
+		}
+
+		private synchronized boolean isOpen() {
+			return context != null;
+		}
+
+		private synchronized int getLeases() {
+			return leases;
+		}
+
+		private void close() {
+			if (context != null) {
+				try {
+					context.close();
+				} catch (RuntimeException e) {
+					LOG.warn("Unable to close storage context: " + e.getMessage());
+				}
+				context = null;
+				Metrics.increment("storage.contexts.closed");
+			}
+		}
+	}
+
+	private final Map<Long, Holder> holders = new ConcurrentHashMap<>();
+
+	BlobStoreContextCache() {
+		Metrics.registerGauge("storage.contexts.open",
+				() -> holders.values().stream().filter(Holder::isOpen).count());
+		Metrics.registerGauge("storage.contexts.leases",
+				() -> holders.values().stream().mapToInt(Holder::getLeases).sum());
+	}
+
+	/**
+	 * Lease the context for the config, building it if necessary. If the config's
+	 * provider, endpoint or credentials changed, a new context is built.
+	 *
+	 * The caller's config may be older than the one the current context was built
+	 * from, so before a context is built the config is reloaded and the stored
+	 * version decides.
+	 */
+	Lease lease(StorageConfig config) {
+		Holder existing = holders.get(config.getId());
+		if (existing == null || !existing.fingerprint.equals(fingerprintOf(config))) {
+			config = reload(config);
+		}
+		String fingerprint = fingerprintOf(config);
+		while (true) {
+			Holder[] replaced = new Holder[1];
+			Holder holder = holders.compute(config.getId(), (id, current) -> {
+				if (current != null && current.fingerprint.equals(fingerprint)) {
+					return current;
+				}
+				replaced[0] = current;
+				return new Holder(fingerprint);
+			});
+			if (replaced[0] != null) {
+				replaced[0].retire();
+				Metrics.increment("storage.contexts.invalidated");
+			}
+
+			BlobStoreContext context = holder.acquire(config);
+			if (context != null) {
+				return new Lease(holder, context);
+			}
+			// the holder was retired before we got to it, try again
+		}
+	}
+
+	/**
+	 * Close the config's context once it is no longer in use, e.g. because the
+	 * config was changed or deleted.
+	 */
+	void invalidate(long configId) {
+		Holder holder = holders.remove(configId);
+		if (holder != null) {
+			holder.retire();
+			Metrics.increment("storage.contexts.invalidated");
+		}
+	}
+
+	/**
+	 * Close the contexts that were not used for the given time.
+	 */
+	void closeIdle(long idleMillis) {
+		holders.forEach((id, holder) -> {
+			if (holder.isIdleLongerThan(idleMillis) && holders.remove(id, holder)) {
+				holder.retire();
+				Metrics.increment("storage.contexts.expired");
+			}
+		});
+	}
+
+	private static StorageConfig reload(StorageConfig config) {
+		try {
+			StorageConfig stored = StorageDao.fetchConfig(config.getId());
+			return (stored == null) ? config : stored;
+		} catch (SQLException e) {
+			LOG.warn("Unable to reload storage config, using the given one: " + e.getMessage());
+			return config;
+		}
+	}
+
+	private static BlobStoreContext build(StorageConfig config) {
+		ContextBuilder builder = ContextBuilder.newBuilder(config.getProvider().toString());
+		builder.credentials(config.getIdentity(), config.getCredential());
+		if (!StringUtils.isBlank(config.getEndpoint())) {
+			builder.endpoint(config.getEndpoint());
+		}
+		return builder.buildView(BlobStoreContext.class);
+	}
+
+	private static String fingerprintOf(StorageConfig config) {
+		return String.join("\n", String.valueOf(config.getProvider()), StringUtils.defaultString(config.getEndpoint()),
+				StringUtils.defaultString(config.getIdentity()), StringUtils.defaultString(config.getCredential()));
+	}
+
+}
@@ -1,13 +1,14 @@
 package benchly.remote;
 
+import java.sql.SQLException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import benchly.database.JobDao;
 import benchly.database.JobMessageDao;
-import benchly.error.ServerAccessError;
 import benchly.model.Job;
 import benchly.model.JobMessage;
 
@@ -36,23 +37,34 @@ public class JobCancelTask implements Runnable {
 
 	@Override
 	public void run() {
-		try {
-			LOG.debug("Starting the cancelling...");
-			boolean wasCancelled = ServerAccess.cancelJob(job.getExecutingServer(), job);
+		LOG.debug("Starting the cancelling...");
+		ServerAccess.cancelJobAsync(job.getExecutingServer(), job).whenCompleteAsync((wasCancelled, e) -> {
 			LOG.debug("Returned from cancelling...");
-			
-			if (wasCancelled) {
+
+			if (e == null && wasCancelled) {
 				// the remote may defer cancelling the job on it's side, so give it some time to react
-				executor.schedule(new JobUpdateTask(job), 1500L, TimeUnit.MILLISECONDS);
-			} else {
-				// this should not actually happen, but let's make sure it would get logged anyway
-				throw new ServerAccessError("Unexpected result for remote job cancel without further message.");
+				executor.schedule(this::checkJob, 1500L, TimeUnit.MILLISECONDS);
+				return;
 			}
-		} catch (ServerAccessError e) {
-			String msg = "Received an error while attempting to cancel the remote job. Got: " + e.getMessage();
+
+			// a false result should not actually happen, but let's make sure it would get logged anyway
+			String cause = (e == null) ? "Unexpected result for remote job cancel without further message."
+					: ServerHttp.unwrap(e).getMessage();
+			String msg = "Received an error while attempting to cancel the remote job. Got: " + cause;
 			LOG.error(msg);
 			safeSubmitJobMessage(job, msg);
+		}, executor);
+	}
+
+	// the update only saves jobs that ended, so the check is recorded here as the
+	// sweep does for the jobs it claims
+	private void checkJob() {
+		try {
+			JobDao.setLastCheckedNow(job);
+		} catch (SQLException e) {
+			LOG.error("Unable to record the check of job " + job.getId() + ", got: " + e.getMessage());
 		}
+		new JobUpdateTask(job, executor).update();
 	}
 
 	private void safeSubmitJobMessage(Job job, String message) {
@@ -1,20 +1,26 @@
 package benchly.remote;
 
 import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.j256.ormlite.dao.CloseableIterator;
-
 import benchly.database.JobDao;
 import benchly.database.JobMessageDao;
-import benchly.database.ServerContactDao;
-import benchly.error.ServerAccessError;
+import benchly.database.WorkflowDao;
 import benchly.model.Job;
 import benchly.model.JobMessage;
 import benchly.model.ServerContact;
 
+/**
+ * Offers a pending job to the suitable servers one after another until one of
+ * them accepts it. The job's place is reserved while it is offered, so that
+ * concurrent submittals see it. No thread waits for the servers to answer.
+ */
 public class JobSubmitTask implements Runnable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(JobSubmitTask.class); 
@@ -23,73 +29,98 @@ public class JobSubmitTask implements Runnable {
 	
 	private final Job job;
 
-	public JobSubmitTask(Job job) {
+	private final Executor executor;
+
+	/**
+	 * @param executor
+	 *            Used to handle the servers' answers, which involves database
+	 *            access.
+	 */
+	public JobSubmitTask(Job job, Executor executor) {
 		this.job = job;
+		this.executor = executor;
 	}
 
 	@Override
 	public void run() {
-		boolean wasSubmitted = false;
-		try (CloseableIterator<ServerContact> contacts = fetchSuitableContacts(job)) {
-			if (contacts == null || !contacts.hasNext()) {
-				recordJobMessage(job, "No suitable server contact found for job. Delaying execution for later.");
-				// Return. The job's submission attempts are not incremented as none were made
-				return;
-			}
+		submit();
+	}
 
-			// try to submit the job
-			while (contacts.hasNext()) {
-				ServerContact contact = contacts.next();
-				LOG.debug("Trying contact with resources: " + (contact.getApproximateUsableMemory() / 1000000)
-						+ " MB (" + contact.getApproximateRunningJobs() + " running jobs).");
-
-				wasSubmitted = attemptSubmit(job, contact);
-				if (wasSubmitted) {
-					String msg = "Successfully submitted job " + job.getId() + " for processing on: "
-							+ contact.getName();
-					recordJobMessage(job, msg);
-					saveSubmissionStatus(job, contact);
-					break;
-				}
-			}
-		} catch (Exception e) {
-			String msg = "Unexpected error during job submission.";
-			LOG.error(msg + " Got: " + e.getMessage());
-			e.printStackTrace();
-			// do not return here, we still want to increment the submittal attempts to
-			// prevent infinitely to get this error
+	/**
+	 * @return Whether the job was submitted to a server. The future does not fail.
+	 */
+	public CompletableFuture<Boolean> submit() {
+		// the definition is not loaded along with the job
+		try {
+			WorkflowDao.loadDefinition(job.getWorkflow());
+		} catch (SQLException e) {
+			recordJobMessage(job, "Unable to read the workflow definition. Delaying execution for later.");
+			LOG.error("Unable to read definition of workflow " + job.getWorkflow().getId() + ": " + e.getMessage());
+			return CompletableFuture.completedFuture(false);
 		}
 
-		// if the job was not accepted by any contact, handle its further status
-		if (!wasSubmitted) {
-			incrementSubmittalAttempts(job);
-			int remainingAttempts = MAX_SUBMITTAL_ATTEMPTS - job.getFailedSubmittalAttempts();
-			if (remainingAttempts == 0) {
-				setJobCanceled(job);
-				recordJobMessage(job, "Job canceled due to too many failed submissions.");
-			} else {
-				recordJobMessage(job, "Job submission deferred. Remaining attempts: " + remainingAttempts);
-			}
+		List<ServerContact> contacts = PlacementEngine.getInstance().candidatesFor(job);
+		if (contacts.isEmpty()) {
+			recordJobMessage(job, "No suitable server contact found for job. Delaying execution for later.");
+			// Return. The job's submission attempts are not incremented as none were made
+			return CompletableFuture.completedFuture(false);
 		}
 
+		return attemptSubmit(job, contacts.iterator()).handleAsync((wasSubmitted, e) -> {
+			if (e != null) {
+				String msg = "Unexpected error during job submission.";
+				LOG.error(msg + " Got: " + e.getMessage());
+				e.printStackTrace();
+				wasSubmitted = false;
+			}
+			// if the job was not accepted by any contact, handle its further status
+			if (!wasSubmitted) {
+				handleNotSubmitted(job);
+			}
+			return wasSubmitted;
+		}, executor);
 	}
 
-	private CloseableIterator<ServerContact> fetchSuitableContacts(Job job) {
-		try {
-			return ServerContactDao.fetchJobSubmittalCandidates(job.getEstimatedMemory());
-		} catch (Exception e) {
-			LOG.error("SQL error when retrieving suitable contacts for pending job: " + e.getMessage());
-			e.printStackTrace();
-			return null;
+	// try the contacts in order, the next one only after the previous one declined
+	private CompletableFuture<Boolean> attemptSubmit(Job job, Iterator<ServerContact> contacts) {
+		if (!contacts.hasNext()) {
+			return CompletableFuture.completedFuture(false);
+		}
+		ServerContact contact = contacts.next();
+
+		// other jobs may have taken the place since the candidates were chosen
+		PlacementEngine placement = PlacementEngine.getInstance();
+		if (!placement.reserve(contact, job)) {
+			return attemptSubmit(job, contacts);
 		}
+		LOG.debug("Trying contact " + contact.getName() + " for job " + job.getId() + ".");
+
+		return ServerAccess.submitJobAsync(contact, job).handleAsync((accepted, e) -> {
+			if (e != null) {
+				placement.release(job);
+				recordJobMessage(job, ServerHttp.unwrap(e).getMessage());
+				return false;
+			}
+			String msg = "Successfully submitted job " + job.getId() + " for processing on: " + contact.getName();
+			recordJobMessage(job, msg);
+			saveSubmissionStatus(job, contact);
+			return true;
+		}, executor).thenCompose(wasSubmitted -> {
+			if (wasSubmitted) {
+				return CompletableFuture.completedFuture(true);
+			}
+			return attemptSubmit(job, contacts);
+		});
 	}
 
-	private boolean attemptSubmit(Job job, ServerContact target) {
-		try {
-			return ServerAccess.submitJob(target, job);
-		} catch (ServerAccessError e) {
-			recordJobMessage(job, e.getMessage());
-			return false;
+	private void handleNotSubmitted(Job job) {
+		incrementSubmittalAttempts(job);
+		int remainingAttempts = MAX_SUBMITTAL_ATTEMPTS - job.getFailedSubmittalAttempts();
+		if (remainingAttempts == 0) {
+			setJobCanceled(job);
+			recordJobMessage(job, "Job canceled due to too many failed submissions.");
+		} else {
+			recordJobMessage(job, "Job submission deferred. Remaining attempts: " + remainingAttempts);
 		}
 	}
 
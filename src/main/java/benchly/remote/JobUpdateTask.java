@@ -3,13 +3,14 @@ package benchly.remote;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import benchly.database.JobDao;
 import benchly.database.JobMessageDao;
-import benchly.error.ServerAccessError;
 import benchly.model.Job;
 import benchly.model.JobMessage;
 import benchly.model.ServerContact;
@@ -24,31 +25,68 @@ public class JobUpdateTask implements Runnable {
 
 	private final Job job;
 
-	public JobUpdateTask(Job job) {
+	private final Executor executor;
+
+	/**
+	 * @param executor
+	 *            Used to save the remote's answer, no thread waits for the remote
+	 *            itself.
+	 */
+	public JobUpdateTask(Job job, Executor executor) {
 		this.job = job;
+		this.executor = executor;
 	}
 
 	@Override
 	public void run() {
-		RemoteJob remote = fetchRemoteVersion(job);
+		update();
+	}
 
+	/**
+	 * Does the actual update. The job is only written to the database if it
+	 * ended, the time of the last check is expected to be set by the caller, as the
+	 * sweep's claim and {@link JobCancelTask} do.
+	 * 
+	 * @return Whether the remote could be asked for the job's status. The future
+	 *         does not fail.
+	 */
+	public CompletableFuture<Boolean> update() {
+		ServerContact contact = job.getExecutingServer();
+		return ServerAccess.fetchJobStatusAsync(contact, job).handleAsync((remote, e) -> {
+			if (e != null) {
+				LOG.error("Unable to fetch remote job version. Got: " + ServerHttp.unwrap(e).getMessage());
+				return false;
+			}
+			try {
+				apply(remote);
+			} catch (Exception e2) {
+				LOG.error("Unexpected error while updating job " + job.getId() + ": " + e2.getMessage());
+				e2.printStackTrace();
+			}
+			return true;
+		}, executor);
+	}
+
+	private void apply(RemoteJob remote) {
 		boolean jobEnded = handleJobEnd(job, remote);
 		saveJobMessages(job, remote);
-		
-		try {
-			job.setLastCheckedNow();
-			JobDao.update(job);
-		} catch (SQLException e) {
-			LOG.error("Unable to save newly ended job, got: " + e.getMessage());
-			e.printStackTrace();
-		}
 
 		if (jobEnded) {
+			try {
+				job.setLastCheckedNow();
+				JobDao.update(job);
+			} catch (SQLException e) {
+				LOG.error("Unable to save newly ended job, got: " + e.getMessage());
+				e.printStackTrace();
+			}
 			signalToDeleteJobData(job);
 		}
 	}
 
-	private void saveJobMessages(Job job, RemoteJob remote) {
+	static void saveJobMessages(Job job, RemoteJob remote) {
+		if (remote.events == null) {
+			return;
+		}
 		for (RemoteJobMessage remoteMsg : remote.events) {
 			// simply transform each message and save it if it doesn't exist
 			try {
@@ -64,9 +102,11 @@ public class JobUpdateTask implements Runnable {
 		}
 	}
 
-	private boolean handleJobEnd(Job job, RemoteJob remote) {
-		// the job did finish. we need to mark that
+	static boolean handleJobEnd(Job job, RemoteJob remote) {
+		// the job did finish. we need to mark that and free it's place
 		if (remote.endedAt != null) {
+			PlacementEngine.getInstance().release(job);
+
 			Timestamp end = Timestamp.from(Instant.ofEpochSecond(remote.endedAt));
 
 			if (remote.failed) {
@@ -83,24 +123,14 @@ public class JobUpdateTask implements Runnable {
 		}
 	}
 
-	private RemoteJob fetchRemoteVersion(Job job) {
-		try {
-			ServerContact contact = job.getExecutingServer();
-			return ServerAccess.fetchJobStatus(contact, job);
-		} catch (Exception e) {
-			LOG.error("Unable to fetch remote job version. Got: " + e.getMessage());
-			e.printStackTrace();
-			return null;
-		}
-	}
-	
-	private void signalToDeleteJobData(Job job) {
-		try {
-			ServerContact contact = job.getExecutingServer();
-			ServerAccess.deleteJobData(contact, job);
-		} catch (ServerAccessError e) {
-			LOG.error("Attempt to delete job data failed, got: " + e.getMessage());
-		}
+	// nobody waits for the deletion, failures are only logged
+	static void signalToDeleteJobData(Job job) {
+		ServerContact contact = job.getExecutingServer();
+		ServerAccess.deleteJobDataAsync(contact, job).whenComplete((deleted, e) -> {
+			if (e != null) {
+				LOG.error("Attempt to delete job data failed, got: " + ServerHttp.unwrap(e).getMessage());
+			}
+		});
 	}
 
 }
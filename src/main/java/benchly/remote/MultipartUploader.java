@@ -0,0 +1,295 @@
+package benchly.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteSource;
+
+import benchly.Benchly;
+import benchly.error.StorageAccessError;
+import benchly.util.BufferPool;
+import benchly.util.Metrics;
+
+/**
+ * Uploads the parts of a single multipart upload concurrently. Parts are read
+ * into pooled buffers and handed to a shared executor, at most a configured
+ * number of parts per upload are in flight and the buffers of all uploads
+ * together stay within a configured memory budget. Reading the next part
+ * blocks until there is room for it, such that a fast client can not make us
+ * buffer the whole file.
+ */
+class MultipartUploader {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MultipartUploader.class);
+
+	// how often a single part is attempted and how long to wait between attempts
+	private static final int PART_ATTEMPTS = 3;
+	private static final long RETRY_BACKOFF_MILLIS = 1000;
+
+	// the memory budget is handed out in kilobytes to stay within int range
+	private static final Semaphore MEMORY_BUDGET = new Semaphore(
+			(int) Math.min(Integer.MAX_VALUE, Benchly.getConfig().getUploadMemoryBudgetMegabytes() * 1024L), true);
+
+	// part buffers by part size, only part sizes that are a size class are pooled
+	private static final Map<Integer, BufferPool> PART_BUFFERS = new ConcurrentHashMap<>();
+
+	// the smallest size class, larger classes are its multiples by powers of two
+	private static final int MIN_PART_SIZE_CLASS = 1024 * 1024;
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	// the number of threads is bounded by the memory budget
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "benchly-upload-" + THREAD_COUNT.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		Metrics.registerGauge("storage.upload.memoryAvailableKb", MEMORY_BUDGET::availablePermits);
+	}
+
+	private final BlobStore blobStore;
+
+	private MultipartUpload mpu = null;
+
+	private final int permitsPerPart;
+
+	private final int partSize;
+
+	// null if the part size is not a size class
+	private final BufferPool buffers;
+
+	private final Semaphore inFlight;
+
+	private final List<CompletableFuture<MultipartPart>> uploads = new ArrayList<>();
+
+	private volatile boolean failed = false;
+
+	MultipartUploader(BlobStore blobStore, int partSize) {
+		this.blobStore = blobStore;
+
+		// a part larger than the whole budget may still be uploaded on its own
+		int kilobytes = (int) Math.min(Integer.MAX_VALUE, (partSize + 1023L) / 1024L);
+		int budget = (int) Math.min(Integer.MAX_VALUE, Benchly.getConfig().getUploadMemoryBudgetMegabytes() * 1024L);
+		this.permitsPerPart = Math.min(kilobytes, budget);
+
+		int parallelParts = Benchly.getConfig().getUploadParallelParts();
+		this.inFlight = new Semaphore(parallelParts);
+		this.partSize = partSize;
+		this.buffers = (partSize == partSizeClass(partSize)) ? PART_BUFFERS.computeIfAbsent(partSize,
+				size -> new BufferPool("storage.upload." + (size / 1024) + "k", size, parallelParts)) : null;
+	}
+
+	/**
+	 * Round the part size up to the next size class. Buffers are only kept for
+	 * parts of these sizes, such that arbitrary part sizes, e.g. suggested by
+	 * clients, do not leave a pool behind each.
+	 */
+	static int partSizeClass(int size) {
+		long result = MIN_PART_SIZE_CLASS;
+		while (result < size) {
+			result <<= 1;
+		}
+		return (int) Math.min(result, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Start the upload of parts. Buffers may be taken before, e.g. to find out
+	 * whether a multipart upload is needed at all.
+	 */
+	void begin(MultipartUpload mpu) {
+		this.mpu = mpu;
+	}
+
+	/**
+	 * Take a buffer for the next part. Blocks until the upload may have another
+	 * part in flight and the memory budget allows for it. The buffer has to be
+	 * passed to {@link #uploadPart(int, byte[], int)} or
+	 * {@link #giveBack(byte[])}.
+	 */
+	byte[] takeBuffer() throws StorageAccessError {
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageAccessError("Interrupted while waiting to upload the next part.", e);
+		}
+		try {
+			MEMORY_BUDGET.acquire(permitsPerPart);
+		} catch (InterruptedException e) {
+			inFlight.release();
+			Thread.currentThread().interrupt();
+			throw new StorageAccessError("Interrupted while waiting for upload memory.", e);
+		}
+		return (buffers == null) ? new byte[partSize] : buffers.take();
+	}
+
+	void giveBack(byte[] buffer) {
+		if (buffers != null) {
+			buffers.give(buffer);
+		}
+		MEMORY_BUDGET.release(permitsPerPart);
+		inFlight.release();
+	}
+
+	/**
+	 * Upload the first length bytes of the buffer as the given part in the
+	 * background. The buffer is given back when the upload is done.
+	 */
+	void uploadPart(int partNr, byte[] buffer, int length) throws StorageAccessError {
+		if (failed) {
+			giveBack(buffer);
+			throw new StorageAccessError("Aborting upload, a previous part could not be uploaded.");
+		}
+		CompletableFuture<MultipartPart> upload = CompletableFuture.supplyAsync(() -> {
+			try {
+				return uploadWithRetries(partNr, buffer, length);
+			} finally {
+				giveBack(buffer);
+			}
+		}, EXECUTOR);
+		upload.whenComplete((part, e) -> {
+			if (e != null) {
+				failed = true;
+			}
+		});
+		uploads.add(upload);
+	}
+
+	/**
+	 * Upload the first length bytes of the buffer as the given part and wait for
+	 * it. The buffer is given back in any case.
+	 */
+	MultipartPart uploadPartNow(int partNr, byte[] buffer, int length) throws StorageAccessError {
+		try {
+			return uploadWithRetries(partNr, buffer, length);
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof StorageAccessError) {
+				throw (StorageAccessError) e.getCause();
+			}
+			throw new StorageAccessError("Unable to upload part " + partNr, e.getCause());
+		} finally {
+			giveBack(buffer);
+		}
+	}
+
+	private MultipartPart uploadWithRetries(int partNr, byte[] buffer, int length) {
+		for (int attempt = 1;; attempt++) {
+			if (failed) {
+				throw new CompletionException(new StorageAccessError("Upload aborted before part " + partNr));
+			}
+			long start = System.nanoTime();
+			try {
+				MultipartPart part = blobStore.uploadMultipartPart(mpu, partNr, payloadOf(buffer, length));
+				Metrics.recordNanos("storage.upload.part", System.nanoTime() - start);
+				Metrics.add("storage.upload.bytes", length);
+				return part;
+			} catch (RuntimeException e) {
+				Metrics.increment("storage.upload.partErrors");
+				if (attempt >= PART_ATTEMPTS) {
+					throw new CompletionException(
+							new StorageAccessError("Unable to upload part " + partNr + ": " + e.getMessage(), e));
+				}
+				LOG.warn("Upload of part " + partNr + " failed (attempt " + attempt + "), retrying: " + e.getMessage());
+				Metrics.increment("storage.upload.partRetries");
+				try {
+					Thread.sleep(RETRY_BACKOFF_MILLIS * attempt);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new CompletionException(ie);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for all parts and complete the upload. If any part failed, the upload
+	 * has to be aborted by the caller.
+	 *
+	 * @return The eTag of the completed upload.
+	 */
+	String complete() throws StorageAccessError {
+		List<MultipartPart> parts = new ArrayList<>(uploads.size());
+		try {
+			for (CompletableFuture<MultipartPart> upload : uploads) {
+				parts.add(upload.join());
+			}
+		} catch (CompletionException e) {
+			Throwable cause = (e.getCause() == null) ? e : e.getCause();
+			if (cause instanceof StorageAccessError) {
+				throw (StorageAccessError) cause;
+			}
+			throw new StorageAccessError("Unable to upload part: " + cause.getMessage(), cause);
+		}
+		parts.sort(Comparator.comparingInt(MultipartPart::partNumber));
+		return blobStore.completeMultipartUpload(mpu, parts);
+	}
+
+	/**
+	 * Abort the upload after waiting for the parts in flight, such that the
+	 * provider does not keep parts uploaded after the abort.
+	 */
+	void abort() {
+		failed = true;
+		if (mpu == null) {
+			return;
+		}
+		for (CompletableFuture<MultipartPart> upload : uploads) {
+			try {
+				upload.join();
+			} catch (CompletionException e) {
+				// the failure is reported by the caller
+			}
+		}
+		try {
+			blobStore.abortMultipartUpload(mpu);
+		} catch (RuntimeException e) {
+			LOG.error("Unable to abort multipart upload for " + mpu.blobName() + ": " + e.getMessage());
+		}
+		Metrics.increment("storage.upload.aborted");
+	}
+
+	/**
+	 * Read from the stream until the buffer is full or the stream ends.
+	 *
+	 * @return The number of bytes read.
+	 */
+	static int readFully(InputStream in, byte[] buffer) throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int count = in.read(buffer, total, buffer.length - total);
+			if (count == -1) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	static Payload payloadOf(byte[] buffer, int length) {
+		Payload payload = Payloads.newByteSourcePayload(ByteSource.wrap(buffer).slice(0, length));
+		payload.getContentMetadata().setContentLength((long) length);
+		return payload;
+	}
+
+}
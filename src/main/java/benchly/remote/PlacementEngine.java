@@ -0,0 +1,238 @@
+package benchly.remote;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import benchly.Benchly;
+import benchly.database.ServerContactDao;
+import benchly.model.Job;
+import benchly.model.ServerContact;
+import benchly.model.StatusReport;
+import benchly.util.Metrics;
+
+/**
+ * Keeps a live view of each server's capacity and decides where jobs are
+ * placed. The memory of a job is reserved on the server when the job is
+ * submitted and released when the job ends, such that submittals made between
+ * two status reports do not all pick the same server.
+ *
+ * The view is built from the status reports, the database is only read once on
+ * startup.
+ */
+public class PlacementEngine {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PlacementEngine.class);
+
+	public static enum Strategy {
+		// place on the server that has the least memory left afterwards
+		BEST_FIT,
+		// place on the server that has the most memory left afterwards
+		WORST_FIT
+	}
+
+	private static PlacementEngine instance = null;
+
+	private final Strategy strategy;
+
+	private final Map<Long, Capacity> capacities = new HashMap<>();
+
+	// which server each reservation was made on, by job id
+	private final Map<Long, Capacity> reservedOn = new HashMap<>();
+
+	// the memory reserved for a job and how long it should be bound
+	private static class Reservation {
+
+		private final long memory;
+
+		private final long memorySeconds;
+
+		private Reservation(Job job) {
+			this.memory = job.getEstimatedMemory();
+			this.memorySeconds = job.getEstimatedMemory() * Math.max(1L, job.getEstimatedTime());
+		}
+	}
+
+	// what we know about a server: The last report and the changes made since then
+	private static class Capacity {
+
+		private ServerContact contact;
+
+		private boolean reachable;
+
+		private long reportedUsableMemory;
+
+		private int reportedRunningJobs;
+
+		// reservations made after the last report, not included in it
+		private final Map<Long, Reservation> pending = new HashMap<>();
+
+		// reservations made before the last report and already included in it
+		private final Map<Long, Reservation> accounted = new HashMap<>();
+
+		// memory and jobs of accounted reservations that ended after the last report
+		private long releasedMemory = 0;
+		private int releasedJobs = 0;
+
+		private long memorySeconds = 0;
+
+		private Capacity(ServerContact contact) {
+			this.contact = contact;
+			this.reachable = (contact.getReachability() == ServerContact.Reachability.DEFAULT);
+			this.reportedUsableMemory = contact.getApproximateUsableMemory();
+			this.reportedRunningJobs = contact.getApproximateRunningJobs();
+		}
+
+		private long availableMemory() {
+			long reserved = 0;
+			for (Reservation reservation : pending.values()) {
+				reserved += reservation.memory;
+			}
+			return reportedUsableMemory - reserved + releasedMemory;
+		}
+
+		private int runningJobs() {
+			return reportedRunningJobs + pending.size() - releasedJobs;
+		}
+	}
+
+	private PlacementEngine(Strategy strategy) {
+		this.strategy = strategy;
+	}
+
+	// return the singleton instance, setup from the known servers on first use
+	public static synchronized PlacementEngine getInstance() {
+		if (instance == null) {
+			instance = new PlacementEngine(Benchly.getConfig().getPlacementStrategy());
+			instance.loadContacts();
+			instance.registerMetrics();
+		}
+		return instance;
+	}
+
+	private void loadContacts() {
+		try {
+			for (ServerContact contact : ServerContactDao.fetchAll()) {
+				capacities.put(contact.getId(), new Capacity(contact));
+			}
+		} catch (Exception e) {
+			// servers will be added with their next status report
+			LOG.error("Unable to load server contacts for job placement: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	private void registerMetrics() {
+		Metrics.registerGauge("placement.reservations", () -> {
+			synchronized (this) {
+				return reservedOn.size();
+			}
+		});
+		Metrics.registerGauge("placement.servers", () -> {
+			synchronized (this) {
+				return capacities.size();
+			}
+		});
+	}
+
+	/**
+	 * @return The reachable servers that the job fits on, the most suitable
+	 *         first.
+	 */
+	public synchronized List<ServerContact> candidatesFor(Job job) {
+		long start = System.nanoTime();
+
+		List<Capacity> fitting = new ArrayList<>();
+		for (Capacity capacity : capacities.values()) {
+			if (fits(capacity, job)) {
+				fitting.add(capacity);
+			}
+		}
+
+		// order by the memory left after placement, then prefer servers whose memory
+		// is bound for a shorter time and that run fewer jobs
+		Comparator<Capacity> byMemoryLeft = Comparator.comparingLong(Capacity::availableMemory);
+		if (strategy == Strategy.WORST_FIT) {
+			byMemoryLeft = byMemoryLeft.reversed();
+		}
+		fitting.sort(byMemoryLeft.thenComparingLong(c -> c.memorySeconds).thenComparingInt(Capacity::runningJobs));
+
+		List<ServerContact> result = new ArrayList<>(fitting.size());
+		for (Capacity capacity : fitting) {
+			result.add(capacity.contact);
+		}
+
+		Metrics.recordNanos("placement.decision", System.nanoTime() - start);
+		if (result.isEmpty()) {
+			Metrics.increment("placement.noCapacity");
+		}
+		return result;
+	}
+
+	/**
+	 * Reserve the job's memory on the server if it still fits there.
+	 *
+	 * @return Whether the reservation was made.
+	 */
+	public synchronized boolean reserve(ServerContact contact, Job job) {
+		Capacity capacity = capacities.get(contact.getId());
+		if (capacity == null || !fits(capacity, job) || reservedOn.containsKey(job.getId())) {
+			return false;
+		}
+		Reservation reservation = new Reservation(job);
+		capacity.pending.put(job.getId(), reservation);
+		capacity.memorySeconds += reservation.memorySeconds;
+		reservedOn.put(job.getId(), capacity);
+		return true;
+	}
+
+	/**
+	 * Release the memory reserved for a job, e.g. because it ended or was
+	 * rejected. Does nothing if there is no reservation for the job.
+	 */
+	public synchronized void release(Job job) {
+		Capacity capacity = reservedOn.remove(job.getId());
+		if (capacity == null) {
+			return;
+		}
+		Reservation reservation = capacity.pending.remove(job.getId());
+		if (reservation == null) {
+			// the server included the job in its last report, so we know better than that
+			reservation = capacity.accounted.remove(job.getId());
+			capacity.releasedMemory += reservation.memory;
+			capacity.releasedJobs += 1;
+		}
+		capacity.memorySeconds -= reservation.memorySeconds;
+	}
+
+	/**
+	 * Take over the state reported by a server. Jobs reserved up until now are
+	 * expected to be included in the report.
+	 */
+	public synchronized void updateFromReport(ServerContact contact, StatusReport report) {
+		Capacity capacity = capacities.computeIfAbsent(contact.getId(), id -> new Capacity(contact));
+		capacity.contact = contact;
+		capacity.reachable = true;
+		capacity.reportedUsableMemory = report.getLongTermUsableMemory();
+		capacity.reportedRunningJobs = report.getRunningJobs();
+		capacity.accounted.putAll(capacity.pending);
+		capacity.pending.clear();
+		capacity.releasedMemory = 0;
+		capacity.releasedJobs = 0;
+	}
+
+	public synchronized void setUnreachable(ServerContact contact) {
+		Capacity capacity = capacities.computeIfAbsent(contact.getId(), id -> new Capacity(contact));
+		capacity.reachable = false;
+	}
+
+	private static boolean fits(Capacity capacity, Job job) {
+		return capacity.reachable && capacity.availableMemory() >= job.getEstimatedMemory();
+	}
+
+}
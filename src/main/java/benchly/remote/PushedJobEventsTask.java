@@ -0,0 +1,83 @@
+package benchly.remote;
+
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import benchly.database.JobDao;
+import benchly.error.InvalidRequestException;
+import benchly.error.ServerAccessError;
+import benchly.model.Job;
+import benchly.model.ServerContact;
+import benchly.util.Metrics;
+
+/**
+ * Records job events and the job's end as pushed to us by the executing server.
+ * This does the same as a JobUpdateTask, but without querying the remote.
+ */
+public class PushedJobEventsTask implements Callable<Integer> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PushedJobEventsTask.class);
+
+	private final Job job;
+
+	private final String json;
+
+	public PushedJobEventsTask(Job job, String json) {
+		this.job = job;
+		this.json = json;
+	}
+
+	/**
+	 * @return The number of events that were pushed.
+	 */
+	@Override
+	public Integer call() throws InvalidRequestException {
+		RemoteJob remote;
+		try {
+			remote = ModelTransformer.readRemoteJob(json);
+		} catch (ServerAccessError e) {
+			throw new InvalidRequestException(e.getMessage(), e);
+		}
+		ensureSentByExecutingServer(remote);
+		if (remote.id != 0 && remote.id != job.getId()) {
+			throw new InvalidRequestException("Pushed events for job " + remote.id + " to job " + job.getId());
+		}
+
+		// jobs that ended already only receive further messages
+		boolean jobEnded = false;
+		if (job.getState() == Job.State.SUBMITTED) {
+			jobEnded = JobUpdateTask.handleJobEnd(job, remote);
+		}
+		JobUpdateTask.saveJobMessages(job, remote);
+
+		try {
+			if (jobEnded) {
+				job.setEventsPushedNow();
+				JobDao.update(job);
+				// the remote is not waited for, so this does not block its request to us
+				JobUpdateTask.signalToDeleteJobData(job);
+			} else {
+				JobDao.setEventsPushedNow(job);
+			}
+		} catch (Exception e) {
+			LOG.error("Unable to save job after pushed events, got: " + e.getMessage());
+			e.printStackTrace();
+		}
+
+		int count = (remote.events == null) ? 0 : remote.events.size();
+		Metrics.increment("jobs.push.requests");
+		Metrics.add("jobs.push.events", count);
+		return count;
+	}
+
+	private void ensureSentByExecutingServer(RemoteJob remote) throws InvalidRequestException {
+		ServerContact contact = job.getExecutingServer();
+		if (contact == null || remote.server == null || !remote.server.equals(contact.getName())) {
+			throw new InvalidRequestException(
+					"Job " + job.getId() + " is not executed by the pushing server: " + remote.server);
+		}
+	}
+
+}
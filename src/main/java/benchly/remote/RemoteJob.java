@@ -41,4 +41,8 @@ class RemoteJob {
 	@Expose(serialize = false)
 	protected List<RemoteJobMessage> events;
 
+	// the name of the server if it pushes events to us
+	@Expose(serialize = false)
+	protected String server;
+
 }
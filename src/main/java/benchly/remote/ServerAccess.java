@@ -1,116 +1,131 @@
 package benchly.remote;
 
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
 
 import benchly.error.ServerAccessError;
 import benchly.model.Job;
 import benchly.model.ServerContact;
 import benchly.model.StatusReport;
-import benchly.remote.ServerHttp.ResponseCallback;
 
+/**
+ * The requests we make to the workbench servers. These do not block, the
+ * futures returned fail with a ServerAccessError on a response indicating
+ * failure or an unparseable response.
+ */
 class ServerAccess {
-	
+
 	/**
 	 * @return A StatusReport indicating the contact's state.
 	 * @throws ServerAccessError On a response indicating failure or an unparseable response.
 	 */
 	protected static StatusReport fetchStatus(ServerContact contact) throws ServerAccessError {
-		URI uri = new ServerContactUriBuilder(contact).setStatusPath().build();
+		return ServerHttp.await(fetchStatusAsync(contact));
+	}
 
-		return (StatusReport) ServerHttp.get(uri, new ResponseCallback() {
-			@Override
-			public Object call(int returnCode, String responseBody) throws ServerAccessError {
-				if (returnCode == 200) {
-					return ModelTransformer.readStatusReport(responseBody);
-				} else {
-					throw new ServerAccessError("Unable to get status from contact.");
-				}
+	/**
+	 * @return A StatusReport indicating the contact's state.
+	 */
+	protected static CompletableFuture<StatusReport> fetchStatusAsync(ServerContact contact) {
+		URI uri;
+		try {
+			uri = new ServerContactUriBuilder(contact).setStatusPath().build();
+		} catch (ServerAccessError e) {
+			return ServerHttp.failed(e);
+		}
+
+		return ServerHttp.getAsync(uri, (returnCode, responseBody) -> {
+			if (returnCode == 200) {
+				return ModelTransformer.readStatusReport(responseBody);
+			} else {
+				throw new ServerAccessError("Unable to get status from contact.");
 			}
 		});
 	}
 
 	/**
-	 * @return true if the remote server accepted the job, throw otherwise.
-	 * @throws ServerAccessError
+	 * @return true if the remote server accepted the job, fails otherwise.
 	 */
-	protected static Boolean submitJob(ServerContact contact, Job job) throws ServerAccessError {
+	protected static CompletableFuture<Boolean> submitJobAsync(ServerContact contact, Job job) {
 		String payload = ModelTransformer.render(job);
-		URI uri = new ServerContactUriBuilder(contact).setJobsPath().build();
+		URI uri;
+		try {
+			uri = new ServerContactUriBuilder(contact).setJobsPath().build();
+		} catch (ServerAccessError e) {
+			return ServerHttp.failed(e);
+		}
 
-		return (Boolean) ServerHttp.post(uri, payload, new ResponseCallback() {
-			
-			@Override
-			public Object call(int returnCode, String responseBody) throws ServerAccessError {
-				if (returnCode != 200) {
-					String msg = ModelTransformer.readSimpleMessage(responseBody);
-					if (returnCode == 400) {
-						throw new ServerAccessError("Job was rejected for processing with message: " + msg);
-					} else {
-						throw new ServerAccessError("Unexpected response on job submittal, message: " + msg);
-					}
+		return ServerHttp.postAsync(uri, payload, (returnCode, responseBody) -> {
+			if (returnCode != 200) {
+				String msg = ModelTransformer.readSimpleMessage(responseBody);
+				if (returnCode == 400) {
+					throw new ServerAccessError("Job was rejected for processing with message: " + msg);
+				} else {
+					throw new ServerAccessError("Unexpected response on job submittal, message: " + msg);
 				}
-				return new Boolean(true);
 			}
+			return true;
 		});
 	}
 
 	/**
 	 * @return A RemoteJob object with event messages representing the job's status on the server.
-	 * @throws ServerAccessError
 	 */
-	protected static RemoteJob fetchJobStatus(ServerContact contact, Job job) throws ServerAccessError {
-		URI uri = new ServerContactUriBuilder(contact).setJobsPath(job.getId()).build();
-		return (RemoteJob) ServerHttp.get(uri, new ResponseCallback() {
+	protected static CompletableFuture<RemoteJob> fetchJobStatusAsync(ServerContact contact, Job job) {
+		URI uri;
+		try {
+			uri = new ServerContactUriBuilder(contact).setJobsPath(job.getId()).build();
+		} catch (ServerAccessError e) {
+			return ServerHttp.failed(e);
+		}
 
-			@Override
-			public Object call(int returnCode, String responseBody) throws ServerAccessError {
-				if (returnCode == 200) {
-					return ModelTransformer.readRemoteJob(responseBody);
-				} else {
-					String msg = ModelTransformer.readSimpleMessage(responseBody);
-					throw new ServerAccessError("Unexpected response on job status check, message: " + msg);
-				}
+		return ServerHttp.getAsync(uri, (returnCode, responseBody) -> {
+			if (returnCode == 200) {
+				return ModelTransformer.readRemoteJob(responseBody);
+			} else {
+				String msg = ModelTransformer.readSimpleMessage(responseBody);
+				throw new ServerAccessError("Unexpected response on job status check, message: " + msg);
 			}
 		});
 	}
 
 	/**
-	 * @return true if the remote server accepted the cancellation, throw otherwise
-	 * @throws ServerAccessError
+	 * @return true if the remote server accepted the cancellation, fails otherwise
 	 */
-	protected static Boolean cancelJob(ServerContact contact, Job job) throws ServerAccessError {
-		URI uri = new ServerContactUriBuilder(contact).setJobCancelPath(job.getId()).build();
-
-		return (Boolean) ServerHttp.post(uri, "", new ResponseCallback() {
+	protected static CompletableFuture<Boolean> cancelJobAsync(ServerContact contact, Job job) {
+		URI uri;
+		try {
+			uri = new ServerContactUriBuilder(contact).setJobCancelPath(job.getId()).build();
+		} catch (ServerAccessError e) {
+			return ServerHttp.failed(e);
+		}
 
-			@Override
-			public Object call(int returnCode, String responseBody) throws ServerAccessError {
-				if (returnCode != 200) {
-					String msg = ModelTransformer.readSimpleMessage(responseBody);
-					throw new ServerAccessError("Unexpected response on job cancel, message: " + msg);
-				}
-				return new Boolean(true);
+		return ServerHttp.postAsync(uri, "", (returnCode, responseBody) -> {
+			if (returnCode != 200) {
+				String msg = ModelTransformer.readSimpleMessage(responseBody);
+				throw new ServerAccessError("Unexpected response on job cancel, message: " + msg);
 			}
+			return true;
 		});
 	}
-	
+
 	/**
-	 * @return The deleted job if the server returned OK, throws otherwise.
-	 * @throws ServerAccessError
+	 * @return The deleted job if the server returned OK, fails otherwise.
 	 */
-	protected static RemoteJob deleteJobData(ServerContact contact, Job job) throws ServerAccessError {
-		URI uri = new ServerContactUriBuilder(contact).setJobsPath(job.getId()).build();
+	protected static CompletableFuture<RemoteJob> deleteJobDataAsync(ServerContact contact, Job job) {
+		URI uri;
+		try {
+			uri = new ServerContactUriBuilder(contact).setJobsPath(job.getId()).build();
+		} catch (ServerAccessError e) {
+			return ServerHttp.failed(e);
+		}
 
-		return (RemoteJob) ServerHttp.delete(uri, new ResponseCallback() {
-			
-			@Override
-			public Object call(int returnCode, String responseBody) throws ServerAccessError {
-				if (returnCode == 200) {
-					return ModelTransformer.readRemoteJob(responseBody);
-				} else {
-					String msg = ModelTransformer.readSimpleMessage(responseBody);
-					throw new ServerAccessError("Unexpected response on job deletion request, message: " + msg);
-				}
+		return ServerHttp.deleteAsync(uri, (returnCode, responseBody) -> {
+			if (returnCode == 200) {
+				return ModelTransformer.readRemoteJob(responseBody);
+			} else {
+				String msg = ModelTransformer.readSimpleMessage(responseBody);
+				throw new ServerAccessError("Unexpected response on job deletion request, message: " + msg);
 			}
 		});
 	}
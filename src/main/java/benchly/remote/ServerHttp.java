@@ -2,57 +2,183 @@ package benchly.remote;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.ParseException;
-import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import benchly.Benchly;
+import benchly.Config;
 import benchly.error.ServerAccessError;
-
+import benchly.util.Metrics;
+
+/**
+ * Http access to the workbench servers. All requests share a single
+ * non-blocking client, such that connections to a server are kept alive and
+ * reused and no thread waits for a remote to answer.
+ * 
+ * The futures returned are completed on the client's i/o threads. Callers that
+ * do more than a little computation with the result (e.g. database access) have
+ * to continue on an executor of their own.
+ */
 class ServerHttp {
-	
-	interface ResponseCallback {
-		Object call(int returnCode, String responseBody) throws ServerAccessError;
+
+	interface ResponseCallback<T> {
+		T call(int returnCode, String responseBody) throws ServerAccessError;
 	}
 
 	private static final String CHARSET = "UTF-8";
 
 	private static final Logger LOG = LoggerFactory.getLogger(ServerHttp.class);
 
-	protected static Object get(URI uri, ResponseCallback callback) throws ServerAccessError {
+	// how often idle and expired connections are looked for
+	private static final long EVICTION_INTERVAL_SECONDS = 5;
+
+	private static PoolingNHttpClientConnectionManager connectionManager = null;
+
+	private static CloseableHttpAsyncClient client = null;
+
+	// the client is created on first use, when the configuration is available
+	private static synchronized CloseableHttpAsyncClient client() throws ServerAccessError {
+		if (client == null) {
+			Config config = Benchly.getConfig();
+
+			IOReactorConfig ioConfig = IOReactorConfig.custom()
+					.setConnectTimeout(config.getHttpConnectTimeoutSeconds() * 1000)
+					.setSoTimeout(config.getHttpSocketTimeoutSeconds() * 1000)
+					.build();
+			try {
+				connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioConfig));
+			} catch (IOReactorException e) {
+				throw new ServerAccessError("Unable to setup the http client.", e);
+			}
+			// a route is an endpoint of a server contact, so each server gets the same
+			// limit
+			connectionManager.setMaxTotal(config.getHttpPoolMax());
+			connectionManager.setDefaultMaxPerRoute(config.getHttpPoolMaxPerServer());
+
+			RequestConfig requestConfig = RequestConfig.custom()
+					.setConnectTimeout(config.getHttpConnectTimeoutSeconds() * 1000)
+					.setSocketTimeout(config.getHttpSocketTimeoutSeconds() * 1000)
+					.setConnectionRequestTimeout(config.getHttpRequestTimeoutSeconds() * 1000)
+					.build();
+
+			client = HttpAsyncClients.custom()
+					.setConnectionManager(connectionManager)
+					.setDefaultRequestConfig(requestConfig)
+					.build();
+			client.start();
+
+			startIdleConnectionEviction(connectionManager, config.getHttpIdleTimeoutSeconds());
+			registerPoolMetrics(connectionManager);
+		}
+		return client;
+	}
+
+	private static void startIdleConnectionEviction(PoolingNHttpClientConnectionManager manager, int idleSeconds) {
+		ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "benchly-http-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		evictor.scheduleWithFixedDelay(() -> {
+			manager.closeExpiredConnections();
+			manager.closeIdleConnections(idleSeconds, TimeUnit.SECONDS);
+		}, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private static void registerPoolMetrics(PoolingNHttpClientConnectionManager manager) {
+		Metrics.registerGauge("http.pool.leased", () -> manager.getTotalStats().getLeased());
+		Metrics.registerGauge("http.pool.available", () -> manager.getTotalStats().getAvailable());
+		Metrics.registerGauge("http.pool.pending", () -> manager.getTotalStats().getPending());
+		Metrics.registerGauge("http.pool.max", () -> manager.getTotalStats().getMax());
+		Metrics.registerGauge("http.pool.routes", () -> manager.getRoutes().size());
+	}
+
+	protected static <T> CompletableFuture<T> getAsync(URI uri, ResponseCallback<T> callback) {
 		HttpGet get = new HttpGet(uri);
 		return executeRequest(get, callback);
 	}
 
-	protected static Object post(URI uri, String body, ResponseCallback callback) throws ServerAccessError {
+	protected static <T> CompletableFuture<T> postAsync(URI uri, String body, ResponseCallback<T> callback) {
 		HttpPost post = new HttpPost(uri);
 		post.setEntity(buildStringEntity(body));
 		return executeRequest(post, callback);
 	}
 
-	protected static Object put(URI uri, String body, ResponseCallback callback) throws ServerAccessError {
+	protected static <T> CompletableFuture<T> putAsync(URI uri, String body, ResponseCallback<T> callback) {
 		HttpPut put = new HttpPut(uri);
 		put.setEntity(buildStringEntity(body));
 		return executeRequest(put, callback);
 	}
 
-	protected static Object delete(URI uri, ResponseCallback callback) throws ServerAccessError {
+	protected static <T> CompletableFuture<T> deleteAsync(URI uri, ResponseCallback<T> callback) {
 		HttpDelete delete = new HttpDelete(uri);
 		return executeRequest(delete, callback);
 	}
 
+	/**
+	 * Blocks until the request is done. Only for callers that have to wait
+	 * anyway, e.g. to answer a request of our own.
+	 */
+	protected static <T> T await(CompletableFuture<T> future) throws ServerAccessError {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServerAccessError("Interrupted while waiting for a server.", e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * @return The ServerAccessError that caused a future to fail or a new one
+	 *         wrapping the cause.
+	 */
+	protected static ServerAccessError unwrap(Throwable e) {
+		Throwable cause = e;
+		while ((cause instanceof ExecutionException || cause instanceof CompletionException)
+				&& cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		if (cause instanceof ServerAccessError) {
+			return (ServerAccessError) cause;
+		}
+		return new ServerAccessError("Unexpected error: " + cause.getMessage(), cause);
+	}
+
+	protected static <T> CompletableFuture<T> failed(Throwable cause) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		result.completeExceptionally(cause);
+		return result;
+	}
+
 	private static StringEntity buildStringEntity(String content) {
 		if (content == null) {
 			content = "";
@@ -60,27 +186,58 @@ class ServerHttp {
 		return new StringEntity(content, ContentType.create("application/json", "UTF-8"));
 	}
 
-	private static Object executeRequest(HttpUriRequest request, ResponseCallback callback) throws ServerAccessError {
+	private static <T> CompletableFuture<T> executeRequest(HttpUriRequest request, ResponseCallback<T> callback) {
 		String requestInfo = String.format("%s %s", request.getMethod(), request.getURI());
-		LOG.debug(">>>> " + request.getMethod() + " " + request.getURI());
-
-		try (CloseableHttpClient client = HttpClients.createDefault();
-				CloseableHttpResponse response = client.execute(request)) {
-			int code = response.getStatusLine().getStatusCode();
-			String reason = response.getStatusLine().getReasonPhrase();
-			String responseInfo = String.format("<<<< '%d %s' on: %s", code, reason, requestInfo);
-			LOG.debug(responseInfo);
-
-			HttpEntity entity = response.getEntity();
-			String result = "";
-			if (entity != null) {
-				result = EntityUtils.toString(entity, CHARSET);
-			}
-
-			return callback.call(code, result);
-		} catch (IOException | ParseException e) {
-			throw new ServerAccessError("Error on request '" + request.getURI() + "'", e);
+		LOG.debug(">>>> " + requestInfo);
+
+		CompletableFuture<T> result = new CompletableFuture<>();
+		long start = System.nanoTime();
+		try {
+			client().execute(request, new FutureCallback<HttpResponse>() {
+
+				@Override
+				public void completed(HttpResponse response) {
+					int code = response.getStatusLine().getStatusCode();
+					String reason = response.getStatusLine().getReasonPhrase();
+					LOG.debug(String.format("<<<< '%d %s' on: %s", code, reason, requestInfo));
+					Metrics.recordNanos("http.request.duration", System.nanoTime() - start);
+
+					try {
+						HttpEntity entity = response.getEntity();
+						String body = "";
+						if (entity != null) {
+							body = EntityUtils.toString(entity, CHARSET);
+						}
+						result.complete(callback.call(code, body));
+					} catch (IOException | ParseException e) {
+						failed(e);
+					} catch (Exception e) {
+						result.completeExceptionally(e);
+					}
+				}
+
+				@Override
+				public void failed(Exception e) {
+					if (e instanceof TimeoutException) {
+						Metrics.increment("http.pool.timeouts");
+						result.completeExceptionally(
+								new ServerAccessError("No free connection for request '" + request.getURI() + "'", e));
+					} else {
+						Metrics.increment("http.request.errors");
+						result.completeExceptionally(
+								new ServerAccessError("Error on request '" + request.getURI() + "'", e));
+					}
+				}
+
+				@Override
+				public void cancelled() {
+					result.completeExceptionally(new ServerAccessError("Request cancelled: '" + requestInfo + "'"));
+				}
+			});
+		} catch (ServerAccessError e) {
+			result.completeExceptionally(e);
 		}
+		return result;
 	}
 
 }
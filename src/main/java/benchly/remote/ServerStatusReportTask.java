@@ -1,13 +1,14 @@
 package benchly.remote;
 
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import benchly.database.AdminMessageDao;
 import benchly.database.ServerContactDao;
-import benchly.error.ServerAccessError;
 import benchly.model.AdminMessage;
 import benchly.model.ServerContact;
 import benchly.model.StatusReport;
@@ -22,30 +23,53 @@ public class ServerStatusReportTask implements Runnable {
 
 	private final ServerContact contact;
 
-	public ServerStatusReportTask(ServerContact contact) {
+	private final Executor executor;
+
+	/**
+	 * @param executor
+	 *            Used to save the report, no thread waits for the remote itself.
+	 */
+	public ServerStatusReportTask(ServerContact contact, Executor executor) {
 		this.contact = contact;
+		this.executor = executor;
 	}
 
 	@Override
 	public void run() {
-		try {
-			StatusReport report = ServerAccess.fetchStatus(contact);
+		check();
+	}
 
-			if (contact.getId() != -1) {
-				ServerContactDao.createReport(contact, report);
-				LOG.debug("Logged status for server: " + contact.getEndpoint() + ", reports running jobs: "
-						+ report.getRunningJobs());
+	/**
+	 * @return The report saved or null if the server could not be reached. The
+	 *         future does not fail.
+	 */
+	public CompletableFuture<StatusReport> check() {
+		return ServerAccess.fetchStatusAsync(contact).handleAsync((report, e) -> {
+			if (e != null) {
+				String message = "Unable to contact Server for report on: %s, got: %s";
+				String cause = ServerHttp.unwrap(e).getMessage();
+				reportServerUnreachable(contact, String.format(message, contact.getEndpoint(), cause));
+				return null;
 			}
-		} catch (ServerAccessError e) {
-			String message = "Unable to contact Server for report on: %s, got: %s";
-			reportServerUnreachable(contact, String.format(message, contact.getEndpoint(), e.getMessage()));
-		} catch (SQLException e) {
-			LOG.error("Unexpected error on querying the database for a server contact to check: " + e.getMessage());
-			e.printStackTrace();
-		}
+			try {
+				if (contact.getId() != -1) {
+					PlacementEngine.getInstance().updateFromReport(contact, report);
+					ServerContactDao.createReport(contact, report);
+					LOG.debug("Logged status for server: " + contact.getEndpoint() + ", reports running jobs: "
+							+ report.getRunningJobs());
+				}
+			} catch (SQLException e2) {
+				LOG.error("Unexpected error on saving the report for a server contact: " + e2.getMessage());
+				e2.printStackTrace();
+			}
+			return report;
+		}, executor);
 	}
 
 	private void reportServerUnreachable(ServerContact contact, String message) {
+		if (contact.getId() != -1) {
+			PlacementEngine.getInstance().setUnreachable(contact);
+		}
 		try {
 			contact.setUnreachableNow();
 			ServerContactDao.update(contact);
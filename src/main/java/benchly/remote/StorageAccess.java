@@ -3,37 +3,51 @@ package benchly.remote;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.input.ProxyInputStream;
 import org.apache.commons.lang3.StringUtils;
-import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
-import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.ContainerNotFoundException;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobBuilder.PayloadBlobBuilder;
 import org.jclouds.blobstore.domain.BlobMetadata;
 import org.jclouds.blobstore.domain.MultipartPart;
 import org.jclouds.blobstore.domain.MultipartUpload;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.domain.internal.PageSetImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
 import org.jclouds.blobstore.options.ListContainerOptions;
 import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.http.HttpRequest;
 import org.jclouds.http.HttpResponseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import benchly.Benchly;
 import benchly.error.StorageAccessError;
+import benchly.model.PresignedUrl;
 import benchly.model.StorageConfig;
 import benchly.model.StorageFileMeta;
+import benchly.model.StorageUpload;
+import benchly.model.StorageUploadPart;
+import benchly.util.BufferPool;
+import benchly.util.ByteRange;
+import benchly.util.Metrics;
 
 // TODO: This is messy and lends itself to some refactoring
 // TODO: Should storage access be synchronised such that each storage config may only be accessed on one thread?
@@ -43,160 +57,634 @@ public class StorageAccess {
 
 	private static StorageAccess instance = null;
 
-	private Map<Long, BlobStoreContext> createdContexts;
+	// buffers used to stream files to and from the storage providers
+	private static final BufferPool STREAM_BUFFERS = new BufferPool("storage.stream", 256 * 1024, 64);
+
+	// chunks of resumable uploads are buffered in memory, so they may not be larger
+	private static final int MAX_UPLOAD_CHUNK_SIZE = 64 * 1024 * 1024;
+
+	private final BlobStoreContextCache contexts;
 
 	// private constructor for the singleton pattern
 	private StorageAccess() {
-		createdContexts = Collections.synchronizedMap(new HashMap<>());
+		contexts = new BlobStoreContextCache();
 	}
 
 	// return the singleton instance
-	public static StorageAccess getInstance() {
+	public static synchronized StorageAccess getInstance() {
 		if (instance == null) {
 			instance = new StorageAccess();
 		}
 		return instance;
 	}
 
-	public boolean streamFileToResponse(StorageConfig config, StorageFileMeta fileMeta, HttpServletResponse response)
-			throws StorageAccessError {
-		BlobStoreContext context = getOrCreateBlobStoreContext(config);
+	/**
+	 * Streams the file to the response. If the request asks for byte ranges (and
+	 * the file did not change since the client's If-Range condition), only those
+	 * are sent with a "206 Partial Content" status.
+	 */
+	public boolean streamFileToResponse(StorageConfig config, StorageFileMeta fileMeta, HttpServletRequest request,
+			HttpServletResponse response) throws StorageAccessError {
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			return streamFileToResponse(lease.getBlobStore(), config, fileMeta, request, response);
+		}
+	}
 
-		BlobStore blobStore = context.getBlobStore();
+	/**
+	 * Stream the files as a single archive, which is built while it is sent.
+	 */
+	public void streamArchive(StorageConfig config, List<StorageFileMeta> files, ArchiveStreamer.Format format,
+			OutputStream out) throws StorageAccessError {
+		Metrics.increment("storage.archive.requests");
+		long beginStream = System.nanoTime();
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			ArchiveStreamer streamer = new ArchiveStreamer(lease.getBlobStore(), config,
+					Benchly.getConfig().getArchiveReadAhead());
+			long total = streamer.stream(files, format, out);
+			recordDownload(total, System.nanoTime() - beginStream);
+		} catch (IOException e) {
+			throw new StorageAccessError("An IOError occured during storage access.", e);
+		}
+	}
 
-		BlobMetadata blobMeta = blobStore.blobMetadata(config.getContainer(), fileMeta.getName());
-		try {
-			int contentSize = Math.toIntExact(blobMeta.getSize());
-			response.setContentLength(contentSize);
-		} catch (ArithmeticException e) {
-			// do nothing, just leave the response content length empty.
+	private boolean streamFileToResponse(BlobStore blobStore, StorageConfig config, StorageFileMeta fileMeta,
+			HttpServletRequest request, HttpServletResponse response) throws StorageAccessError {
+		response.setHeader("Accept-Ranges", "bytes");
+
+		String rangeHeader = request.getHeader("Range");
+		if (rangeHeader == null && !BlobCache.getInstance().isEnabled()) {
+			streamWholeFile(blobStore, config, fileMeta, response);
+			return true;
+		}
+
+		// ranges can only be answered if we know the current size of the file, the
+		// cache needs to know the file's current version
+		BlobMetadata meta = blobStore.blobMetadata(config.getContainer(), fileMeta.getName());
+		if (meta == null) {
+			throw new StorageAccessError("File not found in storage: " + fileMeta.getName());
+		}
+		Long size = meta.getContentMetadata().getContentLength();
+		List<ByteRange> ranges = null;
+		if (rangeHeader != null && size != null && ifRangeIsMet(request, meta)) {
+			ranges = ByteRange.parse(rangeHeader, size);
+		}
+		if (ranges == null) {
+			if (BlobCache.getInstance().accepts(meta)) {
+				streamThroughCache(blobStore, config, fileMeta, meta, response);
+			} else {
+				streamWholeFile(blobStore, config, fileMeta, response);
+			}
+			return true;
+		}
+
+		setValidators(response, meta);
+		if (ranges.isEmpty()) {
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", "bytes */" + size);
+			return true;
 		}
 
+		Metrics.increment("storage.download.ranged");
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		long beginStream = System.nanoTime();
+		try (OutputStream out = response.getOutputStream()) {
+			long total = 0;
+			if (ranges.size() == 1) {
+				ByteRange range = ranges.get(0);
+				response.setHeader("Content-Range", range.toContentRange(size));
+				response.setContentLengthLong(range.length());
+				total = streamRange(blobStore, config, fileMeta, meta, range, out);
+			} else {
+				// several ranges are sent as parts of a multipart message
+				String boundary = UUID.randomUUID().toString();
+				String contentType = meta.getContentMetadata().getContentType();
+				if (StringUtils.isBlank(contentType)) {
+					contentType = "application/octet-stream";
+				}
+				response.setContentType("multipart/byteranges; boundary=" + boundary);
+				for (ByteRange range : ranges) {
+					String partHeader = String.format("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n",
+							boundary, contentType, range.toContentRange(size));
+					out.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+					total += streamRange(blobStore, config, fileMeta, meta, range, out);
+				}
+				out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+			}
+			recordDownload(total, System.nanoTime() - beginStream);
+		} catch (IOException e) {
+			throw new StorageAccessError("An IOError occured during storage access.", e);
+		} catch (HttpResponseException e) {
+			throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
+		}
+		return true;
+	}
+
+	private void streamWholeFile(BlobStore blobStore, StorageConfig config, StorageFileMeta fileMeta,
+			HttpServletResponse response) throws StorageAccessError {
 		// Note: Blob.getBlob() does connect to the storage provider, but it will not
-		// download all of the data.
+		// download all of the data. The metadata returned is enough to set the length.
 		Blob blob = blobStore.getBlob(config.getContainer(), fileMeta.getName());
+		if (blob == null) {
+			throw new StorageAccessError("File not found in storage: " + fileMeta.getName());
+		}
+		Long contentLength = blob.getMetadata().getContentMetadata().getContentLength();
+		if (contentLength != null) {
+			response.setContentLengthLong(contentLength);
+		}
+		setValidators(response, blob.getMetadata());
 
-		long beginStream = System.currentTimeMillis();
+		long beginStream = System.nanoTime();
 		try (InputStream in = blob.getPayload().openStream(); OutputStream out = response.getOutputStream();) {
-			byte[] buffer = new byte[2048];
-			int count = in.read(buffer);
-			while (count > 0) {
-				out.write(Arrays.copyOf(buffer, count));
-				count = in.read(buffer);
-			}
-			LOG.debug("streaming took: " + (System.currentTimeMillis() - beginStream) + " ms");
+			long total = copy(in, out);
+			recordDownload(total, System.nanoTime() - beginStream);
 		} catch (IOException e) {
 			throw new StorageAccessError("An IOError occured during storage access.", e);
 		} catch (HttpResponseException e) {
 			throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
 		}
+	}
 
-		return true;
+	private void streamThroughCache(BlobStore blobStore, StorageConfig config, StorageFileMeta fileMeta,
+			BlobMetadata meta, HttpServletResponse response) throws StorageAccessError {
+		response.setContentLengthLong(meta.getContentMetadata().getContentLength());
+		setValidators(response, meta);
+
+		long beginStream = System.nanoTime();
+		try (OutputStream out = response.getOutputStream()) {
+			long total = BlobCache.getInstance().sendWhole(config, meta, () -> {
+				Blob blob = blobStore.getBlob(config.getContainer(), fileMeta.getName());
+				if (blob == null) {
+					throw new StorageAccessError("File not found in storage: " + fileMeta.getName());
+				}
+				return blob.getPayload().openStream();
+			}, out);
+			recordDownload(total, System.nanoTime() - beginStream);
+		} catch (IOException e) {
+			throw new StorageAccessError("An IOError occured during storage access.", e);
+		} catch (HttpResponseException e) {
+			throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
+		}
+	}
+
+	private long streamRange(BlobStore blobStore, StorageConfig config, StorageFileMeta fileMeta, BlobMetadata meta,
+			ByteRange range, OutputStream out) throws IOException, StorageAccessError {
+		long cached = BlobCache.getInstance().sendRange(config, meta, range, out);
+		if (cached >= 0) {
+			return cached;
+		}
+		GetOptions options = GetOptions.Builder.range(range.start, range.end);
+		Blob blob = blobStore.getBlob(config.getContainer(), fileMeta.getName(), options);
+		if (blob == null) {
+			throw new StorageAccessError("File not found in storage: " + fileMeta.getName());
+		}
+		try (InputStream in = blob.getPayload().openStream()) {
+			return copy(in, out);
+		}
 	}
 
+	// the headers that a client may use in an If-Range condition
+	private static void setValidators(HttpServletResponse response, BlobMetadata meta) {
+		String eTag = quotedETag(meta);
+		if (eTag != null) {
+			response.setHeader("ETag", eTag);
+		}
+		if (meta.getLastModified() != null) {
+			response.setDateHeader("Last-Modified", meta.getLastModified().getTime());
+		}
+	}
+
+	// an If-Range condition holds if the strong entity tag or the modification date
+	// (in seconds) match the current file
+	private static boolean ifRangeIsMet(HttpServletRequest request, BlobMetadata meta) {
+		String condition = request.getHeader("If-Range");
+		if (condition == null) {
+			return true;
+		}
+		condition = condition.trim();
+		if (condition.startsWith("\"") || condition.startsWith("W/")) {
+			return condition.equals(quotedETag(meta));
+		}
+		try {
+			long date = request.getDateHeader("If-Range");
+			return meta.getLastModified() != null && meta.getLastModified().getTime() / 1000 == date / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static String quotedETag(BlobMetadata meta) {
+		String eTag = meta.getETag();
+		if (StringUtils.isBlank(eTag)) {
+			return null;
+		}
+		return eTag.startsWith("\"") ? eTag : "\"" + eTag + "\"";
+	}
+
+	// copies everything using one of the pooled buffers, returns the bytes copied
+	private long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = STREAM_BUFFERS.take();
+		try {
+			long total = 0;
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+				total += count;
+			}
+			return total;
+		} finally {
+			STREAM_BUFFERS.give(buffer);
+		}
+	}
+
+	private void recordDownload(long bytes, long nanos) {
+		long millis = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(nanos));
+		long bytesPerSecond = bytes * 1000L / millis;
+		Metrics.increment("storage.download.count");
+		Metrics.add("storage.download.bytes", bytes);
+		Metrics.recordNanos("storage.download.duration", nanos);
+		Metrics.set("storage.download.lastBytesPerSecond", bytesPerSecond);
+		LOG.debug(String.format("Streamed %d bytes in %d ms (%.1f MB/s)", bytes, millis, bytesPerSecond / 1e6));
+	}
+
+	/**
+	 * Upload the stream as a new file. Files larger than a single part are sent
+	 * as a multipart upload with several parts in flight at once.
+	 */
 	public StorageFileMeta streamToNewFile(StorageConfig config, String fileName, InputStream in)
 			throws StorageAccessError {
-		BlobStore blobStore = getOrCreateBlobStoreContext(config).getBlobStore();
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			return streamToNewFile(lease.getBlobStore(), config, fileName, in, -1);
+		}
+	}
 
+	// the size hint is used to choose a part size that fits the file into the
+	// provider's number of parts, it is -1 if not known. The part size is rounded
+	// to a size class, such that the part buffers are shared between files.
+	private StorageFileMeta streamToNewFile(BlobStore blobStore, StorageConfig config, String fileName,
+			InputStream in, long sizeHint) throws StorageAccessError {
 		// setup a blob to use for the upload
 		Blob blob = blobStore.blobBuilder(fileName).build();
 
-		int chunkSize = determineUploadChunkSize(blobStore, 5000000);
+		long maxParts = blobStore.getMaximumNumberOfParts();
+		long suggested = Math.max(5000000, (sizeHint + maxParts - 1) / maxParts);
+		int chunkSize = determineUploadChunkSize(blobStore,
+				MultipartUploader.partSizeClass((int) Math.min(suggested, MAX_UPLOAD_CHUNK_SIZE)));
+		MultipartUploader uploader = new MultipartUploader(blobStore, chunkSize);
+		long start = System.nanoTime();
 		try {
-			byte[] part1 = tryToReadAtLeastNBytes(in, chunkSize);
-			byte[] part2 = tryToReadAtLeastNBytes(in, chunkSize);
-
-			// no multipart upload is needed, push everything in one go.
-			if (part2.length == 0) {
-				blob.setPayload(part1);
-				blobStore.putBlob(config.getContainer(), blob);
-				return new StorageFileMeta(config, fileName, part1.length);
+			// read the first part, if the input ends there no multipart upload is needed
+			byte[] buffer = uploader.takeBuffer();
+			int length;
+			try {
+				length = MultipartUploader.readFully(in, buffer);
+				if (length < chunkSize) {
+					blob.setPayload(MultipartUploader.payloadOf(buffer, length));
+					blobStore.putBlob(config.getContainer(), blob);
+					uploader.giveBack(buffer);
+					recordUpload(length, start);
+					return new StorageFileMeta(config, fileName, length);
+				}
+				// a multipart upload is indeed needed, so let's do that
+				LOG.debug("Beginning multipart upload with chunk size: " + chunkSize);
+				uploader.begin(blobStore.initiateMultipartUpload(config.getContainer(), blob.getMetadata(),
+						new PutOptions(true)));
+			} catch (IOException | RuntimeException e) {
+				uploader.giveBack(buffer);
+				throw e;
 			}
 
-			// a multipart upload is indeed needed, so let's do that
-			LOG.debug("Beginning multipart upload with chunk size: " + chunkSize);
-			MultipartUpload mpu = blobStore.initiateMultipartUpload(config.getContainer(), blob.getMetadata(),
-					new PutOptions(true));
-
-			// the list of uploaded payload parts
-			List<MultipartPart> parts = new ArrayList<>();
-			parts.add(uploadChunk(part1, 1, blob, blobStore, mpu));
-			parts.add(uploadChunk(part2, 2, blob, blobStore, mpu));
-
-			// read the next input and upload any additional parts
-			long maxParts = blobStore.getMaximumNumberOfParts();
-			long totalSize = part1.length + part2.length;
-			while (true) {
-				if (parts.size() >= maxParts) {
-					blobStore.abortMultipartUpload(mpu);
+			// each part is uploaded in the background while the next one is read
+			long totalSize = 0;
+			int partNr = 0;
+			while (length > 0) {
+				if (partNr >= maxParts) {
+					uploader.giveBack(buffer);
 					throw new StorageAccessError("Aborting upload. Maximum number of parts reached: " + maxParts);
 				}
-				byte[] nextPayload = tryToReadAtLeastNBytes(in, chunkSize);
-				if (nextPayload.length == 0) {
-					break;
+				partNr += 1;
+				totalSize += length;
+				uploader.uploadPart(partNr, buffer, length);
+
+				buffer = uploader.takeBuffer();
+				try {
+					length = MultipartUploader.readFully(in, buffer);
+				} catch (IOException e) {
+					uploader.giveBack(buffer);
+					throw e;
 				}
-				MultipartPart part = uploadChunk(nextPayload, parts.size() + 1, blob, blobStore, mpu);
-				parts.add(part);
-				totalSize += part.partSize();
 			}
-			String eTag = blobStore.completeMultipartUpload(mpu, parts);
+			uploader.giveBack(buffer);
+
+			String eTag = uploader.complete();
 			LOG.debug("Multipart upload finished, eTag: " + eTag);
+			recordUpload(totalSize, start);
 			return new StorageFileMeta(config, fileName, totalSize);
 		} catch (IOException e) {
+			uploader.abort();
 			throw new StorageAccessError("An IOError occured during storage access.", e);
 		} catch (HttpResponseException e) {
+			uploader.abort();
 			throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
+		} catch (StorageAccessError | RuntimeException e) {
+			uploader.abort();
+			throw e;
 		}
 	}
 
-	private BlobStoreContext getOrCreateBlobStoreContext(StorageConfig config) {
-		// We need the synchronisation on the (already synchronised) map here, because
-		// the access is non-atomic. This is potentially long and blocking, but has to
-		// happen only a small number of times
-		synchronized (this.createdContexts) {
-			if (!this.createdContexts.containsKey(config.getId())) {
-				ContextBuilder builder = ContextBuilder.newBuilder(config.getProvider().toString());
-				builder.credentials(config.getIdentity(), config.getCredential());
-				if (!StringUtils.isBlank(config.getEndpoint())) {
-					builder.endpoint(config.getEndpoint());
+	/**
+	 * Copy a file from one config to another under the same name. If both configs
+	 * use the same provider and endpoint, the provider is asked to copy the file.
+	 * Otherwise, or if that fails, the file is streamed from the source to the
+	 * target through the bounded upload buffers.
+	 *
+	 * @param progress
+	 *            Receives the number of bytes copied as the copy proceeds.
+	 * @return The meta information of the new file in the target config, as
+	 *         reported by the target provider if available.
+	 */
+	public StorageFileMeta copyFile(StorageConfig source, StorageConfig target, String fileName, long sizeHint,
+			LongConsumer progress) throws StorageAccessError {
+		try (BlobStoreContextCache.Lease sourceLease = contexts.lease(source)) {
+			BlobStore sourceStore = sourceLease.getBlobStore();
+
+			if (source.getProvider() == target.getProvider()
+					&& StringUtils.equals(source.getEndpoint(), target.getEndpoint())) {
+				try {
+					sourceStore.copyBlob(source.getContainer(), fileName, target.getContainer(), fileName,
+							CopyOptions.NONE);
+					BlobMetadata copied = sourceStore.blobMetadata(target.getContainer(), fileName);
+					long size = (copied != null && copied.getSize() != null) ? copied.getSize() : sizeHint;
+					progress.accept(size);
+					Metrics.increment("storage.transfer.nativeCopies");
+					return (copied != null && copied.getSize() != null) ? StorageFileMeta.from(target, copied)
+							: new StorageFileMeta(target, fileName, size);
+				} catch (RuntimeException e) {
+					// e.g. the source credentials may not write to the target
+					LOG.warn("Provider copy of " + fileName + " failed, streaming it instead: " + e.getMessage());
+					Metrics.increment("storage.transfer.nativeFallbacks");
 				}
+			}
 
-				BlobStoreContext context = builder.buildView(BlobStoreContext.class);
-				this.createdContexts.put(config.getId(), context);
+			Blob blob = sourceStore.getBlob(source.getContainer(), fileName);
+			if (blob == null) {
+				throw new StorageAccessError("File not found in storage: " + fileName);
+			}
+			try (BlobStoreContextCache.Lease targetLease = contexts.lease(target);
+					InputStream in = new ProxyInputStream(blob.getPayload().openStream()) {
+						@Override
+						protected void afterRead(int count) {
+							if (count > 0) {
+								progress.accept(count);
+							}
+						}
+					}) {
+				StorageFileMeta result = streamToNewFile(targetLease.getBlobStore(), target, fileName, in, sizeHint);
+				Metrics.increment("storage.transfer.streamedCopies");
+				// the target's own timestamp, as for completed signed uploads
+				BlobMetadata copied = targetLease.getBlobStore().blobMetadata(target.getContainer(), fileName);
+				return (copied != null && copied.getSize() != null) ? StorageFileMeta.from(target, copied) : result;
 			}
-			return this.createdContexts.get(config.getId());
+		} catch (IOException e) {
+			throw new StorageAccessError("An IOError occured during storage access.", e);
+		} catch (HttpResponseException e) {
+			throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
 		}
 	}
 
-	public synchronized Set<StorageFileMeta> getFilesMeta(StorageConfig config) {
-		BlobStoreContext context = getOrCreateBlobStoreContext(config);
-		BlobStore store = context.getBlobStore();
+	/**
+	 * Sign a request that downloads the file straight from the provider.
+	 */
+	public PresignedUrl signDownload(StorageConfig config, StorageFileMeta fileMeta) throws StorageAccessError {
+		long expiry = Benchly.getConfig().getPresignExpirySeconds();
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			HttpRequest request = lease.getSigner().signGetBlob(config.getContainer(), fileMeta.getName(), expiry);
+			Metrics.increment("storage.presign.downloads");
+			return PresignedUrl.from(request, Timestamp.from(Instant.now().plusSeconds(expiry)));
+		} catch (UnsupportedOperationException e) {
+			throw new StorageAccessError("The storage provider does not support signed requests: " + config.getProvider(),
+					e);
+		}
+	}
 
-		PageSet<? extends StorageMetadata> pages = store.list(config.getContainer());
-		Set<StorageFileMeta> ourMetadata = new HashSet<>();
-		while (true) {
-			for (StorageMetadata page : pages) {
-				ourMetadata.add(StorageFileMeta.from(config, page));
+	/**
+	 * Sign a request that uploads the named file straight to the provider. Once
+	 * the client is done, the file is looked up with
+	 * {@link #completeSignedUpload}.
+	 */
+	public PresignedUrl signUpload(StorageConfig config, PresignedUrl upload) throws StorageAccessError {
+		long expiry = Benchly.getConfig().getPresignExpirySeconds();
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			PayloadBlobBuilder builder = lease.getBlobStore().blobBuilder(upload.getName()).forSigning();
+			if (upload.getSize() >= 0) {
+				builder.contentLength(upload.getSize());
+			}
+			if (!StringUtils.isBlank(upload.getContentType())) {
+				builder.contentType(upload.getContentType());
 			}
+			HttpRequest request = lease.getSigner().signPutBlob(config.getContainer(), builder.build(), expiry);
+			Metrics.increment("storage.presign.uploads");
+			return PresignedUrl.from(request, Timestamp.from(Instant.now().plusSeconds(expiry)));
+		} catch (UnsupportedOperationException e) {
+			throw new StorageAccessError("The storage provider does not support signed requests: " + config.getProvider(),
+					e);
+		}
+	}
 
-			// retrieve pages from the next marker
-			String marker = pages.getNextMarker();
+	/**
+	 * Look up a file a client uploaded with a signed request. Cached content of
+	 * an earlier file with the same name is dropped.
+	 *
+	 * @return The file's meta information or null if there is no such file.
+	 */
+	public StorageFileMeta completeSignedUpload(StorageConfig config, String fileName) throws StorageAccessError {
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			BlobMetadata meta = lease.getBlobStore().blobMetadata(config.getContainer(), fileName);
+			BlobCache.getInstance().invalidate(config, fileName);
+			if (meta == null) {
+				return null;
+			}
+			Metrics.increment("storage.presign.completions");
+			return StorageFileMeta.from(config, meta);
+		} catch (ContainerNotFoundException e) {
+			throw new StorageAccessError("Container not found: " + config.getContainer(), e);
+		} catch (HttpResponseException e) {
+			throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Start the multipart upload for a resumable upload. Sets the chunk size,
+	 * which is adjusted to what the provider accepts, and the provider's upload
+	 * id on the upload.
+	 */
+	public void initiateUpload(StorageConfig config, StorageUpload upload) throws StorageAccessError {
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			BlobStore blobStore = lease.getBlobStore();
+
+			// the chunk has to be large enough to stay within the provider's number of
+			// parts and small enough to be buffered
+			long maxParts = blobStore.getMaximumNumberOfParts();
+			long suggested = (upload.getChunkSize() > 0) ? upload.getChunkSize() : 5000000;
+			suggested = Math.max(suggested, (upload.getSize() + maxParts - 1) / maxParts);
+			int chunkSize = determineUploadChunkSize(blobStore,
+					MultipartUploader.partSizeClass((int) Math.min(suggested, MAX_UPLOAD_CHUNK_SIZE)));
+			upload.setChunkSize(chunkSize);
+			if (upload.getChunkCount() > maxParts || chunkSize > MAX_UPLOAD_CHUNK_SIZE) {
+				throw new StorageAccessError("The file is too large to be uploaded in chunks: " + upload.getSize());
+			}
+
+			try {
+				MultipartUpload mpu = blobStore.initiateMultipartUpload(config.getContainer(),
+						blobStore.blobBuilder(upload.getName()).build().getMetadata(), new PutOptions(true));
+				upload.setProviderUploadId(mpu.id());
+			} catch (HttpResponseException e) {
+				throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Upload a chunk of a resumable upload as the part with the chunk's number.
+	 * The input has to have exactly the chunk's expected size. Uploading a chunk
+	 * again replaces the part.
+	 */
+	public StorageUploadPart uploadChunk(StorageConfig config, StorageUpload upload, int number, InputStream in)
+			throws StorageAccessError {
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			BlobStore blobStore = lease.getBlobStore();
+			int expected = (int) upload.expectedChunkSize(number);
+
+			MultipartUploader uploader = new MultipartUploader(blobStore, upload.getChunkSize());
+			uploader.begin(multipartUploadOf(blobStore, config, upload));
+			byte[] buffer = uploader.takeBuffer();
+			int length;
+			try {
+				length = MultipartUploader.readFully(in, buffer);
+				if (length != expected || in.read() != -1) {
+					uploader.giveBack(buffer);
+					throw new StorageAccessError("Chunk " + number + " has to have " + expected + " bytes.");
+				}
+			} catch (IOException e) {
+				uploader.giveBack(buffer);
+				throw new StorageAccessError("An IOError occured while reading the chunk.", e);
+			}
+
+			try {
+				MultipartPart part = uploader.uploadPartNow(number, buffer, length);
+				return new StorageUploadPart(upload, number, length, part.partETag());
+			} catch (HttpResponseException e) {
+				throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Complete a resumable upload from the parts that arrived.
+	 *
+	 * @return The meta information of the new file.
+	 */
+	public StorageFileMeta completeUpload(StorageConfig config, StorageUpload upload, List<StorageUploadPart> parts)
+			throws StorageAccessError {
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			BlobStore blobStore = lease.getBlobStore();
+
+			List<MultipartPart> providerParts = new ArrayList<>(parts.size());
+			long totalSize = 0;
+			for (StorageUploadPart part : parts) {
+				providerParts.add(MultipartPart.create(part.getNumber(), part.getSize(), part.getETag(), null));
+				totalSize += part.getSize();
+			}
+			providerParts.sort(Comparator.comparingInt(MultipartPart::partNumber));
+
+			try {
+				String eTag = blobStore.completeMultipartUpload(multipartUploadOf(blobStore, config, upload),
+						providerParts);
+				LOG.debug("Resumable upload finished, eTag: " + eTag);
+			} catch (HttpResponseException e) {
+				throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
+			}
+			Metrics.increment("storage.upload.resumable.completed");
+			return new StorageFileMeta(config, upload.getName(), totalSize);
+		}
+	}
+
+	public void abortUpload(StorageConfig config, StorageUpload upload) throws StorageAccessError {
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			BlobStore blobStore = lease.getBlobStore();
+			try {
+				blobStore.abortMultipartUpload(multipartUploadOf(blobStore, config, upload));
+			} catch (HttpResponseException e) {
+				throw new StorageAccessError("Unexpected HTTP Response: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	// the provider's upload is identified by its id, so it can be continued after
+	// a restart
+	private MultipartUpload multipartUploadOf(BlobStore blobStore, StorageConfig config, StorageUpload upload) {
+		return MultipartUpload.create(config.getContainer(), upload.getName(), upload.getProviderUploadId(),
+				blobStore.blobBuilder(upload.getName()).build().getMetadata(), new PutOptions(true));
+	}
+
+	private void recordUpload(long bytes, long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		Metrics.increment("storage.upload.count");
+		Metrics.recordNanos("storage.upload.duration", nanos);
+		if (nanos > 0) {
+			Metrics.set("storage.upload.lastBytesPerSecond", bytes * 1000000000L / nanos);
+		}
+	}
+
+	/**
+	 * Retrieve one page of the container listing, starting after the given marker
+	 * or at the beginning if it is null. Pages are listed in the order of the file
+	 * names, the page's next marker is null on the last page.
+	 */
+	public PageSet<StorageFileMeta> getFilesMetaPage(StorageConfig config, String marker) {
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			BlobStore blobStore = lease.getBlobStore();
+
+			// files in folders are listed as well, the folders themselves are skipped
+			ListContainerOptions options = ListContainerOptions.Builder.recursive();
 			if (marker != null) {
-				pages = store.list(config.getContainer(), ListContainerOptions.Builder.afterMarker(marker));
-			} else {
-				break;
+				options.afterMarker(marker);
 			}
+			PageSet<? extends StorageMetadata> page = blobStore.list(config.getContainer(), options);
+			List<StorageFileMeta> result = new ArrayList<>(page.size());
+			for (StorageMetadata meta : page) {
+				if (meta.getType() == StorageType.BLOB) {
+					result.add(StorageFileMeta.from(config, meta));
+				}
+			}
+			return new PageSetImpl<>(result, page.getNextMarker());
 		}
-		context.close();
-		return ourMetadata;
+	}
+
+	/**
+	 * Forget everything kept for the config, because its credentials changed or it
+	 * was deleted. Accesses still running finish with the old context.
+	 */
+	public void invalidate(StorageConfig config) {
+		contexts.invalidate(config.getId());
+	}
+
+	/**
+	 * Close the connections to providers that were not accessed for the given
+	 * time.
+	 */
+	public void closeIdleContexts(long idleSeconds) {
+		contexts.closeIdle(TimeUnit.SECONDS.toMillis(idleSeconds));
 	}
 
 	public void deleteFile(StorageConfig config, StorageFileMeta fileMeta) throws StorageAccessError {
-		BlobStoreContext context = getOrCreateBlobStoreContext(config);
-		try {
-			context.getBlobStore().removeBlob(config.getContainer(), fileMeta.getName());
-		} catch (ContainerNotFoundException e) {
-			throw new StorageAccessError("Container not found: " + config.getContainer(), e);
+		try (BlobStoreContextCache.Lease lease = contexts.lease(config)) {
+			BlobStore blobStore = lease.getBlobStore();
+			try {
+				blobStore.removeBlob(config.getContainer(), fileMeta.getName());
+				BlobCache.getInstance().invalidate(config, fileMeta.getName());
+			} catch (ContainerNotFoundException e) {
+				throw new StorageAccessError("Container not found: " + config.getContainer(), e);
+			}
 		}
 	}
 
@@ -220,34 +708,4 @@ public class StorageAccess {
 		}
 	}
 
-	private byte[] tryToReadAtLeastNBytes(InputStream in, int n) throws IOException {
-		int singleReadMax = 1000;
-		byte[] result = new byte[n + singleReadMax];
-		int total = 0;
-
-		while (true) {
-			int count = in.read(result, total, singleReadMax);
-
-			if (count == -1) {
-				break;
-			}
-
-			total += count;
-
-			if (total >= n) {
-				break;
-			}
-		}
-
-		return Arrays.copyOf(result, total);
-	}
-
-	private MultipartPart uploadChunk(byte[] nextPayload, int partNr, Blob blob, BlobStore blobStore,
-			MultipartUpload mpu) {
-		blob.setPayload(nextPayload);
-		// attempt the multipart upload
-		MultipartPart part = blobStore.uploadMultipartPart(mpu, partNr, blob.getPayload());
-		return part;
-	}
-
 }
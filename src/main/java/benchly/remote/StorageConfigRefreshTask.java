@@ -1,17 +1,35 @@
 package benchly.remote;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.jclouds.blobstore.domain.PageSet;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
+import benchly.Benchly;
 import benchly.database.StorageDao;
 import benchly.model.StorageConfig;
 import benchly.model.StorageFileMeta;
+import benchly.util.Metrics;
 
 /**
- * Updates file information for a storage config
+ * Updates file information for a storage config. The container listing is
+ * persisted page by page, such that memory use does not depend on the number
+ * of files and a refresh that was interrupted continues where it stopped.
+ * 
+ * Refreshes are started via {@link #submit(StorageConfig, Executor)}, which
+ * lets concurrent requests for the same config wait for one refresh instead of
+ * listing the container again.
  * @author david
  *
  */
@@ -19,21 +37,107 @@ public class StorageConfigRefreshTask implements Runnable {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(StorageConfigRefreshTask.class);
 
+	// the refreshes in progress by config id, each config is refreshed by one task at a time
+	private static final Map<Long, CompletableFuture<Void>> IN_FLIGHT = new ConcurrentHashMap<>();
+
 	private final StorageConfig config;
+
+	private final CompletableFuture<Void> result;
 	
-	public StorageConfigRefreshTask(StorageConfig config) {
+	private StorageConfigRefreshTask(StorageConfig config, CompletableFuture<Void> result) {
 		this.config = config;
+		this.result = result;
+	}
+
+	/**
+	 * Refresh the config's file meta on the executor, unless it was refreshed
+	 * very recently. If a refresh of the config is already running, that refresh
+	 * is returned instead of starting another one.
+	 */
+	public static Future<Void> submit(StorageConfig config, Executor executor) {
+		if (isFresh(config)) {
+			Metrics.increment("storage.refresh.fresh");
+			return CompletableFuture.completedFuture(null);
+		}
+
+		CompletableFuture<Void> created = new CompletableFuture<>();
+		CompletableFuture<Void> running = IN_FLIGHT.putIfAbsent(config.getId(), created);
+		if (running != null) {
+			Metrics.increment("storage.refresh.coalesced");
+			return running;
+		}
+		Metrics.increment("storage.refresh.started");
+		try {
+			executor.execute(new StorageConfigRefreshTask(config, created));
+		} catch (RuntimeException e) {
+			IN_FLIGHT.remove(config.getId(), created);
+			created.completeExceptionally(e);
+		}
+		return created;
+	}
+
+	public static Set<Long> runningConfigIds() {
+		return new HashSet<>(IN_FLIGHT.keySet());
+	}
+
+	// whether a complete refresh finished within the freshness window
+	private static boolean isFresh(StorageConfig config) {
+		if (config.getRefreshedAt() == null || config.getRefreshMarker() != null) {
+			return false;
+		}
+		long freshnessMillis = TimeUnit.SECONDS.toMillis(Benchly.getConfig().getStorageRefreshFreshnessSeconds());
+		return System.currentTimeMillis() - config.getRefreshedAt().getTime() < freshnessMillis;
 	}
 	
 	@Override
 	public void run() {
-		Set<StorageFileMeta> fileMeta = StorageAccess.getInstance().getFilesMeta(config);
 		try {
-			StorageDao.updateStorageFileMeta(config, fileMeta);
+			refresh();
+			finish(null);
 		} catch (SQLException e) {
 			LOG.error("Unable to persist Storage information for storage config on refresh: " + e.getMessage());
 			e.printStackTrace();
+			finish(e);
+		} catch (RuntimeException e) {
+			LOG.error("Unable to refresh storage config " + config.getId() + ": " + e.getMessage());
+			finish(e);
+		} catch (Error e) {
+			finish(e);
+			throw e;
+		}
+	}
+
+	// later requests start a new refresh, the waiting ones get this result
+	private void finish(Throwable failure) {
+		IN_FLIGHT.remove(config.getId(), result);
+		if (failure == null) {
+			result.complete(null);
+		} else {
+			result.completeExceptionally(failure);
 		}
 	}
 
+	private void refresh() throws SQLException {
+		// continue an unfinished refresh if there is one
+		StorageConfig current = StorageDao.fetchConfig(config.getId());
+		if (current == null) {
+			return;
+		}
+		String marker = current.getRefreshMarker();
+		String afterName = (marker == null) ? null : current.getRefreshedUpTo();
+		if (marker != null) {
+			LOG.info("Continuing refresh of storage config " + config.getId() + " after: " + afterName);
+		}
+
+		do {
+			PageSet<StorageFileMeta> page = StorageAccess.getInstance().getFilesMetaPage(current, marker);
+			List<StorageFileMeta> files = new ArrayList<>(page);
+			marker = page.getNextMarker();
+			StorageDao.updateStorageFileMetaPage(current, files, afterName, marker);
+			if (!files.isEmpty()) {
+				afterName = files.get(files.size() - 1).getName();
+			}
+		} while (marker != null);
+	}
+
 }
@@ -0,0 +1,218 @@
+package benchly.remote;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import benchly.Benchly;
+import benchly.database.StorageDao;
+import benchly.error.StorageAccessError;
+import benchly.model.StorageFileMeta;
+import benchly.model.StorageTransfer;
+import benchly.model.StorageTransferItem;
+import benchly.util.Metrics;
+
+/**
+ * Copies the open items of a transfer between storage configs. Several files
+ * are copied at once, each one is marked as done when it arrived, such that a
+ * transfer that was interrupted or failed continues with the missing files.
+ *
+ * Transfers are started via {@link #submit(StorageTransfer, Executor)}, which
+ * runs each transfer at most once at a time.
+ */
+public class StorageTransferTask implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StorageTransferTask.class);
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	// the files of all transfers are copied on these threads
+	private static final ExecutorService FILE_EXECUTOR = Executors
+			.newFixedThreadPool(Benchly.getConfig().getTransferParallelFiles(), runnable -> {
+				Thread thread = new Thread(runnable, "benchly-transfer-" + THREAD_COUNT.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	// the transfers in progress by id
+	private static final Map<Long, StorageTransferTask> RUNNING = new ConcurrentHashMap<>();
+
+	private final long transferId;
+
+	private volatile boolean cancelled = false;
+
+	// progress of this run, including the bytes of files not yet complete
+	private final AtomicLong bytesCopied = new AtomicLong();
+
+	private volatile long startNanos = System.nanoTime();
+
+	private volatile long bytesDoneAtStart = 0;
+
+	private StorageTransferTask(long transferId) {
+		this.transferId = transferId;
+	}
+
+	/**
+	 * Run the transfer on the executor, unless it is already running.
+	 *
+	 * @return Whether a new run was started.
+	 */
+	public static boolean submit(StorageTransfer transfer, Executor executor) {
+		StorageTransferTask task = new StorageTransferTask(transfer.getId());
+		if (RUNNING.putIfAbsent(transfer.getId(), task) != null) {
+			return false;
+		}
+		try {
+			executor.execute(task);
+		} catch (RuntimeException e) {
+			RUNNING.remove(transfer.getId(), task);
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether a run of the transfer has not ended yet, e.g. because a
+	 *         cancelled run still copies the files it started.
+	 */
+	public static boolean isRunning(StorageTransfer transfer) {
+		return RUNNING.containsKey(transfer.getId());
+	}
+
+	public static Set<Long> runningTransferIds() {
+		return new HashSet<>(RUNNING.keySet());
+	}
+
+	/**
+	 * Stop the transfer after the files currently copied.
+	 */
+	public static void cancel(StorageTransfer transfer) {
+		StorageTransferTask task = RUNNING.get(transfer.getId());
+		if (task != null) {
+			task.cancelled = true;
+		}
+	}
+
+	/**
+	 * Add the bytes of the files being copied and the current throughput to a
+	 * transfer that is running.
+	 */
+	public static void applyLiveProgress(StorageTransfer transfer) {
+		StorageTransferTask task = RUNNING.get(transfer.getId());
+		if (task == null || transfer.getState() != StorageTransfer.State.RUNNING) {
+			return;
+		}
+		long copied = task.bytesCopied.get();
+		long nanos = Math.max(1, System.nanoTime() - task.startNanos);
+		transfer.setLiveProgress(Math.min(transfer.getBytesTotal(), task.bytesDoneAtStart + copied),
+				copied * 1000000000L / nanos);
+	}
+
+	@Override
+	public void run() {
+		try {
+			StorageTransfer transfer = StorageDao.fetchTransfer(transferId);
+			if (transfer == null || !transfer.isActive()) {
+				return;
+			}
+			transfer(transfer);
+		} catch (SQLException e) {
+			LOG.error("Unable to persist the progress of storage transfer " + transferId + ": " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			RUNNING.remove(transferId, this);
+		}
+	}
+
+	private void transfer(StorageTransfer transfer) throws SQLException {
+		List<StorageTransferItem> items = StorageDao.fetchOpenTransferItems(transfer);
+		LOG.info("Starting storage transfer " + transfer.getId() + " with " + items.size() + " open files");
+		StorageDao.updateTransferState(transfer, StorageTransfer.State.RUNNING, null);
+		bytesDoneAtStart = transfer.getBytesDone();
+		startNanos = System.nanoTime();
+
+		List<CompletableFuture<Void>> copies = new ArrayList<>(items.size());
+		for (StorageTransferItem item : items) {
+			copies.add(CompletableFuture.runAsync(() -> copy(transfer, item), FILE_EXECUTOR));
+		}
+
+		int failed = 0;
+		String firstError = null;
+		for (CompletableFuture<Void> copy : copies) {
+			try {
+				copy.join();
+			} catch (CompletionException e) {
+				Throwable cause = (e.getCause() == null) ? e : e.getCause();
+				failed += 1;
+				if (firstError == null) {
+					firstError = cause.getMessage();
+				}
+			}
+		}
+
+		StorageTransfer.State end = StorageTransfer.State.SUCCEEDED;
+		String error = null;
+		if (cancelled) {
+			end = StorageTransfer.State.CANCELLED;
+		} else if (failed > 0) {
+			end = StorageTransfer.State.FAILED;
+			error = String.format("%d of %d files could not be copied, e.g.: %s", failed, items.size(), firstError);
+		}
+		// a cancel sets the state before the run ends, which is not overwritten
+		if (StorageDao.endTransfer(transfer, end, error) > 0) {
+			LOG.info("Storage transfer " + transfer.getId() + " ended as " + end);
+		} else {
+			LOG.info("Storage transfer " + transfer.getId() + " ended after its state was changed");
+		}
+	}
+
+	private void copy(StorageTransfer transfer, StorageTransferItem item) {
+		if (cancelled) {
+			return;
+		}
+		AtomicLong fileBytes = new AtomicLong();
+		long start = System.nanoTime();
+		try {
+			StorageFileMeta copied = StorageAccess.getInstance().copyFile(transfer.getSource(), transfer.getTarget(),
+					item.getName(), item.getSize(), count -> {
+						fileBytes.addAndGet(count);
+						bytesCopied.addAndGet(count);
+					});
+			if (copied.getLastModified() == null) {
+				copied.setLastModified(Date.from(Instant.now()));
+			}
+			copied.setRetrievedAt(Timestamp.from(Instant.now()));
+			StorageDao.completeTransferItem(item, copied);
+
+			// count the file with the size it had when the transfer was created
+			bytesCopied.addAndGet(item.getSize() - fileBytes.get());
+			Metrics.increment("storage.transfer.files");
+			Metrics.add("storage.transfer.bytes", fileBytes.get());
+			Metrics.recordNanos("storage.transfer.file", System.nanoTime() - start);
+		} catch (StorageAccessError | SQLException | RuntimeException e) {
+			bytesCopied.addAndGet(-fileBytes.get());
+			Metrics.increment("storage.transfer.failedFiles");
+			LOG.warn("Unable to copy " + item.getName() + " for storage transfer " + transfer.getId() + ": "
+					+ e.getMessage());
+			throw new CompletionException(e);
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+package benchly.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Keeps a bounded number of equally sized byte arrays for reuse, such that
+ * streaming large files does not allocate new buffers all the time. Buffers
+ * taken have to be given back, if the pool is full they are simply dropped.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+
+	private final BlockingQueue<byte[]> available;
+
+	private final String metricsName;
+
+	/**
+	 * @param name
+	 *            Used to report how often buffers had to be allocated.
+	 */
+	public BufferPool(String name, int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.available = new ArrayBlockingQueue<>(maxPooled);
+		this.metricsName = "buffers." + name;
+		Metrics.registerGauge(metricsName + ".pooled", available::size);
+	}
+
+	public byte[] take() {
+		byte[] buffer = available.poll();
+		if (buffer == null) {
+			Metrics.increment(metricsName + ".allocated");
+			buffer = new byte[bufferSize];
+		}
+		return buffer;
+	}
+
+	public void give(byte[] buffer) {
+		if (buffer != null && buffer.length == bufferSize) {
+			available.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+}
@@ -0,0 +1,86 @@
+package benchly.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A range of bytes as requested by an http Range header, with both positions
+ * inclusive.
+ */
+public class ByteRange {
+
+	// more ranges than this in a single request are not served as ranges
+	private static final int MAX_RANGES = 16;
+
+	public final long start;
+
+	public final long end;
+
+	public ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	public long length() {
+		return end - start + 1;
+	}
+
+	/**
+	 * @return The value for a Content-Range header of this range.
+	 */
+	public String toContentRange(long size) {
+		return "bytes " + start + "-" + end + "/" + size;
+	}
+
+	/**
+	 * Parse a Range header for a file of the given size. Ranges reaching beyond
+	 * the end of the file are shortened, ranges that overlap are not merged.
+	 *
+	 * @return The satisfiable ranges, an empty list if none is satisfiable or null
+	 *         if the header is malformed or not a byte range and should be ignored.
+	 */
+	public static List<ByteRange> parse(String header, long size) {
+		if (header == null || !header.trim().startsWith("bytes=")) {
+			return null;
+		}
+		String[] specs = header.trim().substring("bytes=".length()).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		List<ByteRange> result = new ArrayList<>(specs.length);
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash < 0) {
+					return null;
+				}
+				String first = spec.substring(0, dash).trim();
+				String last = spec.substring(dash + 1).trim();
+
+				if (first.isEmpty()) {
+					// a suffix: the last n bytes of the file
+					long n = Long.parseLong(last);
+					if (n > 0 && size > 0) {
+						result.add(new ByteRange(Math.max(0, size - n), size - 1));
+					}
+				} else {
+					long start = Long.parseLong(first);
+					long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if (start < 0 || end < start) {
+						return null;
+					}
+					if (start < size) {
+						result.add(new ByteRange(start, Math.min(end, size - 1)));
+					}
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return result.isEmpty() ? Collections.emptyList() : result;
+	}
+
+}
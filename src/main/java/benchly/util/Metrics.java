@@ -0,0 +1,111 @@
+package benchly.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A minimal registry of named counters, gauges and timers. Anything in the
+ * application may report to it and a snapshot of all values is served to admin
+ * users.
+ *
+ * Names are dot-separated and prefixed by the component reporting, e.g.
+ * "db.pool.timeouts".
+ */
+public class Metrics {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
+
+	private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+
+	private static final Map<String, AtomicLong> VALUES = new ConcurrentHashMap<>();
+
+	private static final Map<String, Supplier<? extends Number>> GAUGES = new ConcurrentHashMap<>();
+
+	private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+
+	// accumulates durations reported for a single name
+	private static class Timer {
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		private Map<String, Object> snapshot() {
+			long n = count.sum();
+			long total = totalNanos.sum();
+
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("count", n);
+			result.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(total));
+			result.put("meanMillis", (n == 0) ? 0.0 : (total / (double) n) / 1000000.0);
+			result.put("maxMillis", TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+			return result;
+		}
+	}
+
+	public static void increment(String name) {
+		add(name, 1L);
+	}
+
+	public static void add(String name, long delta) {
+		COUNTERS.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+	}
+
+	/**
+	 * Set a value that is simply reported as is, e.g. the outcome of the last run
+	 * of a periodic task.
+	 */
+	public static void set(String name, long value) {
+		VALUES.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+	}
+
+	/**
+	 * Register a gauge that is only read when a snapshot is taken. Registering
+	 * another gauge under the same name replaces the old one.
+	 */
+	public static void registerGauge(String name, Supplier<? extends Number> gauge) {
+		GAUGES.put(name, gauge);
+	}
+
+	public static void recordNanos(String name, long nanos) {
+		TIMERS.computeIfAbsent(name, k -> new Timer()).record(nanos);
+	}
+
+	public static void recordMillis(String name, long millis) {
+		recordNanos(name, TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * @return All values currently known, sorted by name.
+	 */
+	public static Map<String, Object> snapshot() {
+		Map<String, Object> result = new TreeMap<>();
+		COUNTERS.forEach((name, counter) -> result.put(name, counter.sum()));
+		VALUES.forEach((name, value) -> result.put(name, value.get()));
+		TIMERS.forEach((name, timer) -> result.put(name, timer.snapshot()));
+		GAUGES.forEach((name, gauge) -> {
+			try {
+				result.put(name, gauge.get());
+			} catch (Exception e) {
+				LOG.warn("Unable to read gauge '" + name + "': " + e.getMessage());
+			}
+		});
+		return result;
+	}
+
+}
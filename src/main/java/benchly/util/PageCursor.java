@@ -0,0 +1,62 @@
+package benchly.util;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import benchly.error.InvalidRequestException;
+import benchly.util.RequestUtil.PaginationParams;
+
+/**
+ * The position of a row in a listing ordered by a timestamp and the row's id.
+ * Clients receive this as an opaque token and may hand it back to get the rows
+ * following it without the database having to skip over an offset.
+ */
+public class PageCursor {
+
+	private static final String DELIM = ":";
+
+	public final Timestamp time;
+	public final long id;
+
+	public PageCursor(Timestamp time, long id) {
+		this.time = time;
+		this.id = id;
+	}
+
+	public String encode() {
+		String plain = time.getTime() + DELIM + id;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static PageCursor decode(String token) throws InvalidRequestException {
+		try {
+			String plain = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+			String[] parts = plain.split(DELIM);
+			if (parts.length != 2) {
+				throw new InvalidRequestException("Malformed pagination cursor: " + token);
+			}
+			return new PageCursor(new Timestamp(Long.parseLong(parts[0])), Long.parseLong(parts[1]));
+		} catch (IllegalArgumentException e) {
+			// also catches the NumberFormatException
+			throw new InvalidRequestException("Malformed pagination cursor: " + token, e);
+		}
+	}
+
+	/**
+	 * @return The token pointing behind the last object of the page or null if
+	 *         the page was not full, i.e. if there are no more results.
+	 */
+	public static <T> String nextToken(List<T> page, PaginationParams pagination, Function<T, Timestamp> time,
+			ToLongFunction<T> id) {
+		if (page.isEmpty() || page.size() < pagination.limit) {
+			return null;
+		}
+		T last = page.get(page.size() - 1);
+		return new PageCursor(time.apply(last), id.applyAsLong(last)).encode();
+	}
+
+}
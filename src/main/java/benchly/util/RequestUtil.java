@@ -1,8 +1,10 @@
 package benchly.util;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import benchly.error.InvalidRequestException;
 import spark.Request;
 
 public class RequestUtil {
@@ -14,9 +16,17 @@ public class RequestUtil {
 		public final long limit;
 		public final long offset;
 
+		// if set, the page starts behind this cursor and the offset is ignored
+		public final PageCursor after;
+
 		public PaginationParams(long limit, long offset) {
+			this(limit, offset, null);
+		}
+
+		public PaginationParams(long limit, long offset, PageCursor after) {
 			this.limit = (limit < 0) ? 1L : limit;
 			this.offset = (offset < 0) ? 0L : offset;
+			this.after = after;
 		}
 	}
 
@@ -44,10 +54,16 @@ public class RequestUtil {
 		return longConvert(request.queryParams(queryParam), defaultLong);
 	}
 
-	public static PaginationParams parsePaginationParams(Request request) {
+	public static PaginationParams parsePaginationParams(Request request) throws InvalidRequestException {
 		long limit = parseNumberedQueryParamOrDefault(request, "limit", 10L);
 		long offset = parseNumberedQueryParamOrDefault(request, "offset", 0L);
-		return new PaginationParams(limit, offset);
+
+		String after = request.queryParams("after");
+		if (StringUtils.isBlank(after)) {
+			return new PaginationParams(limit, offset);
+		} else {
+			return new PaginationParams(limit, offset, PageCursor.decode(after));
+		}
 	}
 
 	private static long longConvert(String value, long defaultLong) {
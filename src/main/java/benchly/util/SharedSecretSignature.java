@@ -0,0 +1,75 @@
+package benchly.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.shiro.codec.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Signs and verifies messages exchanged with the workbench servers by an HMAC
+ * over the message keyed with the shared secret. A timestamp is part of the
+ * signed content, such that old messages cannot be replayed.
+ */
+public class SharedSecretSignature {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SharedSecretSignature.class);
+
+	public static final String TIMESTAMP_HEADER = "X-Benchly-Timestamp";
+	public static final String SIGNATURE_HEADER = "X-Benchly-Signature";
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	// how far the sender's clock may be off from ours
+	private static final long MAX_SKEW_SECONDS = 300;
+
+	/**
+	 * @return The hex encoded signature over the timestamp (epoch seconds), the
+	 *         request path and the body.
+	 */
+	public static String sign(String secret, String timestamp, String path, byte[] body) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+			mac.update((timestamp + "\n" + path + "\n").getBytes(StandardCharsets.UTF_8));
+			return Hex.encodeToString(mac.doFinal(body));
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			// every jvm has to support HmacSHA256, so this should not happen
+			throw new IllegalStateException("Unable to compute message signature.", e);
+		}
+	}
+
+	/**
+	 * @return Whether the signature is valid for the message and the timestamp is
+	 *         recent enough.
+	 */
+	public static boolean verify(String secret, String timestamp, String signature, String path, byte[] body) {
+		if (StringUtils.isBlank(secret) || StringUtils.isBlank(timestamp) || StringUtils.isBlank(signature)) {
+			return false;
+		}
+
+		long sentAt;
+		try {
+			sentAt = Long.parseLong(timestamp);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (Math.abs(Instant.now().getEpochSecond() - sentAt) > MAX_SKEW_SECONDS) {
+			LOG.warn("Rejecting signed message with timestamp outside the allowed window: " + timestamp);
+			return false;
+		}
+
+		byte[] expected = sign(secret, timestamp, path, body).getBytes(StandardCharsets.UTF_8);
+		byte[] actual = signature.toLowerCase().getBytes(StandardCharsets.UTF_8);
+		return MessageDigest.isEqual(expected, actual);
+	}
+
+}
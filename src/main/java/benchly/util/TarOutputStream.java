@@ -0,0 +1,169 @@
+package benchly.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a tar archive of regular files to the underlying stream without
+ * buffering any of the content. Each entry has to be announced with its exact
+ * size. Names longer than the header allows are written as GNU long name
+ * entries, sizes of 8 GB and above in the GNU base-256 encoding.
+ */
+public class TarOutputStream extends FilterOutputStream {
+
+	private static final int BLOCK_SIZE = 512;
+
+	private static final int NAME_LENGTH = 100;
+
+	// the largest number that fits the 11 octal digits of a size field
+	private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+	private long entrySize = 0;
+
+	private long entryWritten = 0;
+
+	private boolean inEntry = false;
+
+	private boolean finished = false;
+
+	public TarOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Start a new file entry, exactly size bytes have to be written before the
+	 * entry is closed.
+	 */
+	public void putNextEntry(String name, long size, long modifiedMillis) throws IOException {
+		if (inEntry) {
+			throw new IOException("The previous tar entry was not closed.");
+		}
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length > NAME_LENGTH) {
+			// the name follows in the content of a pseudo entry, null terminated
+			out.write(header("././@LongLink".getBytes(StandardCharsets.US_ASCII), nameBytes.length + 1, 0, 'L'));
+			out.write(nameBytes);
+			out.write(0);
+			pad(nameBytes.length + 1);
+		}
+		out.write(header(nameBytes, size, modifiedMillis / 1000, '0'));
+
+		entrySize = size;
+		entryWritten = 0;
+		inEntry = true;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureRoomFor(1);
+		out.write(b);
+		entryWritten += 1;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureRoomFor(len);
+		out.write(b, off, len);
+		entryWritten += len;
+	}
+
+	/**
+	 * Close the current entry, fails if less than the announced size was written.
+	 */
+	public void closeEntry() throws IOException {
+		if (!inEntry) {
+			return;
+		}
+		if (entryWritten != entrySize) {
+			throw new IOException(String.format("Tar entry has %d of %d bytes.", entryWritten, entrySize));
+		}
+		pad(entryWritten);
+		inEntry = false;
+	}
+
+	/**
+	 * Write the end of the archive without closing the underlying stream.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		closeEntry();
+		out.write(new byte[BLOCK_SIZE * 2]);
+		out.flush();
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		super.close();
+	}
+
+	private void ensureRoomFor(int len) throws IOException {
+		if (!inEntry) {
+			throw new IOException("No tar entry to write to.");
+		}
+		if (entryWritten + len > entrySize) {
+			throw new IOException("Tar entry exceeds its size of " + entrySize + " bytes.");
+		}
+	}
+
+	private void pad(long written) throws IOException {
+		int remainder = (int) (written % BLOCK_SIZE);
+		if (remainder > 0) {
+			out.write(new byte[BLOCK_SIZE - remainder]);
+		}
+	}
+
+	private static byte[] header(byte[] name, long size, long modifiedSeconds, char type) {
+		byte[] header = new byte[BLOCK_SIZE];
+
+		System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_LENGTH));
+		writeOctal(header, 100, 8, 0644);
+		writeOctal(header, 108, 8, 0);
+		writeOctal(header, 116, 8, 0);
+		if (size > MAX_OCTAL_SIZE) {
+			// base-256: a set high bit followed by the big endian number
+			header[124] = (byte) 0x80;
+			for (int i = 0; i < 8; i++) {
+				header[135 - i] = (byte) (size >>> (8 * i));
+			}
+		} else {
+			writeOctal(header, 124, 12, size);
+		}
+		writeOctal(header, 136, 12, modifiedSeconds);
+		header[156] = (byte) type;
+		// the gnu magic, as long names and large sizes are gnu extensions
+		System.arraycopy("ustar  \0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+		// the checksum is computed with the checksum field set to spaces
+		for (int i = 148; i < 156; i++) {
+			header[i] = ' ';
+		}
+		long checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		writeOctal(header, 148, 7, checksum);
+		header[155] = ' ';
+
+		return header;
+	}
+
+	// writes the number as zero padded octal digits followed by a null byte
+	private static void writeOctal(byte[] header, int offset, int length, long value) {
+		String digits = Long.toOctalString(value);
+		int padding = length - 1 - digits.length();
+		for (int i = 0; i < padding; i++) {
+			header[offset + i] = '0';
+		}
+		for (int i = 0; i < digits.length(); i++) {
+			header[offset + padding + i] = (byte) digits.charAt(i);
+		}
+		header[offset + length - 1] = 0;
+	}
+
+}